@@ -7338,9 +7338,7 @@ public class ActivityTaskManagerService extends IActivityTaskManager.Stub {
 
         @Override
         public void loadRecentTasksForUser(int userId) {
-            synchronized (mGlobalLock) {
-                mRecentTasks.loadUserRecentsLocked(userId);
-            }
+            mRecentTasks.loadUserRecents(userId);
         }
 
         @Override
@@ -858,6 +858,7 @@ class AppWindowToken extends WindowToken implements WindowManagerService.AppFree
     @Override
     void removeIfPossible() {
         mIsExiting = false;
+        onWindowOrderChanged();
         removeAllWindowsIfPossible();
         removeImmediately();
     }
@@ -918,6 +919,7 @@ class AppWindowToken extends WindowToken implements WindowManagerService.AppFree
                 stack.mExitingAppTokens.add(this);
             }
             mIsExiting = true;
+            onWindowOrderChanged();
         } else {
             // Make sure there is no animation running on this token, so any windows associated
             // with it will be removed as soon as their animations are complete
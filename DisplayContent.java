@@ -214,6 +214,7 @@ import java.io.PrintWriter;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -267,8 +268,37 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
     private final NonAppWindowContainers mImeWindowsContainers =
             new NonAppWindowContainers("mImeWindowsContainers", mWmService);
 
+    /**
+     * The windows of this display from top to bottom, in the order {@link #forAllWindows} visits
+     * them, so that it doesn't need to walk the hierarchy every time. Rebuilt on first use after
+     * {@link #invalidateWindowOrder}.
+     */
+    private WindowState[] mWindowOrder = new WindowState[0];
+    private int mWindowOrderSize;
+    private boolean mWindowOrderValid;
+    /** Bumped every time the window order is invalidated. */
+    private int mWindowOrderGeneration;
+    /** The IME target and whether the IME windows were traversed in place when it was built. */
+    private WindowState mWindowOrderImeTarget;
+    private boolean mWindowOrderImeInPlace;
+    /** Number of {@link #forAllWindows} calls currently iterating {@link #mWindowOrder}. */
+    private int mWindowOrderIterators;
+    private long mWindowOrderRebuilds;
+    private final ToBooleanFunction<WindowState> mAddToWindowOrder = w -> {
+        if (mWindowOrderSize == mWindowOrder.length) {
+            mWindowOrder = Arrays.copyOf(mWindowOrder, Math.max(16, mWindowOrderSize * 2));
+        }
+        mWindowOrder[mWindowOrderSize++] = w;
+        return false;
+    };
+
     private WindowState mTmpWindow;
-    private WindowState mTmpWindow2;
+    /**
+     * The attached windows found by the first layout pass, in traversal order, and the index in
+     * there of the first attached window below a dream window, or -1.
+     */
+    private final ArrayList<WindowState> mTmpLayoutAttachedWindows = new ArrayList<>();
+    private int mTmpLayoutAttachedDreamIndex;
     private boolean mTmpRecoveringMemory;
     private boolean mUpdateImeTarget;
     private boolean mTmpInitial;
@@ -686,12 +716,21 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
     };
 
     private final Consumer<WindowState> mPerformLayout = w -> {
+        if (w.mLayoutAttached) {
+            // Laid out after all the windows they can be attached to, see performLayoutAttached.
+            mTmpLayoutAttachedWindows.add(w);
+            return;
+        }
+        if (w.mAttrs.type == TYPE_DREAM && mTmpLayoutAttachedDreamIndex < 0) {
+            mTmpLayoutAttachedDreamIndex = mTmpLayoutAttachedWindows.size();
+        }
+
         // Don't do layout of a window if it is not visible, or soon won't be visible, to avoid
         // wasting time and funky changes while a window is animating away.
         final boolean gone = (mTmpWindow != null && mWmService.mPolicy.canBeHiddenByKeyguardLw(w))
                 || w.isGoneForLayoutLw();
 
-        if (DEBUG_LAYOUT && !w.mLayoutAttached) {
+        if (DEBUG_LAYOUT) {
             Slog.v(TAG, "1ST PASS " + w + ": gone=" + gone + " mHaveFrame=" + w.mHaveFrame
                     + " mLayoutAttached=" + w.mLayoutAttached
                     + " config reported=" + w.isLastConfigReportedToClient());
@@ -709,7 +748,7 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         // If this view is GONE, then skip it -- keep the current frame, and let the caller know
         // so they can ignore it if they want.  (We do the normal layout for INVISIBLE windows,
         // since that means "perform layout as normal, just don't display").
-        if ((!gone || !w.mHaveFrame || w.mLayoutNeeded) && !w.mLayoutAttached) {
+        if (!gone || !w.mHaveFrame || w.mLayoutNeeded) {
             if (mTmpInitial) {
                 w.resetContentChanged();
             }
@@ -740,16 +779,26 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         }
     };
 
-    private final Consumer<WindowState> mPerformLayoutAttached = w -> {
-        if (w.mLayoutAttached) {
+    /**
+     * Lays out the attached windows {@link #mPerformLayout} collected, in the order it came across
+     * them, now that the windows they are attached to have their frames.
+     *
+     * @param dreamWindow the dream window the first pass laid out, if any.
+     */
+    private void performLayoutAttached(WindowState dreamWindow) {
+        for (int i = 0; i < mTmpLayoutAttachedWindows.size(); i++) {
+            final WindowState w = mTmpLayoutAttachedWindows.get(i);
             if (DEBUG_LAYOUT) Slog.v(TAG, "2ND PASS " + w + " mHaveFrame=" + w.mHaveFrame
                     + " mViewVisibility=" + w.mViewVisibility
                     + " mRelayoutCalled=" + w.mRelayoutCalled);
+            // Don't layout windows behind a dream, so that if it does stuff like hide the
+            // status bar we won't get a bad transition when it goes away.
+            final boolean behindDream = dreamWindow != null && i >= mTmpLayoutAttachedDreamIndex;
             // If this view is GONE, then skip it -- keep the current frame, and let the caller
             // know so they can ignore it if they want.  (We do the normal layout for INVISIBLE
             // windows, since that means "perform layout as normal, just don't display").
-            if (mTmpWindow != null && mWmService.mPolicy.canBeHiddenByKeyguardLw(w)) {
-                return;
+            if (behindDream && mWmService.mPolicy.canBeHiddenByKeyguardLw(w)) {
+                continue;
             }
             if ((w.mViewVisibility != GONE && w.mRelayoutCalled) || !w.mHaveFrame
                     || w.mLayoutNeeded) {
@@ -765,12 +814,8 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
                         + " mContainingFrame=" + w.getContainingFrame()
                         + " mDisplayFrame=" + w.getDisplayFrameLw());
             }
-        } else if (w.mAttrs.type == TYPE_DREAM) {
-            // Don't layout windows behind a dream, so that if it does stuff like hide the
-            // status bar we won't get a bad transition when it goes away.
-            mTmpWindow = mTmpWindow2;
         }
-    };
+    }
 
     private final Predicate<WindowState> mComputeImeTargetPredicate = w -> {
         if (DEBUG_INPUT_METHOD && mUpdateImeTarget) Slog.i(TAG_WM, "Checking window @" + w
@@ -816,12 +861,7 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
                     mTmpApplySurfaceChangesTransactionState.preferredRefreshRate
                             = w.mAttrs.preferredRefreshRate;
                 }
-                final int preferredModeId = getDisplayPolicy().getRefreshRatePolicy()
-                        .getPreferredModeId(w);
-                if (mTmpApplySurfaceChangesTransactionState.preferredModeId == 0
-                        && preferredModeId != 0) {
-                    mTmpApplySurfaceChangesTransactionState.preferredModeId = preferredModeId;
-                }
+                getDisplayPolicy().getRefreshRatePolicy().addWindowVote(w);
             }
         }
 
@@ -2131,8 +2171,91 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         return false;
     }
 
+    /**
+     * Called when anything that decides the order {@link #forAllWindows} visits the windows of
+     * this display changes, see {@link WindowContainer#onWindowOrderChanged}.
+     */
+    void invalidateWindowOrder() {
+        mWindowOrderValid = false;
+        mWindowOrderGeneration++;
+    }
+
     @Override
     boolean forAllWindows(ToBooleanFunction<WindowState> callback, boolean traverseTopToBottom) {
+        final boolean imeInPlace = !skipTraverseChild(mImeWindowsContainers);
+        if (!mWindowOrderValid || mWindowOrderImeTarget != mInputMethodTarget
+                || mWindowOrderImeInPlace != imeInPlace) {
+            rebuildWindowOrder(imeInPlace);
+        }
+
+        // Hold on to the order we start with: the callback may change the hierarchy, in which case
+        // the order is rebuilt into a new array the next time it is needed.
+        final WindowState[] order = mWindowOrder;
+        final int size = mWindowOrderSize;
+        final int generation = mWindowOrderGeneration;
+        mWindowOrderIterators++;
+        try {
+            if (traverseTopToBottom) {
+                for (int i = 0; i < size; i++) {
+                    final WindowState w = order[i];
+                    if ((generation == mWindowOrderGeneration || isWindowOnDisplay(w))
+                            && callback.apply(w)) {
+                        return true;
+                    }
+                }
+            } else {
+                for (int i = size - 1; i >= 0; i--) {
+                    final WindowState w = order[i];
+                    if ((generation == mWindowOrderGeneration || isWindowOnDisplay(w))
+                            && callback.apply(w)) {
+                        return true;
+                    }
+                }
+            }
+        } finally {
+            mWindowOrderIterators--;
+        }
+        return false;
+    }
+
+    /**
+     * @return whether {@code w} is still in the hierarchy of this display, for windows the
+     *         callback of {@link #forAllWindows} removed while it was iterating.
+     */
+    private boolean isWindowOnDisplay(WindowState w) {
+        WindowContainer wc = w;
+        while (wc != null && wc != this) {
+            wc = wc.getParent();
+        }
+        return wc == this;
+    }
+
+    private void rebuildWindowOrder(boolean imeInPlace) {
+        Trace.traceBegin(TRACE_TAG_WINDOW_MANAGER, "rebuildWindowOrder");
+        try {
+            if (mWindowOrderIterators > 0) {
+                // Don't overwrite the order out from under an iteration that is still using it.
+                mWindowOrder = new WindowState[mWindowOrder.length];
+            } else {
+                Arrays.fill(mWindowOrder, 0, mWindowOrderSize, null);
+            }
+            mWindowOrderSize = 0;
+            forAllWindowsInHierarchy(mAddToWindowOrder, true /* traverseTopToBottom */);
+            mWindowOrderValid = true;
+            mWindowOrderImeTarget = mInputMethodTarget;
+            mWindowOrderImeInPlace = imeInPlace;
+            mWindowOrderRebuilds++;
+        } finally {
+            Trace.traceEnd(TRACE_TAG_WINDOW_MANAGER);
+        }
+    }
+
+    /**
+     * Walks the hierarchy for {@link #forAllWindows}. Bottom to top is always the exact reverse of
+     * top to bottom, so {@link #mWindowOrder} only holds the latter.
+     */
+    private boolean forAllWindowsInHierarchy(ToBooleanFunction<WindowState> callback,
+            boolean traverseTopToBottom) {
         // Special handling so we can process IME windows with #forAllImeWindows above their IME
         // target, or here in order if there isn't an IME target.
         if (traverseTopToBottom) {
@@ -2862,6 +2985,9 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         pw.print(prefix); pw.print("mLayoutSeq="); pw.println(mLayoutSeq);
         pw.print(prefix);
         pw.print("mDeferredRotationPauseCount="); pw.println(mDeferredRotationPauseCount);
+        pw.print(prefix); pw.print("mWindowOrderRebuilds="); pw.print(mWindowOrderRebuilds);
+        pw.print(" windows="); pw.print(mWindowOrderSize);
+        pw.print(" valid="); pw.println(mWindowOrderValid);
 
         pw.print("  mCurrentFocus="); pw.println(mCurrentFocus);
         if (mLastFocus != mCurrentFocus) {
@@ -3697,8 +3823,13 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
 
         mTmpUpdateAllDrawn.clear();
 
+        final SurfacePlacementProfiler profiler = surfacePlacer.getProfiler();
+        profiler.beginPhase(SurfacePlacementProfiler.PHASE_LAYOUT);
         int repeats = 0;
         do {
+            if (repeats > 0) {
+                profiler.onLayoutRepeat(mDisplayId, pendingLayoutChanges);
+            }
             repeats++;
             if (repeats > 6) {
                 Slog.w(TAG, "Animation repeat aborted after too many iterations");
@@ -3747,8 +3878,11 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
                     "after finishPostLayoutPolicyLw", pendingLayoutChanges);
                 mInsetsStateController.onPostLayout();
         } while (pendingLayoutChanges != 0);
+        profiler.endPhase(SurfacePlacementProfiler.PHASE_LAYOUT);
 
         mTmpApplySurfaceChangesTransactionState.reset();
+        final RefreshRatePolicy refreshRatePolicy = getDisplayPolicy().getRefreshRatePolicy();
+        refreshRatePolicy.beginVotes();
 
         mTmpRecoveringMemory = recoveringMemory;
 
@@ -3764,7 +3898,7 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         mWmService.mDisplayManagerInternal.setDisplayProperties(mDisplayId,
                 mLastHasContent,
                 mTmpApplySurfaceChangesTransactionState.preferredRefreshRate,
-                mTmpApplySurfaceChangesTransactionState.preferredModeId,
+                refreshRatePolicy.finishVotes(),
                 true /* inTraversal, must call performTraversalInTrans... below */);
 
         final boolean wallpaperVisible = mWallpaperController.isWallpaperVisible();
@@ -3866,19 +4000,24 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         // behind it.
         mTmpWindow = null;
         mTmpInitial = initial;
+        mTmpLayoutAttachedDreamIndex = -1;
 
-        // First perform layout of any root windows (not attached to another window).
-        forAllWindows(mPerformLayout, true /* traverseTopToBottom */);
-
-        // Used to indicate that we have processed the dream window and all additional attached
-        // windows are behind it.
-        mTmpWindow2 = mTmpWindow;
-        mTmpWindow = null;
-
-        // Now perform layout of attached windows, which usually depend on the position of the
-        // window they are attached to. XXX does not deal with windows that are attached to windows
-        // that are themselves attached.
-        forAllWindows(mPerformLayoutAttached, true /* traverseTopToBottom */);
+        try {
+            // First perform layout of any root windows (not attached to another window),
+            // collecting the attached windows on the way so they don't need a traversal of their
+            // own.
+            forAllWindows(mPerformLayout, true /* traverseTopToBottom */);
+
+            // Now perform layout of attached windows, which usually depend on the position of the
+            // window they are attached to. XXX does not deal with windows that are attached to
+            // windows that are themselves attached.
+            final WindowState dreamWindow = mTmpWindow;
+            mTmpWindow = null;
+            performLayoutAttached(dreamWindow);
+        } finally {
+            // Also if layout threw, so removed windows aren't held on to or laid out next time.
+            mTmpLayoutAttachedWindows.clear();
+        }
 
         // Window frames may have changed. Tell the input dispatcher about it.
         mInputMonitor.layoutInputConsumers(dw, dh);
@@ -4044,14 +4183,12 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         boolean obscured;
         boolean syswin;
         float preferredRefreshRate;
-        int preferredModeId;
 
         void reset() {
             displayHasContent = false;
             obscured = false;
             syswin = false;
             preferredRefreshRate = 0;
-            preferredModeId = 0;
         }
     }
 
@@ -4888,6 +5025,18 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
 
     @Override
     void prepareSurfaces() {
+        // TODO: Once we totally eliminate global transaction we will pass transaction in here
+        //       rather than merging to global.
+        SurfaceControl.mergeToGlobalTransaction(prepareDisplaySurfaces());
+    }
+
+    /**
+     * Prepares the surfaces of this display without merging them to the global transaction, see
+     * {@link WindowAnimator#prepareSurfacesInParallel}.
+     *
+     * @return the transaction the surfaces were prepared into.
+     */
+    Transaction prepareDisplaySurfaces() {
         Trace.traceBegin(TRACE_TAG_WINDOW_MANAGER, "prepareSurfaces");
         try {
             final ScreenRotationAnimation screenRotationAnimation =
@@ -4905,10 +5054,7 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
             }
 
             super.prepareSurfaces();
-
-            // TODO: Once we totally eliminate global transaction we will pass transaction in here
-            //       rather than merging to global.
-            SurfaceControl.mergeToGlobalTransaction(transaction);
+            return transaction;
         } finally {
             Trace.traceEnd(TRACE_TAG_WINDOW_MANAGER);
         }
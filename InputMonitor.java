@@ -32,6 +32,7 @@ import static com.android.server.wm.WindowManagerDebugConfig.DEBUG_TASK_POSITION
 import static com.android.server.wm.WindowManagerDebugConfig.TAG_WM;
 
 import android.graphics.Rect;
+import android.graphics.Region;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
@@ -70,6 +71,7 @@ final class InputMonitor {
 
     private boolean mDisableWallpaperTouchEvents;
     private final Rect mTmpRect = new Rect();
+    private final Region mTmpRegion = new Region();
     private final UpdateInputForAllWindowsConsumer mUpdateInputForAllWindowsConsumer;
 
     private final int mDisplayId;
@@ -79,6 +81,13 @@ final class InputMonitor {
     private final SurfaceControl.Transaction mInputTransaction;
     private final Handler mHandler;
 
+    /** Number of input window updates, and how many of those had nothing to send. */
+    private long mUpdateCount;
+    private long mSkippedTransactionCount;
+    /** Number of window handles populated by the updates, and how many of those changed. */
+    private long mHandlesVisited;
+    private long mHandlesChanged;
+
     /**
      * The set of input consumer added to the window manager by name, which consumes input events
      * for the windows below it.
@@ -132,19 +141,21 @@ final class InputMonitor {
                 final boolean inDrag = mService.mDragDropController.dragDropActiveLocked();
                 final boolean inPositioning =
                         mService.mTaskPositioningController.isPositioningLocked();
+                final boolean positioningChanged;
                 if (inPositioning) {
                     if (DEBUG_TASK_POSITIONING) {
                         Log.d(TAG_WM, "Inserting window handle for repositioning");
                     }
                     mService.mTaskPositioningController.showInputSurface(mInputTransaction,
                             mDisplayId);
+                    positioningChanged = true;
                 } else {
-                    mService.mTaskPositioningController.hideInputSurface(mInputTransaction,
-                            mDisplayId);
+                    positioningChanged = mService.mTaskPositioningController.hideInputSurface(
+                            mInputTransaction, mDisplayId);
                 }
 
                 // Add all windows on the default display.
-                mUpdateInputForAllWindowsConsumer.updateInputWindows(inDrag);
+                mUpdateInputForAllWindowsConsumer.updateInputWindows(inDrag, positioningChanged);
             }
         }
     };
@@ -247,54 +258,92 @@ final class InputMonitor {
     }
 
 
-    void populateInputWindowHandle(final InputWindowHandle inputWindowHandle,
+    /**
+     * Populates {@code inputWindowHandle} with the current state of {@code child}.
+     *
+     * @return whether any of it changed since the handle was last populated.
+     */
+    boolean populateInputWindowHandle(final InputWindowHandle inputWindowHandle,
             final WindowState child, int flags, final int type, final boolean isVisible,
             final boolean hasFocus, final boolean hasWallpaper) {
         // Add a window to our list of input windows.
-        inputWindowHandle.name = child.toString();
+        boolean changed = false;
+        final String name = child.toString();
+        if (!name.equals(inputWindowHandle.name)) {
+            inputWindowHandle.name = name;
+            changed = true;
+        }
+
+        mTmpRegion.set(inputWindowHandle.touchableRegion);
+        final IBinder oldCropHandle = inputWindowHandle.touchableRegionCropHandle.get();
+        final boolean oldReplaceWithCrop = inputWindowHandle.replaceTouchableRegionWithCrop;
         flags = child.getSurfaceTouchableRegion(inputWindowHandle, flags);
+        changed |= !mTmpRegion.equals(inputWindowHandle.touchableRegion)
+                || oldCropHandle != inputWindowHandle.touchableRegionCropHandle.get()
+                || oldReplaceWithCrop != inputWindowHandle.replaceTouchableRegionWithCrop;
+
+        final long dispatchingTimeoutNanos = child.getInputDispatchingTimeoutNanos();
+        final boolean canReceiveKeys = child.canReceiveKeys();
+        final boolean paused = child.mAppToken != null ? child.mAppToken.paused : false;
+        final Rect frame = child.getFrameLw();
+        // Surface insets are hardcoded to be the same in all directions
+        // and we could probably deprecate the "left/right/top/bottom" concept.
+        // we avoid reintroducing this concept by just choosing one of them here.
+        final int surfaceInset = child.getAttrs().surfaceInsets.left;
+        // If we are scaling the window, input coordinates need
+        // to be inversely scaled to map from what is on screen
+        // to what is actually being touched in the UI.
+        final float scaleFactor = child.mGlobalScale != 1 ? 1.0f / child.mGlobalScale : 1;
+
+        changed |= inputWindowHandle.layoutParamsFlags != flags
+                || inputWindowHandle.layoutParamsType != type
+                || inputWindowHandle.dispatchingTimeoutNanos != dispatchingTimeoutNanos
+                || inputWindowHandle.visible != isVisible
+                || inputWindowHandle.canReceiveKeys != canReceiveKeys
+                || inputWindowHandle.hasFocus != hasFocus
+                || inputWindowHandle.hasWallpaper != hasWallpaper
+                || inputWindowHandle.paused != paused
+                || inputWindowHandle.layer != child.mLayer
+                || inputWindowHandle.ownerPid != child.mSession.mPid
+                || inputWindowHandle.ownerUid != child.mSession.mUid
+                || inputWindowHandle.inputFeatures != child.mAttrs.inputFeatures
+                || inputWindowHandle.displayId != child.getDisplayId()
+                || inputWindowHandle.frameLeft != frame.left
+                || inputWindowHandle.frameTop != frame.top
+                || inputWindowHandle.frameRight != frame.right
+                || inputWindowHandle.frameBottom != frame.bottom
+                || inputWindowHandle.surfaceInset != surfaceInset
+                || inputWindowHandle.scaleFactor != scaleFactor;
+
         inputWindowHandle.layoutParamsFlags = flags;
         inputWindowHandle.layoutParamsType = type;
-        inputWindowHandle.dispatchingTimeoutNanos = child.getInputDispatchingTimeoutNanos();
+        inputWindowHandle.dispatchingTimeoutNanos = dispatchingTimeoutNanos;
         inputWindowHandle.visible = isVisible;
-        inputWindowHandle.canReceiveKeys = child.canReceiveKeys();
+        inputWindowHandle.canReceiveKeys = canReceiveKeys;
         inputWindowHandle.hasFocus = hasFocus;
         inputWindowHandle.hasWallpaper = hasWallpaper;
-        inputWindowHandle.paused = child.mAppToken != null ? child.mAppToken.paused : false;
+        inputWindowHandle.paused = paused;
         inputWindowHandle.layer = child.mLayer;
         inputWindowHandle.ownerPid = child.mSession.mPid;
         inputWindowHandle.ownerUid = child.mSession.mUid;
         inputWindowHandle.inputFeatures = child.mAttrs.inputFeatures;
         inputWindowHandle.displayId = child.getDisplayId();
-
-        final Rect frame = child.getFrameLw();
         inputWindowHandle.frameLeft = frame.left;
         inputWindowHandle.frameTop = frame.top;
         inputWindowHandle.frameRight = frame.right;
         inputWindowHandle.frameBottom = frame.bottom;
-
-        // Surface insets are hardcoded to be the same in all directions
-        // and we could probably deprecate the "left/right/top/bottom" concept.
-        // we avoid reintroducing this concept by just choosing one of them here.
-        inputWindowHandle.surfaceInset = child.getAttrs().surfaceInsets.left;
-
-        if (child.mGlobalScale != 1) {
-            // If we are scaling the window, input coordinates need
-            // to be inversely scaled to map from what is on screen
-            // to what is actually being touched in the UI.
-            inputWindowHandle.scaleFactor = 1.0f/child.mGlobalScale;
-        } else {
-            inputWindowHandle.scaleFactor = 1;
-        }
+        inputWindowHandle.surfaceInset = surfaceInset;
+        inputWindowHandle.scaleFactor = scaleFactor;
 
         if (DEBUG_INPUT) {
             Slog.d(TAG_WM, "addInputWindowHandle: "
-                    + child + ", " + inputWindowHandle);
+                    + child + ", " + inputWindowHandle + " changed=" + changed);
         }
 
         if (hasFocus) {
             mFocusedInputWindowHandle = inputWindowHandle;
         }
+        return changed;
     }
 
     void setUpdateInputWindowsNeededLw() {
@@ -359,8 +408,18 @@ final class InputMonitor {
             mService.mInputManager.setFocusedApplication(mDisplayId, null);
         } else {
             final InputApplicationHandle handle = newApp.mInputApplicationHandle;
-            handle.name = newApp.toString();
-            handle.dispatchingTimeoutNanos = newApp.mInputDispatchingTimeoutNanos;
+            final String name = newApp.toString();
+            if (!name.equals(handle.name)
+                    || handle.dispatchingTimeoutNanos != newApp.mInputDispatchingTimeoutNanos) {
+                handle.name = name;
+                handle.dispatchingTimeoutNanos = newApp.mInputDispatchingTimeoutNanos;
+                // The windows of the app send this handle as part of their input info, which is
+                // otherwise only resent when the window's own handle changes.
+                newApp.forAllWindows(w -> {
+                    w.mInputWindowHandleDirty = true;
+                }, true /* traverseTopToBottom */);
+                setUpdateInputWindowsNeededLw();
+            }
 
             mService.mInputManager.setFocusedApplication(mDisplayId, handle);
         }
@@ -389,6 +448,9 @@ final class InputMonitor {
     }
 
     void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "updates=" + mUpdateCount + " skippedTransactions="
+                + mSkippedTransactionCount + " handlesVisited=" + mHandlesVisited
+                + " handlesChanged=" + mHandlesChanged);
         final Set<String> inputConsumerKeys = mInputConsumers.keySet();
         if (!inputConsumerKeys.isEmpty()) {
             pw.println(prefix + "InputConsumers:");
@@ -412,10 +474,13 @@ final class InputMonitor {
         boolean inDrag;
         WallpaperController wallpaperController;
 
+        /** Whether anything was added to mInputTransaction during this update. */
+        private boolean mInputTransactionChanged;
+
         // An invalid window handle that tells SurfaceFlinger not update the input info.
         final InputWindowHandle mInvalidInputWindow = new InputWindowHandle(null, null, mDisplayId);
 
-        private void updateInputWindows(boolean inDrag) {
+        private void updateInputWindows(boolean inDrag, boolean transactionChanged) {
             Trace.traceBegin(TRACE_TAG_WINDOW_MANAGER, "updateInputWindows");
 
             navInputConsumer = getInputConsumer(INPUT_CONSUMER_NAVIGATION);
@@ -434,6 +499,8 @@ final class InputMonitor {
             wallpaperController = mDisplayContent.mWallpaperController;
 
             resetInputConsumers(mInputTransaction);
+            // The input consumers are hidden and shown again on every update.
+            mInputTransactionChanged = transactionChanged || !mInputConsumers.isEmpty();
 
             mDisplayContent.forAllWindows(this,
                     true /* traverseTopToBottom */);
@@ -442,7 +509,11 @@ final class InputMonitor {
                 wallpaperInputConsumer.show(mInputTransaction, 0);
             }
 
-            if (mApplyImmediately) {
+            mUpdateCount++;
+            if (!mInputTransactionChanged) {
+                // Every window's input info is already what was last sent.
+                mSkippedTransactionCount++;
+            } else if (mApplyImmediately) {
                 mInputTransaction.apply();
             } else {
                 mDisplayContent.getPendingTransaction().merge(mInputTransaction);
@@ -459,8 +530,7 @@ final class InputMonitor {
             if (inputChannel == null || inputWindowHandle == null || w.mRemoved
                     || w.cantReceiveTouchInput()) {
                 if (w.mWinAnimator.hasSurface()) {
-                    mInputTransaction.setInputWindowInfo(
-                            w.mWinAnimator.mSurfaceController.mSurfaceControl, mInvalidInputWindow);
+                    setInputWindowInfoIfNeeded(w, mInvalidInputWindow, false /* changed */);
                 }
                 // Skip this window because it cannot possibly receive input.
                 return;
@@ -526,12 +596,35 @@ final class InputMonitor {
                 mService.mDragDropController.sendDragStartedIfNeededLocked(w);
             }
 
-            populateInputWindowHandle(
+            final boolean changed = populateInputWindowHandle(
                     inputWindowHandle, w, flags, type, isVisible, hasFocus, hasWallpaper);
+            mHandlesVisited++;
 
             if (w.mWinAnimator.hasSurface()) {
-                mInputTransaction.setInputWindowInfo(
-                        w.mWinAnimator.mSurfaceController.mSurfaceControl, inputWindowHandle);
+                setInputWindowInfoIfNeeded(w, inputWindowHandle, changed);
+            }
+        }
+
+        /**
+         * Sends {@code handle} as the input info of the surface of {@code w}, unless it is what
+         * was last sent for that surface and is unchanged since.
+         */
+        private void setInputWindowInfoIfNeeded(WindowState w, InputWindowHandle handle,
+                boolean changed) {
+            final SurfaceControl surfaceControl =
+                    w.mWinAnimator.mSurfaceController.mSurfaceControl;
+            if (!changed && !w.mInputWindowHandleDirty
+                    && w.mAppliedInputSurfaceControl == surfaceControl
+                    && w.mAppliedInputWindowHandle == handle) {
+                return;
+            }
+            mInputTransaction.setInputWindowInfo(surfaceControl, handle);
+            w.mInputWindowHandleDirty = false;
+            w.mAppliedInputSurfaceControl = surfaceControl;
+            w.mAppliedInputWindowHandle = handle;
+            mInputTransactionChanged = true;
+            if (handle != mInvalidInputWindow) {
+                mHandlesChanged++;
             }
         }
     }
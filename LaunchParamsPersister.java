@@ -24,6 +24,7 @@ import android.os.Environment;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.AtomicFile;
+import android.util.Pair;
 import android.util.Slog;
 import android.util.SparseArray;
 import android.util.Xml;
@@ -385,6 +386,11 @@ class LaunchParamsPersister {
         public void updateFrom(LaunchParamsWriteQueueItem item) {
             mLaunchParams = item.mLaunchParams;
         }
+
+        @Override
+        public Object getKey() {
+            return Pair.create(mUserId, mComponentName);
+        }
     }
 
     private class CleanUpComponentQueueItem implements PersisterQueue.WriteQueueItem {
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm;
+
+import android.util.ArraySet;
+import android.util.AtomicFile;
+import android.util.Slog;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import libcore.io.IoUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the persisted recent tasks of one user, used by {@link TaskPersister} in
+ * place of one XML file per task.
+ *
+ * The log starts with a header, followed by records of the form
+ * {@code [int length][int crc32][byte type][int taskId][payload]}, where the length and the CRC
+ * cover everything after the CRC. A task record's payload is the task's XML; a removal record
+ * has no payload. The last record of a task wins. Reading stops at the first record that is
+ * truncated or fails its CRC, which is how a write torn by a crash is dropped. Once superseded
+ * records make up most of the log, it is compacted into a new file holding only the live tasks.
+ *
+ * Not thread-safe; {@link TaskPersister} serializes all access to the log file.
+ */
+class PersistedTaskLog {
+    private static final String TAG = TaskPersister.TAG;
+
+    /**
+     * Name of the log in the user's recent tasks directory. It must not contain '_', since
+     * {@link TaskPersister} parses whatever precedes one in a file name there as a task id.
+     */
+    static final String LOG_FILENAME = "tasks.log";
+
+    private static final int MAGIC = 0x52544c47; // "RTLG"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte RECORD_TASK = 1;
+    private static final byte RECORD_REMOVED = 2;
+    /** Size of the length and CRC preceding the part of a record they cover. */
+    private static final int RECORD_HEADER_SIZE = 8;
+    /** Size of the type and task id preceding the payload. */
+    private static final int RECORD_BODY_HEADER_SIZE = 5;
+
+    /** The log is compacted once it is this many times the size of its live records... */
+    private static final int COMPACTION_RATIO = 2;
+    /** ...and at least this large. */
+    private static final long MIN_COMPACTION_SIZE = 64 * 1024;
+
+    private final File mFile;
+    private FileOutputStream mOut;
+    private long mLength;
+    /** Length of the last record of each live task. */
+    private final SparseIntArray mLiveRecordLengths = new SparseIntArray();
+    private long mLiveLength;
+    private boolean mNeedsSync;
+
+    PersistedTaskLog(File file) {
+        mFile = file;
+    }
+
+    /**
+     * @return {@code true} if there is a log at {@code file}, including one interrupted while
+     *         being compacted.
+     */
+    static boolean exists(File file) {
+        return new AtomicFile(file).exists();
+    }
+
+    /**
+     * Reads the live tasks of the log at {@code file}.
+     *
+     * @return the XML of each live task, keyed by task id.
+     */
+    static SparseArray<byte[]> read(File file) throws IOException {
+        final SparseArray<byte[]> tasks = new SparseArray<>();
+        scan(file, tasks);
+        return tasks;
+    }
+
+    /**
+     * Reads the log at {@code file} into {@code outTasks}, using a memory map so records can be
+     * checked in place and only live payloads are copied.
+     *
+     * @return the length of the valid part of the log, 0 if it has no valid header.
+     */
+    private static long scan(File file, SparseArray<byte[]> outTasks) throws IOException {
+        final FileInputStream in;
+        try {
+            // Restores the log if we crashed while compacting it.
+            in = new AtomicFile(file).openRead();
+        } catch (FileNotFoundException e) {
+            return 0;
+        }
+        try {
+            final FileChannel channel = in.getChannel();
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Task log too large: " + size);
+            }
+            if (size < HEADER_SIZE) {
+                return 0;
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                Slog.w(TAG, "Ignoring task log with unknown header: " + file);
+                return 0;
+            }
+
+            final CRC32 crc = new CRC32();
+            long validLength = buffer.position();
+            while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                final int length = buffer.getInt();
+                final int checksum = buffer.getInt();
+                if (length < RECORD_BODY_HEADER_SIZE || length > buffer.remaining()) {
+                    break;
+                }
+                final ByteBuffer body = buffer.slice();
+                body.limit(length);
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+
+                final byte type = buffer.get();
+                final int taskId = buffer.getInt();
+                final int payloadLength = length - RECORD_BODY_HEADER_SIZE;
+                if (type == RECORD_TASK) {
+                    final byte[] payload = new byte[payloadLength];
+                    buffer.get(payload);
+                    outTasks.put(taskId, payload);
+                } else {
+                    if (type == RECORD_REMOVED) {
+                        outTasks.remove(taskId);
+                    }
+                    buffer.position(buffer.position() + payloadLength);
+                }
+                validLength = buffer.position();
+            }
+            if (validLength != size) {
+                Slog.w(TAG, "Dropping " + (size - validLength) + " bytes of torn or corrupt"
+                        + " records from " + file);
+            }
+            return validLength;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Opens the log for appending, dropping any torn record at its end.
+     */
+    private void open() throws IOException {
+        if (mOut != null) {
+            return;
+        }
+        final SparseArray<byte[]> tasks = new SparseArray<>();
+        final long validLength = scan(mFile, tasks);
+        mLiveRecordLengths.clear();
+        mLiveLength = 0;
+        for (int i = tasks.size() - 1; i >= 0; i--) {
+            final int recordLength = getRecordLength(tasks.valueAt(i).length);
+            mLiveRecordLengths.put(tasks.keyAt(i), recordLength);
+            mLiveLength += recordLength;
+        }
+
+        if (validLength == 0) {
+            mOut = new FileOutputStream(mFile, false /* append */);
+            mOut.write(ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).array());
+            mLength = HEADER_SIZE;
+            mNeedsSync = true;
+        } else {
+            mOut = new FileOutputStream(mFile, true /* append */);
+            if (mOut.getChannel().size() != validLength) {
+                // Anything appended after a torn record couldn't be read back.
+                mOut.getChannel().truncate(validLength);
+                mNeedsSync = true;
+            }
+            mLength = validLength;
+        }
+    }
+
+    boolean contains(int taskId) throws IOException {
+        open();
+        return mLiveRecordLengths.indexOfKey(taskId) >= 0;
+    }
+
+    /**
+     * Appends {@code taskXml} as the latest state of {@code taskId}. The record is only durable
+     * after the next {@link #sync()}.
+     */
+    void appendTask(int taskId, byte[] taskXml) throws IOException {
+        open();
+        final int recordLength = append(RECORD_TASK, taskId, taskXml);
+        mLiveLength += recordLength - mLiveRecordLengths.get(taskId, 0);
+        mLiveRecordLengths.put(taskId, recordLength);
+    }
+
+    /**
+     * Appends removal records for the live tasks that aren't in {@code persistentTaskIds}.
+     */
+    void removeTasksNotIn(ArraySet<Integer> persistentTaskIds) throws IOException {
+        if (mOut == null && !exists(mFile)) {
+            return;
+        }
+        open();
+        for (int i = mLiveRecordLengths.size() - 1; i >= 0; i--) {
+            final int taskId = mLiveRecordLengths.keyAt(i);
+            if (!persistentTaskIds.contains(taskId)) {
+                if (TaskPersister.DEBUG) Slog.d(TAG, "removeTasksNotIn: removing task=" + taskId);
+                append(RECORD_REMOVED, taskId, null /* payload */);
+                mLiveLength -= mLiveRecordLengths.valueAt(i);
+                mLiveRecordLengths.removeAt(i);
+            }
+        }
+    }
+
+    private int append(byte type, int taskId, byte[] payload) throws IOException {
+        final int payloadLength = payload != null ? payload.length : 0;
+        final int recordLength = getRecordLength(payloadLength);
+        final ByteBuffer record = ByteBuffer.allocate(recordLength);
+        record.position(RECORD_HEADER_SIZE);
+        record.put(type).putInt(taskId);
+        if (payload != null) {
+            record.put(payload);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, recordLength - RECORD_HEADER_SIZE);
+        record.putInt(0, recordLength - RECORD_HEADER_SIZE);
+        record.putInt(4, (int) crc.getValue());
+
+        mOut.write(record.array());
+        mLength += recordLength;
+        mNeedsSync = true;
+        return recordLength;
+    }
+
+    private static int getRecordLength(int payloadLength) {
+        return RECORD_HEADER_SIZE + RECORD_BODY_HEADER_SIZE + payloadLength;
+    }
+
+    /**
+     * Makes everything appended so far durable, compacting the log first if it has grown too
+     * large. Called once per batch of writes rather than per record.
+     */
+    void sync() throws IOException {
+        if (mOut == null || !mNeedsSync) {
+            return;
+        }
+        if (mLength >= MIN_COMPACTION_SIZE && mLength > COMPACTION_RATIO * mLiveLength) {
+            compact();
+        } else {
+            mOut.getFD().sync();
+        }
+        mNeedsSync = false;
+    }
+
+    private void compact() throws IOException {
+        close();
+        final SparseArray<byte[]> tasks = read(mFile);
+        if (TaskPersister.DEBUG) {
+            Slog.d(TAG, "compact: " + mFile + " length=" + mLength + " live=" + mLiveLength
+                    + " tasks=" + tasks.size());
+        }
+        final AtomicFile atomicFile = new AtomicFile(mFile);
+        FileOutputStream out = null;
+        try {
+            out = atomicFile.startWrite();
+            mOut = out;
+            mOut.write(ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).array());
+            mLength = HEADER_SIZE;
+            for (int i = 0; i < tasks.size(); i++) {
+                append(RECORD_TASK, tasks.keyAt(i), tasks.valueAt(i));
+            }
+            atomicFile.finishWrite(out);
+        } catch (IOException e) {
+            if (out != null) {
+                atomicFile.failWrite(out);
+            }
+            throw e;
+        } finally {
+            // Reopened, and rescanned, on the next append.
+            mOut = null;
+        }
+    }
+
+    void close() {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            if (mNeedsSync) {
+                mOut.getFD().sync();
+                mNeedsSync = false;
+            }
+        } catch (IOException e) {
+            Slog.e(TAG, "Failed to sync " + mFile, e);
+        }
+        IoUtils.closeQuietly(mOut);
+        mOut = null;
+    }
+
+    void delete() {
+        close();
+        new AtomicFile(mFile).delete();
+    }
+
+    @Override
+    public String toString() {
+        return "PersistedTaskLog{" + mFile + " length=" + mLength + " live=" + mLiveLength + "}";
+    }
+}
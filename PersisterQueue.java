@@ -18,17 +18,28 @@ package com.android.server.wm;
 
 import android.os.Process;
 import android.os.SystemClock;
+import android.util.Pair;
 import android.util.Slog;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.function.Predicate;
 
 /**
  * The common threading logic for persisters to use so that they can run in the same threads.
  * Methods in this class are synchronized on its instance, so caller could also synchronize on
  * its instance to perform modifications in items.
+ *
+ * Items are written in order, except that urgent items (see {@link WriteQueueItem#isUrgent()})
+ * are written before all others. Like a list, the queue holds an item without a key as many times
+ * as it is added. Items with a key (see {@link WriteQueueItem#getKey()}) are queued at most once
+ * per class and key, and are indexed, so they can be found, updated and removed without scanning
+ * the queue. Removing items by predicate only scans the items of the given class.
  */
 class PersisterQueue {
     private static final String TAG = "PersisterQueue";
@@ -49,6 +60,15 @@ class PersisterQueue {
     /** Special value for mWriteTime to mean don't wait, just write */
     private static final long FLUSH_QUEUE = -1;
 
+    /**
+     * When not flushing, wait at least this many times the average time an item takes to write
+     * between writes, so that slow storage isn't kept busy with writes.
+     */
+    private static final int WRITE_LATENCY_DELAY_FACTOR = 20;
+
+    /** Writes are never spaced further apart than this because of slow storage. */
+    private static final long MAX_INTER_WRITE_DELAY_MS = 4000;
+
     /** An {@link WriteQueueItem} that doesn't do anything. Used to trigger {@link
      * Listener#onPreProcessItem}. */
     static final WriteQueueItem EMPTY_ITEM = () -> { };
@@ -56,7 +76,16 @@ class PersisterQueue {
     private final long mInterWriteDelayMs;
     private final long mPreTaskDelayMs;
     private final LazyTaskWriterThread mLazyTaskWriterThread;
-    private final ArrayList<WriteQueueItem> mWriteQueue = new ArrayList<>();
+    @GuardedBy("this")
+    private final LinkedHashSet<QueuedItem> mUrgentWriteQueue = new LinkedHashSet<>();
+    @GuardedBy("this")
+    private final LinkedHashSet<QueuedItem> mWriteQueue = new LinkedHashSet<>();
+    /** The queued item of each class and key. */
+    @GuardedBy("this")
+    private final HashMap<Pair<Class<?>, Object>, QueuedItem> mKeyedItems = new HashMap<>();
+    /** The queued items of each class, in the order they were added. */
+    @GuardedBy("this")
+    private final HashMap<Class<?>, LinkedHashSet<QueuedItem>> mItemsByClass = new HashMap<>();
 
     private final ArrayList<Listener> mListeners = new ArrayList<>();
 
@@ -69,6 +98,9 @@ class PersisterQueue {
      */
     private long mNextWriteTime = 0;
 
+    /** Moving average of the time items take to process, only used on the writer thread. */
+    private float mAverageWriteLatencyMs;
+
     PersisterQueue() {
         this(INTER_WRITE_DELAY_MS, PRE_TASK_DELAY_MS);
     }
@@ -105,10 +137,26 @@ class PersisterQueue {
         mLazyTaskWriterThread.join();
     }
 
+    /**
+     * Adds an item to the end of the queue. An item with a key replaces the item of its class and
+     * key that is already queued, if any; use {@link #updateLastOrAddItem} to update that item in
+     * place instead.
+     */
     synchronized void addItem(WriteQueueItem item, boolean flush) {
-        mWriteQueue.add(item);
+        final Pair<Class<?>, Object> key = getIndexKey(item);
+        if (key != null) {
+            final QueuedItem replaced = mKeyedItems.get(key);
+            if (replaced != null) {
+                if (DEBUG) Slog.d(TAG, "Replacing " + replaced.mItem + " in write queue.");
+                getLane(replaced).remove(replaced);
+                unindexItem(replaced);
+            }
+        }
+        final QueuedItem queued = new QueuedItem(item);
+        getLane(queued).add(queued);
+        indexItem(queued, key);
 
-        if (flush || mWriteQueue.size() > MAX_WRITE_QUEUE_LENGTH) {
+        if (flush || getQueueSize() > MAX_WRITE_QUEUE_LENGTH) {
             mNextWriteTime = FLUSH_QUEUE;
         } else if (mNextWriteTime == 0) {
             mNextWriteTime = SystemClock.uptimeMillis() + mPreTaskDelayMs;
@@ -116,18 +164,47 @@ class PersisterQueue {
         notify();
     }
 
-    synchronized <T extends WriteQueueItem> T findLastItem(Predicate<T> predicate, Class<T> clazz) {
-        for (int i = mWriteQueue.size() - 1; i >= 0; --i) {
-            WriteQueueItem writeQueueItem = mWriteQueue.get(i);
-            if (clazz.isInstance(writeQueueItem)) {
-                T item = clazz.cast(writeQueueItem);
-                if (predicate.test(item)) {
-                    return item;
-                }
+    private int getQueueSize() {
+        return mUrgentWriteQueue.size() + mWriteQueue.size();
+    }
+
+    @GuardedBy("this")
+    private LinkedHashSet<QueuedItem> getLane(QueuedItem queued) {
+        return queued.mItem.isUrgent() ? mUrgentWriteQueue : mWriteQueue;
+    }
+
+    private static Pair<Class<?>, Object> getIndexKey(WriteQueueItem item) {
+        final Object key = item.getKey();
+        return key != null ? Pair.create(item.getClass(), key) : null;
+    }
+
+    /**
+     * Scans the queued items of {@code clazz} for the last one that {@code predicate} accepts. Only
+     * used for items without a key; keyed ones are looked up in {@link #mKeyedItems}.
+     */
+    @GuardedBy("this")
+    private <T extends WriteQueueItem> T findLastItem(Predicate<T> predicate, Class<T> clazz) {
+        final LinkedHashSet<QueuedItem> items = mItemsByClass.get(clazz);
+        if (items == null) {
+            return null;
+        }
+        T lastItem = null;
+        for (QueuedItem queued : items) {
+            final T item = clazz.cast(queued.mItem);
+            if (predicate.test(item)) {
+                lastItem = item;
             }
         }
+        return lastItem;
+    }
 
-        return null;
+    /**
+     * @return the last queued item of {@code clazz} whose {@link WriteQueueItem#getKey()} equals
+     *         {@code key}, or {@code null} if there is none.
+     */
+    synchronized <T extends WriteQueueItem> T findItem(Class<T> clazz, Object key) {
+        final QueuedItem queued = mKeyedItems.get(Pair.create(clazz, key));
+        return queued != null ? clazz.cast(queued.mItem) : null;
     }
 
     /**
@@ -135,7 +212,14 @@ class PersisterQueue {
      * of the queue if no such item is found.
      */
     synchronized <T extends WriteQueueItem> void updateLastOrAddItem(T item, boolean flush) {
-        final T itemToUpdate = findLastItem(item::matches, (Class<T>) item.getClass());
+        final Pair<Class<?>, Object> key = getIndexKey(item);
+        final T itemToUpdate;
+        if (key != null) {
+            final QueuedItem queued = mKeyedItems.get(key);
+            itemToUpdate = queued != null ? (T) queued.mItem : null;
+        } else {
+            itemToUpdate = findLastItem(item::matches, (Class<T>) item.getClass());
+        }
         if (itemToUpdate == null) {
             addItem(item, flush);
         } else {
@@ -146,20 +230,78 @@ class PersisterQueue {
     }
 
     /**
-     * Removes all items with which given predicate returns {@code true}.
+     * Removes all items of {@code clazz} with which given predicate returns {@code true}. Only the
+     * queued items of {@code clazz} are scanned; use {@link #removeItem} to remove an item by its
+     * key without scanning.
      */
     synchronized <T extends WriteQueueItem> void removeItems(Predicate<T> predicate,
             Class<T> clazz) {
-        for (int i = mWriteQueue.size() - 1; i >= 0; --i) {
-            WriteQueueItem writeQueueItem = mWriteQueue.get(i);
-            if (clazz.isInstance(writeQueueItem)) {
-                T item = clazz.cast(writeQueueItem);
-                if (predicate.test(item)) {
-                    if (DEBUG) Slog.d(TAG, "Removing " + item + " from write queue.");
-                    mWriteQueue.remove(i);
+        final LinkedHashSet<QueuedItem> items = mItemsByClass.get(clazz);
+        if (items == null) {
+            return;
+        }
+        final Iterator<QueuedItem> it = items.iterator();
+        while (it.hasNext()) {
+            final QueuedItem queued = it.next();
+            final T item = clazz.cast(queued.mItem);
+            if (predicate.test(item)) {
+                if (DEBUG) Slog.d(TAG, "Removing " + item + " from write queue.");
+                it.remove();
+                getLane(queued).remove(queued);
+                final Pair<Class<?>, Object> key = getIndexKey(item);
+                if (key != null) {
+                    mKeyedItems.remove(key);
                 }
             }
         }
+        if (items.isEmpty()) {
+            mItemsByClass.remove(clazz);
+        }
+    }
+
+    /**
+     * Removes the item of {@code clazz} whose {@link WriteQueueItem#getKey()} equals {@code key}.
+     */
+    synchronized <T extends WriteQueueItem> void removeItem(Class<T> clazz, Object key) {
+        final QueuedItem queued = mKeyedItems.remove(Pair.create(clazz, key));
+        if (queued != null) {
+            if (DEBUG) Slog.d(TAG, "Removing " + queued.mItem + " from write queue.");
+            getLane(queued).remove(queued);
+            unindexItem(queued);
+        }
+    }
+
+    @GuardedBy("this")
+    private void indexItem(QueuedItem queued, Pair<Class<?>, Object> key) {
+        LinkedHashSet<QueuedItem> items = mItemsByClass.get(queued.mItem.getClass());
+        if (items == null) {
+            items = new LinkedHashSet<>();
+            mItemsByClass.put(queued.mItem.getClass(), items);
+        }
+        items.add(queued);
+        if (key != null) {
+            mKeyedItems.put(key, queued);
+        }
+    }
+
+    @GuardedBy("this")
+    private void unindexItem(QueuedItem queued) {
+        final LinkedHashSet<QueuedItem> items = mItemsByClass.get(queued.mItem.getClass());
+        if (items != null && items.remove(queued) && items.isEmpty()) {
+            mItemsByClass.remove(queued.mItem.getClass());
+        }
+        final Pair<Class<?>, Object> key = getIndexKey(queued.mItem);
+        if (key != null && mKeyedItems.get(key) == queued) {
+            mKeyedItems.remove(key);
+        }
+    }
+
+    /**
+     * @return the delay before the next write when not flushing.
+     */
+    private long getInterWriteDelayMs() {
+        final long latencyDelayMs = (long) (mAverageWriteLatencyMs * WRITE_LATENCY_DELAY_FACTOR);
+        return Math.max(mInterWriteDelayMs, Math.min(latencyDelayMs, MAX_INTER_WRITE_DELAY_MS));
     }
 
     synchronized void flush() {
@@ -205,14 +347,15 @@ class PersisterQueue {
         synchronized (this) {
             if (mNextWriteTime != FLUSH_QUEUE) {
                 // The next write we don't have to wait so long.
-                mNextWriteTime = SystemClock.uptimeMillis() + mInterWriteDelayMs;
+                final long interWriteDelayMs = getInterWriteDelayMs();
+                mNextWriteTime = SystemClock.uptimeMillis() + interWriteDelayMs;
                 if (DEBUG) {
-                    Slog.d(TAG, "Next write time may be in " + mInterWriteDelayMs
+                    Slog.d(TAG, "Next write time may be in " + interWriteDelayMs
                             + " msec. (" + mNextWriteTime + ")");
                 }
             }
 
-            while (mWriteQueue.isEmpty()) {
+            while (getQueueSize() == 0) {
                 if (mNextWriteTime != 0) {
                     mNextWriteTime = 0; // idle.
                     notify(); // May need to wake up flush().
@@ -227,12 +370,17 @@ class PersisterQueue {
                 // Invariant: mNextWriteTime is either FLUSH_QUEUE or PRE_WRITE_DELAY_MS
                 // from now.
             }
-            item = mWriteQueue.remove(0);
+            final Iterator<QueuedItem> it = (!mUrgentWriteQueue.isEmpty()
+                    ? mUrgentWriteQueue : mWriteQueue).iterator();
+            final QueuedItem queued = it.next();
+            it.remove();
+            unindexItem(queued);
+            item = queued.mItem;
 
             long now = SystemClock.uptimeMillis();
             if (DEBUG) {
                 Slog.d(TAG, "LazyTaskWriter: now=" + now + " mNextWriteTime=" + mNextWriteTime
-                        + " mWriteQueue.size=" + mWriteQueue.size());
+                        + " mWriteQueue.size=" + getQueueSize());
             }
             while (now < mNextWriteTime) {
                 if (DEBUG) {
@@ -245,7 +393,24 @@ class PersisterQueue {
             // Got something to do.
         }
 
+        final long startTime = SystemClock.uptimeMillis();
         item.process();
+        if (item != EMPTY_ITEM) {
+            final long latencyMs = SystemClock.uptimeMillis() - startTime;
+            mAverageWriteLatencyMs += (latencyMs - mAverageWriteLatencyMs) / 4;
+        }
+    }
+
+    /**
+     * An entry of the queue. Compared by identity, so that the same item added twice, such as
+     * {@link #EMPTY_ITEM}, is queued twice rather than collapsed into one entry of the lane.
+     */
+    private static final class QueuedItem {
+        final WriteQueueItem mItem;
+
+        QueuedItem(WriteQueueItem item) {
+            mItem = item;
+        }
     }
 
     interface WriteQueueItem<T extends WriteQueueItem<T>> {
@@ -256,6 +421,22 @@ class PersisterQueue {
         default boolean matches(T item) {
             return false;
         }
+
+        /**
+         * @return the key of what this item writes, or {@code null} if it has none. Items of the
+         *         same class with equal keys must {@link #matches} each other.
+         */
+        default Object getKey() {
+            return null;
+        }
+
+        /**
+         * @return {@code true} if this item should be written before non-urgent items. Items of
+         *         the same class with equal keys must agree.
+         */
+        default boolean isUrgent() {
+            return false;
+        }
     }
 
     interface Listener {
@@ -288,7 +469,7 @@ class PersisterQueue {
                 while (true) {
                     final boolean probablyDone;
                     synchronized (PersisterQueue.this) {
-                        probablyDone = mWriteQueue.isEmpty();
+                        probablyDone = getQueueSize() == 0;
                     }
 
                     for (int i = mListeners.size() - 1; i >= 0; --i) {
@@ -43,6 +43,7 @@ import static com.android.server.wm.ActivityTaskManagerDebugConfig.POSTFIX_TASKS
 import static com.android.server.wm.ActivityTaskManagerDebugConfig.TAG_ATM;
 import static com.android.server.wm.ActivityTaskManagerDebugConfig.TAG_WITH_CLASS_NAME;
 
+import android.annotation.Nullable;
 import android.app.ActivityManager;
 import android.app.ActivityTaskManager;
 import android.app.AppGlobals;
@@ -435,6 +436,26 @@ class RecentTasks {
         }
     }
 
+    /**
+     * Loads the persistent recentTasks for {@code userId} like {@link #loadUserRecentsLocked}, but
+     * reads the task files from storage without holding the global lock. Must be called without
+     * the global lock held.
+     *
+     * @param userId the user Id
+     */
+    void loadUserRecents(int userId) {
+        synchronized (mService.mGlobalLock) {
+            if (mUsersWithRecentsLoaded.get(userId)) {
+                // User already loaded, return early
+                return;
+            }
+        }
+        final TaskPersister.UserTaskFiles taskFiles = mTaskPersister.readTaskFilesForUser(userId);
+        synchronized (mService.mGlobalLock) {
+            loadUserRecentsLocked(userId, taskFiles);
+        }
+    }
+
     /**
      * Loads the persistent recentTasks for {@code userId} into this list from persistent storage.
      * Does nothing if they are already loaded.
@@ -442,6 +463,15 @@ class RecentTasks {
      * @param userId the user Id
      */
     void loadUserRecentsLocked(int userId) {
+        loadUserRecentsLocked(userId, null /* taskFiles */);
+    }
+
+    /**
+     * @param taskFiles the task files of {@code userId} if they were already read, or {@code null}
+     *                  to read them now.
+     */
+    private void loadUserRecentsLocked(int userId,
+            @Nullable TaskPersister.UserTaskFiles taskFiles) {
         if (mUsersWithRecentsLoaded.get(userId)) {
             // User already loaded, return early
             return;
@@ -459,7 +489,9 @@ class RecentTasks {
         }
 
         Slog.i(TAG, "Loading recents for user " + userId + " into memory.");
-        List<TaskRecord> tasks = mTaskPersister.restoreTasksForUserLocked(userId, preaddedTasks);
+        List<TaskRecord> tasks = taskFiles != null
+                ? mTaskPersister.restoreTasksForUserLocked(taskFiles, preaddedTasks)
+                : mTaskPersister.restoreTasksForUserLocked(userId, preaddedTasks);
         mTasks.addAll(tasks);
         cleanupLocked(userId);
         mUsersWithRecentsLoaded.put(userId, true);
@@ -44,6 +44,8 @@ import android.view.IRecentsAnimationRunner;
 
 import com.android.server.wm.RecentsAnimationController.RecentsAnimationCallbacks;
 
+import java.util.ArrayList;
+
 /**
  * Manages the recents animation, including the reordering of the stacks for the transition and
  * cleanup. See {@link com.android.server.wm.RecentsAnimationController}.
@@ -247,6 +249,9 @@ class RecentsAnimation implements RecentsAnimationCallbacks,
                     this, mDefaultDisplay.mDisplayId,
                     mStackSupervisor.mRecentTasks.getRecentTaskIds());
 
+            // Get the snapshots recents is about to show off the disk while the gesture starts
+            prefetchRecentTaskSnapshots();
+
             // If we updated the launch-behind state, update the visibility of the activities after
             // we fetch the visible tasks to be controlled by the animation
             mService.mRootActivityContainer.ensureActivitiesVisible(null, 0, PRESERVE_WINDOWS);
@@ -274,6 +279,7 @@ class RecentsAnimation implements RecentsAnimationCallbacks,
 
             // Unregister for stack order changes
             mDefaultDisplay.unregisterStackOrderChangedListener(this);
+            mWindowManager.mTaskSnapshotController.cancelSnapshotPrefetch();
 
             final RecentsAnimationController controller =
                     mWindowManager.getRecentsAnimationController();
@@ -440,6 +446,23 @@ class RecentsAnimation implements RecentsAnimationCallbacks,
         }
     }
 
+    /**
+     * Starts loading the snapshots of the most recent tasks into the snapshot cache, in the order
+     * recents shows them.
+     */
+    private void prefetchRecentTaskSnapshots() {
+        final ArrayList<TaskRecord> recentTasks = mStackSupervisor.mRecentTasks.getRawTasks();
+        final int count = Math.min(recentTasks.size(), TaskSnapshotPrefetcher.MAX_PREFETCH_TASKS);
+        final int[] taskIds = new int[count];
+        final int[] userIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            final TaskRecord task = recentTasks.get(i);
+            taskIds[i] = task.taskId;
+            userIds[i] = task.userId;
+        }
+        mWindowManager.mTaskSnapshotController.prefetchSnapshots(taskIds, userIds);
+    }
+
     private void startRecentsActivityInBackground(String reason) {
         final ActivityOptions options = ActivityOptions.makeBasic();
         options.setLaunchActivityType(mTargetActivityType);
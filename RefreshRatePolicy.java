@@ -16,20 +16,59 @@
 
 package com.android.server.wm;
 
+import android.os.SystemClock;
 import android.util.ArraySet;
+import android.util.TimeUtils;
 import android.view.Display.Mode;
 import android.view.DisplayInfo;
 
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
 /**
  * Policy to select a lower refresh rate for the display if applicable.
+ *
+ * The preferred mode of a display is decided once per surface placement traversal from votes:
+ * each displayed window votes through {@link #addWindowVote} from top to bottom, and
+ * {@link ScrollMonitorService} can hold a scroll vote through {@link #setScrollModeId}. The
+ * topmost window with a preference wins; the scroll vote only applies when no window has a
+ * preference and no window is animating. Each change of the decision is kept in a short audit
+ * trail that is printed by {@code dumpsys window refresh}.
  */
 class RefreshRatePolicy {
 
+    /** The window or scroll has no preference. */
+    static final int REASON_NONE = 0;
+    /** A window is animating and the animation should run at the default refresh rate. */
+    static final int REASON_ANIMATING = 1;
+    /** The app asked for a refresh rate or display mode. */
+    static final int REASON_APP_REQUEST = 2;
+    /** The app is using a package (e.g. the camera) that can't run at high refresh rate. */
+    static final int REASON_NON_HIGH_REFRESH_RATE_PACKAGE = 3;
+    /** The app is in {@link HighRefreshRateBlacklist}. */
+    static final int REASON_BLACKLISTED = 4;
+    /** {@link ScrollMonitorService} lowered the refresh rate for a fling. */
+    static final int REASON_SCROLL = 5;
+
+    private static final int MAX_DECISION_HISTORY = 20;
+
     private final int mLowRefreshRateId;
     private final ArraySet<String> mNonHighRefreshRatePackages = new ArraySet<>();
     private final HighRefreshRateBlacklist mHighRefreshRateBlacklist;
     private final WindowManagerService mWmService;
 
+    private int mScrollModeId;
+
+    // Votes of the current traversal.
+    private int mVoteModeId;
+    private int mVoteReason;
+    private WindowState mVoteWindow;
+    private int mScrollBlockedReason;
+
+    private int mLastModeId;
+    private int mLastReason;
+    private final ArrayDeque<Decision> mDecisions = new ArrayDeque<>();
+
     RefreshRatePolicy(WindowManagerService wmService, DisplayInfo displayInfo,
             HighRefreshRateBlacklist blacklist) {
         mLowRefreshRateId = findLowRefreshRateModeId(displayInfo);
@@ -64,29 +103,171 @@ class RefreshRatePolicy {
     }
 
     int getPreferredModeId(WindowState w) {
+        switch (getVoteReason(w)) {
+            case REASON_APP_REQUEST:
+                return w.mAttrs.preferredDisplayModeId;
+            case REASON_NON_HIGH_REFRESH_RATE_PACKAGE:
+            case REASON_BLACKLISTED:
+                return mLowRefreshRateId;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return why {@code w} has a refresh rate preference, or {@link #REASON_NONE}.
+     */
+    int getVoteReason(WindowState w) {
 
         // If app is animating, it's not able to control refresh rate because we want the animation
         // to run in default refresh rate.
         if (w.isAnimating()) {
-            return 0;
+            return REASON_ANIMATING;
         }
 
         // If app requests a certain refresh rate or mode, don't override it.
         if (w.mAttrs.preferredRefreshRate != 0 || w.mAttrs.preferredDisplayModeId != 0) {
-            return w.mAttrs.preferredDisplayModeId;
+            return REASON_APP_REQUEST;
         }
 
         final String packageName = w.getOwningPackage();
 
         // If app is using Camera, force it to default (lower) refresh rate.
         if (mNonHighRefreshRatePackages.contains(packageName)) {
-            return mLowRefreshRateId;
+            return REASON_NON_HIGH_REFRESH_RATE_PACKAGE;
         }
 
         // If app is blacklisted using higher refresh rate, return default (lower) refresh rate
         if (mHighRefreshRateBlacklist.isBlacklisted(packageName)) {
-            return mLowRefreshRateId;
+            return REASON_BLACKLISTED;
+        }
+        return REASON_NONE;
+    }
+
+    /**
+     * Sets the mode {@link ScrollMonitorService} wants for the display, or 0 to withdraw its vote.
+     * Takes effect at the next traversal.
+     */
+    void setScrollModeId(int modeId) {
+        if (mScrollModeId != modeId) {
+            mScrollModeId = modeId;
+            mWmService.requestTraversal();
+        }
+    }
+
+    int getScrollModeId() {
+        return mScrollModeId;
+    }
+
+    /**
+     * @return {@code true} if {@code w} has its own preference, which would override a scroll
+     *         vote while it is on top.
+     */
+    boolean overridesScrollVote(WindowState w) {
+        return getVoteReason(w) != REASON_NONE;
+    }
+
+    /** Starts collecting the votes of a traversal. */
+    void beginVotes() {
+        mVoteModeId = 0;
+        mVoteReason = REASON_NONE;
+        mVoteWindow = null;
+        mScrollBlockedReason = REASON_NONE;
+    }
+
+    /**
+     * Adds the vote of a displayed window. Windows must be added from top to bottom.
+     */
+    void addWindowVote(WindowState w) {
+        if (mVoteReason != REASON_NONE) {
+            return;
+        }
+        final int reason = getVoteReason(w);
+        if (reason == REASON_NONE) {
+            return;
+        }
+        final int modeId = getPreferredModeId(w);
+        if (modeId != 0) {
+            mVoteModeId = modeId;
+            mVoteReason = reason;
+            mVoteWindow = w;
+        } else if (mScrollBlockedReason == REASON_NONE) {
+            // Animating windows and apps asking for a refresh rate rather than a mode don't pick
+            // a mode, but still keep the scroll vote from changing the rate under them.
+            mScrollBlockedReason = reason;
+            mVoteWindow = w;
+        }
+    }
+
+    /**
+     * Finishes collecting votes and decides the preferred mode for the traversal.
+     *
+     * @return the preferred display mode id, or 0 for no preference.
+     */
+    int finishVotes() {
+        int modeId = mVoteModeId;
+        int reason = mVoteReason;
+        if (reason == REASON_NONE) {
+            if (mScrollBlockedReason != REASON_NONE) {
+                reason = mScrollBlockedReason;
+            } else if (mScrollModeId != 0) {
+                modeId = mScrollModeId;
+                reason = REASON_SCROLL;
+            }
+        }
+        if (modeId != mLastModeId || reason != mLastReason) {
+            mLastModeId = modeId;
+            mLastReason = reason;
+            if (mDecisions.size() >= MAX_DECISION_HISTORY) {
+                mDecisions.removeFirst();
+            }
+            mDecisions.addLast(new Decision(SystemClock.uptimeMillis(), modeId, reason,
+                    reason == REASON_SCROLL ? null : mVoteWindow));
+        }
+        mVoteWindow = null;
+        return modeId;
+    }
+
+    static String reasonToString(int reason) {
+        switch (reason) {
+            case REASON_NONE: return "NONE";
+            case REASON_ANIMATING: return "ANIMATING";
+            case REASON_APP_REQUEST: return "APP_REQUEST";
+            case REASON_NON_HIGH_REFRESH_RATE_PACKAGE: return "NON_HIGH_REFRESH_RATE_PACKAGE";
+            case REASON_BLACKLISTED: return "BLACKLISTED";
+            case REASON_SCROLL: return "SCROLL";
+            default: return Integer.toString(reason);
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "RefreshRatePolicy");
+        prefix += "  ";
+        pw.println(prefix + "mLowRefreshRateId=" + mLowRefreshRateId
+                + " mScrollModeId=" + mScrollModeId
+                + " mNonHighRefreshRatePackages=" + mNonHighRefreshRatePackages);
+        pw.println(prefix + "decisions:");
+        final long now = SystemClock.uptimeMillis();
+        for (Decision decision : mDecisions) {
+            pw.print(prefix + "  ");
+            TimeUtils.formatDuration(decision.mTime, now, pw);
+            pw.println(" modeId=" + decision.mModeId + " reason="
+                    + reasonToString(decision.mReason)
+                    + (decision.mWindow != null ? " window=" + decision.mWindow : ""));
+        }
+    }
+
+    private static final class Decision {
+        final long mTime;
+        final int mModeId;
+        final int mReason;
+        final String mWindow;
+
+        Decision(long time, int modeId, int reason, WindowState window) {
+            mTime = time;
+            mModeId = modeId;
+            mReason = reason;
+            mWindow = window != null ? window.toString() : null;
         }
-        return 0;
     }
 }
@@ -604,7 +604,9 @@ class RootWindowContainer extends WindowContainer<DisplayContent>
 
         if (SHOW_LIGHT_TRANSACTIONS) Slog.i(TAG,
                 ">>> OPEN TRANSACTION performLayoutAndPlaceSurfaces");
+        final SurfacePlacementProfiler profiler = surfacePlacer.getProfiler();
         Trace.traceBegin(TRACE_TAG_WINDOW_MANAGER, "applySurfaceChanges");
+        profiler.beginPhase(SurfacePlacementProfiler.PHASE_SURFACE_CHANGES);
         mWmService.openSurfaceTransaction();
         try {
             applySurfaceChangesTransaction(recoveringMemory);
@@ -612,13 +614,16 @@ class RootWindowContainer extends WindowContainer<DisplayContent>
             Slog.wtf(TAG, "Unhandled exception in Window Manager", e);
         } finally {
             mWmService.closeSurfaceTransaction("performLayoutAndPlaceSurfaces");
+            profiler.endPhase(SurfacePlacementProfiler.PHASE_SURFACE_CHANGES);
             Trace.traceEnd(TRACE_TAG_WINDOW_MANAGER);
             if (SHOW_LIGHT_TRANSACTIONS) Slog.i(TAG,
                     "<<< CLOSE TRANSACTION performLayoutAndPlaceSurfaces");
         }
+        profiler.beginPhase(SurfacePlacementProfiler.PHASE_ANIMATOR);
         mWmService.mAnimator.executeAfterPrepareSurfacesRunnables();
 
         checkAppTransitionReady(surfacePlacer);
+        profiler.endPhase(SurfacePlacementProfiler.PHASE_ANIMATOR);
 
         // Defer starting the recents animation until the wallpaper has drawn
         final RecentsAnimationController recentsAnimationController =
@@ -754,11 +759,13 @@ class RootWindowContainer extends WindowContainer<DisplayContent>
             mChildren.get(displayNdx).checkCompleteDeferredRemoval();
         }
 
+        profiler.beginPhase(SurfacePlacementProfiler.PHASE_INPUT);
         forAllDisplays(dc -> {
             dc.getInputMonitor().updateInputWindowsLw(true /*force*/);
             dc.updateSystemGestureExclusion();
             dc.updateTouchExcludeRegion();
         });
+        profiler.endPhase(SurfacePlacementProfiler.PHASE_INPUT);
 
         // Check to see if we are now in a state where the screen should
         // be enabled, because the window obscured flags have changed.
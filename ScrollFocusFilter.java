@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm;
+
+import static android.view.WindowManager.LayoutParams.TYPE_APPLICATION;
+import static android.view.WindowManager.LayoutParams.TYPE_BASE_APPLICATION;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.pm.PackageManagerInternal;
+import android.provider.DeviceConfig;
+import android.util.ArraySet;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.os.BackgroundThread;
+import com.android.server.LocalServices;
+import com.android.server.wm.HighRefreshRateBlacklist.DeviceConfigInterface;
+
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Decides which focused windows {@link ScrollMonitorService} may change the frame rate of.
+ *
+ * Only activity windows are eligible, and never the home activity's. Packages can be excluded
+ * with a deny list, and an allow list, if set, restricts eligibility to the packages on it. Both
+ * lists come from {@link DeviceConfig}. The result is cached per {@link AppWindowToken}, since
+ * focus changes are frequent and the same activities gain focus over and over. The cache is
+ * dropped when the lists change, and entries of a package when it is installed or removed.
+ */
+class ScrollFocusFilter {
+    @VisibleForTesting
+    static final String KEY_SCROLL_MONITOR_ALLOWLIST = "scroll_monitor_allowlist";
+    @VisibleForTesting
+    static final String KEY_SCROLL_MONITOR_DENYLIST = "scroll_monitor_denylist";
+
+    private final DeviceConfigInterface mDeviceConfig;
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final ArraySet<String> mAllowedPackages = new ArraySet<>();
+    @GuardedBy("mLock")
+    private final ArraySet<String> mDeniedPackages = new ArraySet<>();
+    /** Tokens are held weakly so the cache never outlives the activities in it. */
+    @GuardedBy("mLock")
+    private final WeakHashMap<AppWindowToken, Boolean> mEligibleTokens = new WeakHashMap<>();
+
+    static ScrollFocusFilter create() {
+        return new ScrollFocusFilter(new DeviceConfigInterface() {
+            @Override
+            public @Nullable String getProperty(@NonNull String namespace, @NonNull String name) {
+                return DeviceConfig.getProperty(namespace, name);
+            }
+            public void addOnPropertyChangedListener(@NonNull String namespace,
+                    @NonNull Executor executor,
+                    @NonNull DeviceConfig.OnPropertyChangedListener listener) {
+                DeviceConfig.addOnPropertyChangedListener(namespace, executor, listener);
+            }
+        });
+    }
+
+    @VisibleForTesting
+    ScrollFocusFilter(DeviceConfigInterface deviceConfig) {
+        mDeviceConfig = deviceConfig;
+        deviceConfig.addOnPropertyChangedListener(DeviceConfig.NAMESPACE_WINDOW_MANAGER,
+                BackgroundThread.getExecutor(), new OnPropertyChangedListener());
+        updatePackageLists();
+    }
+
+    void onSystemReady() {
+        final PackageManagerInternal pmi = LocalServices.getService(PackageManagerInternal.class);
+        if (pmi != null) {
+            pmi.getPackageList(new PackageListObserver());
+        }
+    }
+
+    private void updatePackageLists() {
+        final String allowlist = mDeviceConfig.getProperty(
+                DeviceConfig.NAMESPACE_WINDOW_MANAGER, KEY_SCROLL_MONITOR_ALLOWLIST);
+        final String denylist = mDeviceConfig.getProperty(
+                DeviceConfig.NAMESPACE_WINDOW_MANAGER, KEY_SCROLL_MONITOR_DENYLIST);
+        synchronized (mLock) {
+            parsePackages(allowlist, mAllowedPackages);
+            parsePackages(denylist, mDeniedPackages);
+            mEligibleTokens.clear();
+        }
+    }
+
+    private static void parsePackages(@Nullable String property, ArraySet<String> outPackages) {
+        outPackages.clear();
+        if (property == null) {
+            return;
+        }
+        for (String pkg : property.split(",")) {
+            final String pkgName = pkg.trim();
+            if (!pkgName.isEmpty()) {
+                outPackages.add(pkgName);
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the frame rate of {@code w} may be changed while it has focus.
+     */
+    boolean isEligible(@NonNull WindowState w) {
+        final int type = w.mAttrs.type;
+        final AppWindowToken token = w.mAppToken;
+        if ((type != TYPE_BASE_APPLICATION && type != TYPE_APPLICATION) || token == null) {
+            return false;
+        }
+        synchronized (mLock) {
+            Boolean eligible = mEligibleTokens.get(token);
+            if (eligible == null) {
+                final String packageName = w.getOwningPackage();
+                eligible = !token.isActivityTypeHome()
+                        && !mDeniedPackages.contains(packageName)
+                        && (mAllowedPackages.isEmpty() || mAllowedPackages.contains(packageName));
+                mEligibleTokens.put(token, eligible);
+            }
+            return eligible;
+        }
+    }
+
+    private void invalidatePackage(String packageName) {
+        synchronized (mLock) {
+            final Iterator<AppWindowToken> it = mEligibleTokens.keySet().iterator();
+            while (it.hasNext()) {
+                final ActivityRecord r = it.next().mActivityRecord;
+                if (r == null || packageName.equals(r.packageName)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.println(prefix + "ScrollFocusFilter: " + mEligibleTokens.size() + " cached");
+            pw.println(prefix + "  Allowed packages:");
+            for (String pkg : mAllowedPackages) {
+                pw.println(prefix + "    " + pkg);
+            }
+            pw.println(prefix + "  Denied packages:");
+            for (String pkg : mDeniedPackages) {
+                pw.println(prefix + "    " + pkg);
+            }
+        }
+    }
+
+    private class OnPropertyChangedListener implements DeviceConfig.OnPropertyChangedListener {
+        public void onPropertyChanged(@NonNull String namespace, @NonNull String name,
+                @Nullable String value) {
+            if (KEY_SCROLL_MONITOR_ALLOWLIST.equals(name)
+                    || KEY_SCROLL_MONITOR_DENYLIST.equals(name)) {
+                updatePackageLists();
+            }
+        }
+    }
+
+    private class PackageListObserver implements PackageManagerInternal.PackageListObserver {
+        @Override
+        public void onPackageAdded(String packageName, int uid) {
+            invalidatePackage(packageName);
+        }
+
+        @Override
+        public void onPackageRemoved(String packageName, int uid) {
+            invalidatePackage(packageName);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm;
+
+import android.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Immutable mapping from fling velocity to frame rate used by {@link ScrollMonitorService}.
+ *
+ * The model is a list of calibration points sorted by velocity. Velocities between two points
+ * are mapped by linear interpolation; velocities outside the calibrated range are clamped to the
+ * first or last point. Lookups only touch primitive arrays so they can run on the input thread.
+ */
+class ScrollFrameRateModel {
+    private static final float[] DEFAULT_VELOCITIES =
+            {1000, 2000, 4000, 6000, 8000, 10000, 12500, 15000, 17500, 20000};
+    private static final float[] DEFAULT_FRAME_RATES =
+            {22.5f, 30.0f, 30.0f, 45.0f, 60.0f, 60.0f, 60.0f, 60.0f, 60.0f, 60.0f};
+
+    private static final ScrollFrameRateModel DEFAULT =
+            new ScrollFrameRateModel(DEFAULT_VELOCITIES, DEFAULT_FRAME_RATES);
+
+    /** Calibration velocities in px/s, strictly ascending. */
+    private final float[] mVelocities;
+    /** Frame rate for the velocity at the same index. */
+    private final float[] mFrameRates;
+
+    private ScrollFrameRateModel(float[] velocities, float[] frameRates) {
+        mVelocities = velocities;
+        mFrameRates = frameRates;
+    }
+
+    static ScrollFrameRateModel getDefault() {
+        return DEFAULT;
+    }
+
+    /** Creates a model that maps every velocity to {@code frameRate}. */
+    static ScrollFrameRateModel createFixed(float frameRate) {
+        return new ScrollFrameRateModel(new float[] {0}, new float[] {frameRate});
+    }
+
+    /**
+     * Creates a model from calibration points.
+     *
+     * @param velocities velocities in px/s, in any order
+     * @param frameRates frame rate for the velocity at the same index
+     * @return the model, or {@code null} if the points are empty, mismatched, contain duplicate or
+     *         negative velocities, or non-positive frame rates.
+     */
+    @Nullable
+    static ScrollFrameRateModel create(float[] velocities, float[] frameRates) {
+        if (velocities == null || frameRates == null || velocities.length == 0
+                || velocities.length != frameRates.length) {
+            return null;
+        }
+        final int n = velocities.length;
+        final long[] order = new long[n];
+        for (int i = 0; i < n; i++) {
+            if (!(velocities[i] >= 0) || !(frameRates[i] > 0)) {
+                return null;
+            }
+            // Velocities are non-negative, so their raw bits sort in the same order.
+            order[i] = ((long) Float.floatToIntBits(velocities[i]) << 32) | i;
+        }
+        Arrays.sort(order);
+        final float[] sortedVelocities = new float[n];
+        final float[] sortedFrameRates = new float[n];
+        for (int i = 0; i < n; i++) {
+            final int index = (int) order[i];
+            sortedVelocities[i] = velocities[index];
+            sortedFrameRates[i] = frameRates[index];
+            if (i > 0 && sortedVelocities[i] == sortedVelocities[i - 1]) {
+                return null;
+            }
+        }
+        return new ScrollFrameRateModel(sortedVelocities, sortedFrameRates);
+    }
+
+    /**
+     * Creates a model from a map of velocity to frame rate, as received over
+     * {@link android.view.IScrollMonitorService#setModel}.
+     *
+     * @return the model, or {@code null} if the map is not a valid model.
+     */
+    @Nullable
+    static ScrollFrameRateModel fromMap(@Nullable Map<?, ?> speedToFrameRate) {
+        if (speedToFrameRate == null) {
+            return null;
+        }
+        final int n = speedToFrameRate.size();
+        final float[] velocities = new float[n];
+        final float[] frameRates = new float[n];
+        int i = 0;
+        for (Map.Entry<?, ?> entry : speedToFrameRate.entrySet()) {
+            if (!(entry.getKey() instanceof Number) || !(entry.getValue() instanceof Number)) {
+                return null;
+            }
+            velocities[i] = ((Number) entry.getKey()).floatValue();
+            frameRates[i] = ((Number) entry.getValue()).floatValue();
+            i++;
+        }
+        return create(velocities, frameRates);
+    }
+
+    int size() {
+        return mVelocities.length;
+    }
+
+    float getVelocityAt(int index) {
+        return mVelocities[index];
+    }
+
+    float getFrameRateAt(int index) {
+        return mFrameRates[index];
+    }
+
+    /**
+     * @param velocity the absolute fling velocity in px/s
+     * @return the interpolated frame rate for {@code velocity}. The result is not quantized to
+     *         the rates supported by the display.
+     */
+    float getFrameRate(float velocity) {
+        final float[] velocities = mVelocities;
+        final int last = velocities.length - 1;
+        if (velocity <= velocities[0]) {
+            return mFrameRates[0];
+        }
+        if (velocity >= velocities[last]) {
+            return mFrameRates[last];
+        }
+        final int index = Arrays.binarySearch(velocities, velocity);
+        if (index >= 0) {
+            return mFrameRates[index];
+        }
+        // The insertion point is in (0, last] since velocity is strictly inside the range.
+        final int hi = -index - 1;
+        final int lo = hi - 1;
+        final float fraction = (velocity - velocities[lo]) / (velocities[hi] - velocities[lo]);
+        return mFrameRates[lo] + fraction * (mFrameRates[hi] - mFrameRates[lo]);
+    }
+
+    /**
+     * Creates a copy of this model with the frame rate at {@code velocity} moved by {@code delta}.
+     * The change is split between the two calibration points around {@code velocity}, weighted
+     * by how close each one is, and the result is clamped to {@code [minFrameRate, maxFrameRate]}.
+     * A point is never lowered to more than {@code maxDrop} below the rate of {@code base} at its
+     * velocity, so repeated small decreases can't walk the model down to {@code minFrameRate}.
+     */
+    ScrollFrameRateModel adjust(float velocity, float delta, float minFrameRate,
+            float maxFrameRate, ScrollFrameRateModel base, float maxDrop) {
+        final float[] velocities = mVelocities;
+        final float[] frameRates = mFrameRates.clone();
+        final int last = velocities.length - 1;
+        if (velocity <= velocities[0]) {
+            adjustAt(frameRates, 0, delta, base, maxDrop);
+        } else if (velocity >= velocities[last]) {
+            adjustAt(frameRates, last, delta, base, maxDrop);
+        } else {
+            final int index = Arrays.binarySearch(velocities, velocity);
+            if (index >= 0) {
+                adjustAt(frameRates, index, delta, base, maxDrop);
+            } else {
+                final int hi = -index - 1;
+                final int lo = hi - 1;
+                final float fraction =
+                        (velocity - velocities[lo]) / (velocities[hi] - velocities[lo]);
+                adjustAt(frameRates, lo, delta * (1 - fraction), base, maxDrop);
+                adjustAt(frameRates, hi, delta * fraction, base, maxDrop);
+            }
+        }
+        for (int i = 0; i <= last; i++) {
+            frameRates[i] = Math.max(minFrameRate, Math.min(maxFrameRate, frameRates[i]));
+        }
+        return new ScrollFrameRateModel(velocities, frameRates);
+    }
+
+    private void adjustAt(float[] frameRates, int index, float delta, ScrollFrameRateModel base,
+            float maxDrop) {
+        final float rate = frameRates[index] + delta;
+        if (delta >= 0) {
+            frameRates[index] = rate;
+            return;
+        }
+        // Don't raise a point that was already below the floor, e.g. one set by the app.
+        final float floor = base.getFrameRate(mVelocities[index]) - maxDrop;
+        frameRates[index] = Math.max(rate, Math.min(frameRates[index], floor));
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        for (int i = 0; i < mVelocities.length; i++) {
+            pw.println(prefix + "speed: " + mVelocities[i] + " frame rate: " + mFrameRates[i]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ScrollFrameRateModel{velocities=" + Arrays.toString(mVelocities)
+                + " frameRates=" + Arrays.toString(mFrameRates) + "}";
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm;
+
+import android.view.Display;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * The frame rates a display can run scrolling content at, as used by
+ * {@link ScrollMonitorService}.
+ *
+ * Each entry is a display mode combined with a divisor the focused app renders at, e.g. a 90Hz
+ * mode with divisor 2 gives 45fps. The table is derived from the display's supported modes and
+ * kept sorted by frame rate so lookups are a binary search over a primitive array.
+ */
+class ScrollFrameRateTable {
+    /** Largest divisor an app is asked to render at. */
+    private static final int MAX_DIVISOR = 4;
+    /** Combinations below this rate are not offered; scrolling content looks broken below it. */
+    private static final float MIN_FRAME_RATE = 20.0f;
+
+    private static final ScrollFrameRateTable EMPTY =
+            new ScrollFrameRateTable(new float[0], new float[0], new int[0], new int[0], null);
+
+    /** Achievable frame rates, strictly ascending. */
+    private final float[] mFrameRates;
+    /** Refresh rate of the display mode used for the frame rate at the same index. */
+    private final float[] mRefreshRates;
+    /** Id of the display mode used for the frame rate at the same index. */
+    private final int[] mModeIds;
+    /** Divisor the app renders at for the frame rate at the same index. */
+    private final int[] mDivisors;
+    /** The modes this table was built from, used to detect changes. */
+    private final Display.Mode[] mModes;
+
+    private ScrollFrameRateTable(float[] frameRates, float[] refreshRates, int[] modeIds,
+            int[] divisors, Display.Mode[] modes) {
+        mFrameRates = frameRates;
+        mRefreshRates = refreshRates;
+        mModeIds = modeIds;
+        mDivisors = divisors;
+        mModes = modes;
+    }
+
+    /**
+     * Builds the table for a display.
+     */
+    static ScrollFrameRateTable create(Display display) {
+        return create(display.getSupportedModes(), display.getMode());
+    }
+
+    static ScrollFrameRateTable create(Display.Mode[] modes, Display.Mode currentMode) {
+        if (modes == null || currentMode == null) {
+            return EMPTY;
+        }
+        final int maxEntries = modes.length * MAX_DIVISOR;
+        final float[] frameRates = new float[maxEntries];
+        final float[] refreshRates = new float[maxEntries];
+        final int[] modeIds = new int[maxEntries];
+        final int[] divisors = new int[maxEntries];
+        int size = 0;
+        for (Display.Mode mode : modes) {
+            // Only switch between refresh rates, never resolutions.
+            if (mode.getPhysicalWidth() != currentMode.getPhysicalWidth()
+                    || mode.getPhysicalHeight() != currentMode.getPhysicalHeight()) {
+                continue;
+            }
+            for (int divisor = 1; divisor <= MAX_DIVISOR; divisor++) {
+                final float frameRate = mode.getRefreshRate() / divisor;
+                if (frameRate < MIN_FRAME_RATE) {
+                    break;
+                }
+                final int existing = indexOf(frameRates, size, frameRate);
+                if (existing >= 0) {
+                    // Prefer the lower refresh rate for the same frame rate, it saves panel power.
+                    if (mode.getRefreshRate() < refreshRates[existing]) {
+                        refreshRates[existing] = mode.getRefreshRate();
+                        modeIds[existing] = mode.getModeId();
+                        divisors[existing] = divisor;
+                    }
+                    continue;
+                }
+                frameRates[size] = frameRate;
+                refreshRates[size] = mode.getRefreshRate();
+                modeIds[size] = mode.getModeId();
+                divisors[size] = divisor;
+                size++;
+            }
+        }
+        return sorted(frameRates, refreshRates, modeIds, divisors, size, modes);
+    }
+
+    private static ScrollFrameRateTable sorted(float[] frameRates, float[] refreshRates,
+            int[] modeIds, int[] divisors, int size, Display.Mode[] modes) {
+        final Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Float.compare(frameRates[a], frameRates[b]));
+        final float[] sortedFrameRates = new float[size];
+        final float[] sortedRefreshRates = new float[size];
+        final int[] sortedModeIds = new int[size];
+        final int[] sortedDivisors = new int[size];
+        for (int i = 0; i < size; i++) {
+            final int index = order[i];
+            sortedFrameRates[i] = frameRates[index];
+            sortedRefreshRates[i] = refreshRates[index];
+            sortedModeIds[i] = modeIds[index];
+            sortedDivisors[i] = divisors[index];
+        }
+        return new ScrollFrameRateTable(sortedFrameRates, sortedRefreshRates, sortedModeIds,
+                sortedDivisors, modes);
+    }
+
+    private static int indexOf(float[] values, int size, float value) {
+        for (int i = 0; i < size; i++) {
+            if (Math.abs(values[i] - value) < 0.01f) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return {@code true} if this table was built from a different set of modes than
+     *         {@code modes}.
+     */
+    boolean isStale(Display.Mode[] modes) {
+        return !Arrays.equals(mModes, modes);
+    }
+
+    boolean isEmpty() {
+        return mFrameRates.length == 0;
+    }
+
+    int size() {
+        return mFrameRates.length;
+    }
+
+    float getFrameRate(int index) {
+        return mFrameRates[index];
+    }
+
+    float getRefreshRate(int index) {
+        return mRefreshRates[index];
+    }
+
+    int getModeId(int index) {
+        return mModeIds[index];
+    }
+
+    int getDivisor(int index) {
+        return mDivisors[index];
+    }
+
+    float getMaxFrameRate() {
+        return mFrameRates[mFrameRates.length - 1];
+    }
+
+    /**
+     * @return the index of {@code frameRate}, or -1 if the display cannot run at it.
+     */
+    int indexOf(float frameRate) {
+        final int index = findClosest(frameRate);
+        return index >= 0 && Math.abs(mFrameRates[index] - frameRate) < 0.01f ? index : -1;
+    }
+
+    /**
+     * @return the index of the frame rate closest to {@code frameRate}, ties going to the higher
+     *         rate, or -1 if the table is empty.
+     */
+    int findClosest(float frameRate) {
+        final float[] rates = mFrameRates;
+        if (rates.length == 0) {
+            return -1;
+        }
+        final int index = Arrays.binarySearch(rates, frameRate);
+        if (index >= 0) {
+            return index;
+        }
+        final int hi = -index - 1;
+        if (hi == 0) {
+            return 0;
+        }
+        if (hi == rates.length) {
+            return rates.length - 1;
+        }
+        return frameRate - rates[hi - 1] < rates[hi] - frameRate ? hi - 1 : hi;
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "ScrollFrameRateTable:");
+        for (int i = 0; i < mFrameRates.length; i++) {
+            pw.println(prefix + "  " + mFrameRates[i] + "fps = " + mRefreshRates[i] + "Hz / "
+                    + mDivisors[i] + " (mode " + mModeIds[i] + ")");
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm;
+
+import android.os.SystemClock;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Scroll session metrics of {@link ScrollMonitorService}: how fast flings are, which frame rates
+ * they get, how long each rate is held and how long mode switches take.
+ *
+ * Recording never blocks. Events are claimed from a ring with an atomic cursor and published
+ * with a per-slot sequence number, so the input thread, the status thread and binder threads can
+ * all record concurrently. The histograms are only updated when the ring is drained, which
+ * happens on the status thread after every scroll and before dumping. Events that are
+ * overwritten before they are drained are counted as dropped.
+ */
+class ScrollMetrics {
+    static final int BINDER_DISPATCH_MODE_CHANGED = 0;
+    static final int BINDER_SET_FRAME_RATE = 1;
+
+    private static final int EVENT_FLING_VELOCITY = 1;
+    private static final int EVENT_FRAME_RATE = 2;
+    private static final int EVENT_MODE_HELD = 3;
+    private static final int EVENT_SWITCH_LATENCY = 4;
+
+    /** Must be a power of two. */
+    private static final int RING_CAPACITY = 512;
+
+    private static final int[] VELOCITY_BOUNDS =
+            {1000, 2000, 4000, 6000, 8000, 10000, 15000, 20000, 28000};
+    /** Frame rates are recorded in tenths of a frame per second so 22.5fps has its own bucket. */
+    private static final int[] FRAME_RATE_BOUNDS =
+            {200, 225, 240, 300, 360, 450, 480, 600, 720, 900, 1200};
+    private static final int[] LATENCY_BOUNDS = {1, 2, 4, 8, 16, 32, 64, 128, 256};
+
+    private final AtomicLongArray mEvents = new AtomicLongArray(RING_CAPACITY);
+    /** Cursor + 1 of the event last published to each slot, 0 if none. */
+    private final AtomicLongArray mSequences = new AtomicLongArray(RING_CAPACITY);
+    private final AtomicLong mWriteCursor = new AtomicLong();
+    private final AtomicInteger[] mBinderFailures =
+            {new AtomicInteger(), new AtomicInteger()};
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private long mReadCursor;
+    @GuardedBy("mLock")
+    private long mDroppedCount;
+    @GuardedBy("mLock")
+    private long mResetTime = SystemClock.uptimeMillis();
+    @GuardedBy("mLock")
+    private final Histogram mFlingVelocity =
+            new Histogram("Fling velocity", "px/s", VELOCITY_BOUNDS, 1);
+    @GuardedBy("mLock")
+    private final Histogram mFrameRate =
+            new Histogram("Chosen frame rate", "fps", FRAME_RATE_BOUNDS, 10);
+    @GuardedBy("mLock")
+    private final Histogram mTimeInMode =
+            new Histogram("Time in frame rate (ms)", "fps", FRAME_RATE_BOUNDS, 10);
+    @GuardedBy("mLock")
+    private final Histogram mSwitchLatency =
+            new Histogram("Mode switch latency", "ms", LATENCY_BOUNDS, 1);
+
+    /** Records a fling and the frame rate chosen for it. */
+    void onFling(int velocity, float frameRate) {
+        record(EVENT_FLING_VELOCITY, 0, velocity);
+        record(EVENT_FRAME_RATE, 0, toTenths(frameRate));
+    }
+
+    /** Records that {@code frameRate} was held for {@code durationMs} before switching away. */
+    void onModeHeld(float frameRate, long durationMs) {
+        record(EVENT_MODE_HELD, toTenths(frameRate),
+                (int) Math.min(durationMs, Integer.MAX_VALUE));
+    }
+
+    /** Records the time from a mode switch request to its commit. */
+    void onSwitchCommitted(long latencyMs) {
+        record(EVENT_SWITCH_LATENCY, 0, (int) Math.min(latencyMs, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Counts a failed call into an app.
+     *
+     * @param call {@link #BINDER_DISPATCH_MODE_CHANGED} or {@link #BINDER_SET_FRAME_RATE}
+     */
+    void onBinderFailure(int call) {
+        mBinderFailures[call].incrementAndGet();
+    }
+
+    private static int toTenths(float frameRate) {
+        return Math.round(frameRate * 10);
+    }
+
+    private void record(int type, int aux, int value) {
+        final long cursor = mWriteCursor.getAndIncrement();
+        final int slot = (int) (cursor & (RING_CAPACITY - 1));
+        // Unpublish the slot first so a reader can't pair the old sequence with the new event.
+        mSequences.set(slot, 0);
+        mEvents.set(slot, ((long) type << 56) | ((long) (aux & 0xffffff) << 32)
+                | (value & 0xffffffffL));
+        mSequences.set(slot, cursor + 1);
+    }
+
+    /**
+     * Moves published events from the ring into the histograms.
+     */
+    void drain() {
+        synchronized (mLock) {
+            drainLocked();
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void drainLocked() {
+        final long end = mWriteCursor.get();
+        while (mReadCursor < end) {
+            final int slot = (int) (mReadCursor & (RING_CAPACITY - 1));
+            final long sequence = mSequences.get(slot);
+            if (sequence <= mReadCursor) {
+                // Claimed but not published yet, pick it up on the next drain.
+                return;
+            }
+            final long event = mEvents.get(slot);
+            if (sequence != mReadCursor + 1 || mSequences.get(slot) != sequence) {
+                // A writer lapped us: everything up to the oldest event still in the ring is
+                // gone.
+                final long oldest = Math.max(mReadCursor + 1, end - RING_CAPACITY);
+                mDroppedCount += oldest - mReadCursor;
+                mReadCursor = oldest;
+                continue;
+            }
+            apply(event);
+            mReadCursor++;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void apply(long event) {
+        final int type = (int) (event >>> 56);
+        final int aux = (int) (event >>> 32) & 0xffffff;
+        final int value = (int) event;
+        switch (type) {
+            case EVENT_FLING_VELOCITY:
+                mFlingVelocity.add(value, 1);
+                break;
+            case EVENT_FRAME_RATE:
+                mFrameRate.add(value, 1);
+                break;
+            case EVENT_MODE_HELD:
+                mTimeInMode.add(aux, value);
+                break;
+            case EVENT_SWITCH_LATENCY:
+                mSwitchLatency.add(value, 1);
+                break;
+        }
+    }
+
+    void reset() {
+        synchronized (mLock) {
+            drainLocked();
+            mFlingVelocity.clear();
+            mFrameRate.clear();
+            mTimeInMode.clear();
+            mSwitchLatency.clear();
+            mDroppedCount = 0;
+            mResetTime = SystemClock.uptimeMillis();
+            for (AtomicInteger failures : mBinderFailures) {
+                failures.set(0);
+            }
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            drainLocked();
+            pw.println(prefix + "ScrollMetrics: since "
+                    + (SystemClock.uptimeMillis() - mResetTime) + "ms ago, dropped="
+                    + mDroppedCount);
+            final String innerPrefix = prefix + "  ";
+            mFlingVelocity.dump(pw, innerPrefix);
+            mFrameRate.dump(pw, innerPrefix);
+            mTimeInMode.dump(pw, innerPrefix);
+            mSwitchLatency.dump(pw, innerPrefix);
+            pw.println(innerPrefix + "Binder failures: dispatchModeChanged="
+                    + mBinderFailures[BINDER_DISPATCH_MODE_CHANGED].get()
+                    + " setFrameRate=" + mBinderFailures[BINDER_SET_FRAME_RATE].get());
+        }
+    }
+
+    /**
+     * Histogram with fixed upper bucket bounds. Values above the last bound go to an overflow
+     * bucket.
+     */
+    private static final class Histogram {
+        private final String mName;
+        private final String mUnit;
+        private final int[] mBounds;
+        /** Bounds are printed divided by this, e.g. 10 for rates recorded in tenths. */
+        private final int mScale;
+        private final long[] mCounts;
+        private long mTotal;
+
+        Histogram(String name, String unit, int[] bounds, int scale) {
+            mName = name;
+            mUnit = unit;
+            mBounds = bounds;
+            mScale = scale;
+            mCounts = new long[bounds.length + 1];
+        }
+
+        void add(int value, long weight) {
+            int bucket = 0;
+            while (bucket < mBounds.length && value > mBounds[bucket]) {
+                bucket++;
+            }
+            mCounts[bucket] += weight;
+            mTotal += weight;
+        }
+
+        void clear() {
+            for (int i = 0; i < mCounts.length; i++) {
+                mCounts[i] = 0;
+            }
+            mTotal = 0;
+        }
+
+        void dump(PrintWriter pw, String prefix) {
+            pw.println(prefix + mName + ": total=" + mTotal);
+            for (int i = 0; i < mCounts.length; i++) {
+                if (mCounts[i] == 0) {
+                    continue;
+                }
+                final String bound = i < mBounds.length
+                        ? "<=" + formatBound(mBounds[i]) : ">" + formatBound(mBounds[i - 1]);
+                pw.println(prefix + "  " + bound + mUnit + ": " + mCounts[i]);
+            }
+        }
+
+        private String formatBound(int bound) {
+            return mScale == 1 ? Integer.toString(bound) : Float.toString((float) bound / mScale);
+        }
+    }
+}
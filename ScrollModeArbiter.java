@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm;
+
+import android.annotation.Nullable;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Slog;
+import android.util.SparseArray;
+import android.view.IWindow;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+
+/**
+ * Serializes the display mode and app frame rate changes requested by
+ * {@link ScrollMonitorService}.
+ *
+ * Requests can come from the input thread, binder threads and the status thread. They are only
+ * recorded here and committed later on the arbiter's handler, so a burst of requests results in
+ * at most one scroll vote to the display's {@link RefreshRatePolicy} and one (oneway)
+ * {@link IWindow} call for the latest request. Requests that match what was last committed are
+ * dropped, and switching to a lower frame rate is held back until
+ * {@link #MIN_DOWNSWITCH_INTERVAL_MS} after the last switch, so rapid successive flings don't make
+ * the panel bounce between modes.
+ *
+ * The display mode itself is decided by {@link RefreshRatePolicy} at the next traversal. If the
+ * window has its own refresh rate preference, that preference wins: the scroll vote is withdrawn
+ * and the window is asked to render every frame, so it never renders at a divisor of a mode the
+ * display isn't in.
+ */
+class ScrollModeArbiter {
+    private static final String TAG = "ScrollModeArbiter";
+
+    /** Passed as the scale factor when a request should not change the app's scale. */
+    static final float KEEP_SCALE = -1.0f;
+
+    /** Minimum time between a switch and a following switch to a lower frame rate. */
+    private static final long MIN_DOWNSWITCH_INTERVAL_MS = 150;
+
+    private final WindowManagerService mWmService;
+    private final Handler mHandler;
+    private final ScrollMetrics mMetrics;
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final SparseArray<DisplayState> mDisplays = new SparseArray<>();
+
+    ScrollModeArbiter(WindowManagerService wmService, Handler handler, ScrollMetrics metrics) {
+        mWmService = wmService;
+        mHandler = handler;
+        mMetrics = metrics;
+    }
+
+    /**
+     * Requests the display and the window to switch frame rate. The request replaces any request
+     * for the same display that hasn't been committed yet.
+     *
+     * @param displayId the display to switch
+     * @param window the window rendering the scrolling content, or {@code null} if the display has
+     *               no window to tell, in which case only the scroll vote is changed
+     * @param modeId the display mode to vote for, or 0 to withdraw the scroll vote
+     * @param divisor the divisor of the display refresh rate the window should render at
+     * @param frameRate the resulting frame rate
+     * @param scaleFactor the resolution scale for the window, or {@link #KEEP_SCALE}
+     */
+    void requestMode(int displayId, @Nullable WindowState window, int modeId, int divisor,
+            float frameRate, float scaleFactor) {
+        synchronized (mLock) {
+            DisplayState state = mDisplays.get(displayId);
+            if (state == null) {
+                state = new DisplayState(displayId);
+                mDisplays.put(displayId, state);
+            }
+            if (state.mPending) {
+                state.mCoalescedCount++;
+                // Don't lose a scale change that hasn't reached the window yet.
+                if (scaleFactor != KEEP_SCALE) {
+                    state.mPendingScaleFactor = scaleFactor;
+                }
+            } else {
+                state.mPendingScaleFactor = scaleFactor;
+            }
+            state.mPending = true;
+            state.mPendingRequestTime = SystemClock.uptimeMillis();
+            state.mPendingWindow = window;
+            state.mPendingModeId = modeId;
+            state.mPendingDivisor = divisor;
+            state.mPendingFrameRate = frameRate;
+            // A deferred switch to a lower rate can keep waiting, anything else goes out on the
+            // next handler pass.
+            final boolean downswitch = state.mModeId != -1 && frameRate < state.mFrameRate;
+            if (!state.mScheduled || !downswitch) {
+                mHandler.removeCallbacks(state);
+                state.mScheduled = true;
+                mHandler.post(state);
+            }
+        }
+    }
+
+    /**
+     * Forgets what was committed for a display, e.g. after it was removed.
+     */
+    void removeDisplay(int displayId) {
+        synchronized (mLock) {
+            final DisplayState state = mDisplays.get(displayId);
+            if (state != null) {
+                mDisplays.remove(displayId);
+                mHandler.removeCallbacks(state);
+            }
+        }
+    }
+
+    private void commit(DisplayState state) {
+        final WindowState window;
+        int modeId;
+        int divisor;
+        final float frameRate;
+        final float scaleFactor;
+        final long requestTime;
+        synchronized (mLock) {
+            state.mScheduled = false;
+            if (!state.mPending) {
+                return;
+            }
+            final long now = SystemClock.uptimeMillis();
+            if (state.mModeId != -1 && state.mPendingFrameRate < state.mFrameRate) {
+                final long earliest = state.mLastSwitchTime + MIN_DOWNSWITCH_INTERVAL_MS;
+                if (now < earliest) {
+                    state.mDeferredCount++;
+                    state.mScheduled = true;
+                    mHandler.postAtTime(state, earliest);
+                    return;
+                }
+            }
+            window = state.mPendingWindow;
+            modeId = state.mPendingModeId;
+            divisor = state.mPendingDivisor;
+            frameRate = state.mPendingFrameRate;
+            scaleFactor = state.mPendingScaleFactor;
+            requestTime = state.mPendingRequestTime;
+            state.mPending = false;
+            state.mPendingWindow = null;
+        }
+
+        boolean overridden = false;
+        synchronized (mWmService.mGlobalLock) {
+            final DisplayContent dc = mWmService.mRoot.getDisplayContent(state.mDisplayId);
+            if (dc == null) {
+                return;
+            }
+            final RefreshRatePolicy policy = dc.getDisplayPolicy().getRefreshRatePolicy();
+            if (modeId != 0 && window != null && policy.overridesScrollVote(window)) {
+                overridden = true;
+                modeId = 0;
+                divisor = 1;
+            }
+            policy.setScrollModeId(modeId);
+        }
+
+        final IWindow client = window != null ? window.mClient : null;
+        final IBinder clientBinder = client != null ? client.asBinder() : null;
+        final boolean changeScale;
+        final boolean changeDivisor;
+        synchronized (mLock) {
+            if (overridden) {
+                state.mOverriddenCount++;
+            }
+            final boolean changeClient = clientBinder != state.mClient;
+            final boolean changeMode = modeId != state.mModeId;
+            // Without a window only the vote changes.
+            changeScale = client != null && scaleFactor != KEEP_SCALE
+                    && (changeClient || scaleFactor != state.mScaleFactor
+                            || divisor != state.mDivisor);
+            changeDivisor = client != null && !changeScale
+                    && (changeClient || divisor != state.mDivisor);
+            if (!changeMode && !changeScale && !changeDivisor) {
+                state.mSuppressedCount++;
+                return;
+            }
+            if (changeMode || frameRate != state.mFrameRate) {
+                final long now = SystemClock.uptimeMillis();
+                if (state.mModeId != -1) {
+                    mMetrics.onModeHeld(state.mFrameRate, now - state.mLastSwitchTime);
+                }
+                mMetrics.onSwitchCommitted(now - requestTime);
+                state.mLastSwitchTime = now;
+            }
+            state.mClient = clientBinder;
+            state.mModeId = modeId;
+            state.mDivisor = divisor;
+            state.mFrameRate = frameRate;
+            if (changeScale) {
+                state.mScaleFactor = scaleFactor;
+            }
+            state.mCommittedCount++;
+        }
+
+        if (client == null) {
+            return;
+        }
+        try {
+            if (changeScale) {
+                client.dispatchModeChanged(scaleFactor, (int) (1.0f / frameRate * 1000.0f),
+                        divisor);
+            } else if (changeDivisor) {
+                client.setFrameRate(divisor);
+            }
+        } catch (RemoteException e) {
+            mMetrics.onBinderFailure(changeScale ? ScrollMetrics.BINDER_DISPATCH_MODE_CHANGED
+                    : ScrollMetrics.BINDER_SET_FRAME_RATE);
+            Slog.e(TAG, "Failed to update frame rate of " + client, e);
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.println(prefix + "ScrollModeArbiter:");
+            for (int i = mDisplays.size() - 1; i >= 0; i--) {
+                final DisplayState state = mDisplays.valueAt(i);
+                pw.println(prefix + "  display=" + state.mDisplayId
+                        + " mode=" + state.mModeId
+                        + " frameRate=" + state.mFrameRate
+                        + " divisor=" + state.mDivisor
+                        + " scale=" + state.mScaleFactor
+                        + " pending=" + state.mPending);
+                pw.println(prefix + "    committed=" + state.mCommittedCount
+                        + " suppressed=" + state.mSuppressedCount
+                        + " coalesced=" + state.mCoalescedCount
+                        + " deferred=" + state.mDeferredCount
+                        + " overridden=" + state.mOverriddenCount);
+            }
+        }
+    }
+
+    private final class DisplayState implements Runnable {
+        final int mDisplayId;
+
+        // What was last committed.
+        IBinder mClient;
+        int mModeId = -1;
+        int mDivisor;
+        float mFrameRate;
+        float mScaleFactor = 1.0f;
+        long mLastSwitchTime;
+
+        // The latest request that is not committed yet.
+        boolean mPending;
+        boolean mScheduled;
+        long mPendingRequestTime;
+        WindowState mPendingWindow;
+        int mPendingModeId;
+        int mPendingDivisor;
+        float mPendingFrameRate;
+        float mPendingScaleFactor;
+
+        int mCommittedCount;
+        int mSuppressedCount;
+        int mCoalescedCount;
+        int mDeferredCount;
+        int mOverriddenCount;
+
+        DisplayState(int displayId) {
+            mDisplayId = displayId;
+        }
+
+        @Override
+        public void run() {
+            commit(this);
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm;
+
+import android.annotation.Nullable;
+import android.content.pm.PackageManagerInternal;
+import android.os.Environment;
+import android.os.UserHandle;
+import android.os.storage.StorageManager;
+import android.util.AtomicFile;
+import android.util.LruCache;
+import android.util.Slog;
+import android.util.Xml;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.FastXmlSerializer;
+import com.android.server.LocalServices;
+
+import libcore.io.IoUtils;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+/**
+ * Persister that keeps per-package {@link ScrollFrameRateModel}s for
+ * {@link ScrollMonitorService} in memory and in storage, keyed on user ID and package name.
+ *
+ * Only the most recently used models are kept in memory; others are read back from storage on
+ * demand, so lookups may do disk I/O and must not be made on the input thread. Writes go through
+ * the shared {@link PersisterQueue} the same way {@link LaunchParamsPersister} writes launch
+ * params.
+ */
+class ScrollModelPersister {
+    private static final String TAG = "ScrollModelPersister";
+    private static final String SCROLL_MODELS_DIRNAME = "scroll_models";
+    private static final String SCROLL_MODEL_FILE_SUFFIX = ".xml";
+
+    private static final String TAG_SCROLL_MODEL = "scroll_model";
+    private static final String TAG_POINT = "point";
+    private static final String ATTR_VELOCITY = "velocity";
+    private static final String ATTR_FRAME_RATE = "frame_rate";
+
+    /** Maximum number of packages whose models are kept in memory. */
+    private static final int MAX_CACHED_PACKAGES = 32;
+
+    /**
+     * A supplier of the queue to write to, which only exists once the activity stack supervisor
+     * has been initialized.
+     */
+    private final Supplier<PersisterQueue> mPersisterQueueSupplier;
+
+    /**
+     * A function that takes in user ID and returns a folder to store information of that user. Used
+     * to differentiate storage location in test environment and production environment.
+     */
+    private final IntFunction<File> mUserFolderGetter;
+
+    private final Object mLock = new Object();
+
+    /**
+     * Maps "userId:packageName" to the package's model. Packages without a model of their own are
+     * cached too, so they don't hit the disk on every focus change.
+     */
+    @GuardedBy("mLock")
+    private final LruCache<String, Entry> mCache = new LruCache<>(MAX_CACHED_PACKAGES);
+
+    ScrollModelPersister(Supplier<PersisterQueue> persisterQueueSupplier) {
+        this(persisterQueueSupplier, Environment::getDataSystemCeDirectory);
+    }
+
+    @VisibleForTesting
+    ScrollModelPersister(Supplier<PersisterQueue> persisterQueueSupplier,
+            IntFunction<File> userFolderGetter) {
+        mPersisterQueueSupplier = persisterQueueSupplier;
+        mUserFolderGetter = userFolderGetter;
+    }
+
+    void onSystemReady() {
+        final PackageManagerInternal pmi = LocalServices.getService(PackageManagerInternal.class);
+        if (pmi != null) {
+            pmi.getPackageList(new PackageListObserver());
+        }
+    }
+
+    /**
+     * @return the model of {@code packageName}, or {@code null} if the package doesn't have one.
+     */
+    @Nullable
+    ScrollFrameRateModel getModel(int userId, String packageName) {
+        final String key = getKey(userId, packageName);
+        synchronized (mLock) {
+            final Entry entry = mCache.get(key);
+            if (entry != null) {
+                return entry.mModel;
+            }
+        }
+        // A model evicted from the cache may not have been written yet, and the file would be
+        // stale or missing.
+        final PersisterQueue queue = mPersisterQueueSupplier.get();
+        if (queue != null) {
+            final boolean pending;
+            final ScrollFrameRateModel pendingModel;
+            synchronized (queue) {
+                final ScrollModelWriteQueueItem item =
+                        queue.findItem(ScrollModelWriteQueueItem.class, key);
+                pending = item != null;
+                pendingModel = pending ? item.mModel : null;
+            }
+            if (pending) {
+                return cacheIfAbsent(key, pendingModel);
+            }
+        }
+        if (!StorageManager.isUserKeyUnlocked(userId)) {
+            // Models are stored in credential encrypted storage; don't remember that the package
+            // has none until it can actually be read.
+            return null;
+        }
+        return cacheIfAbsent(key, loadModel(userId, packageName));
+    }
+
+    @Nullable
+    private ScrollFrameRateModel cacheIfAbsent(String key, @Nullable ScrollFrameRateModel model) {
+        synchronized (mLock) {
+            // Don't clobber a model that was set while we were reading.
+            if (mCache.get(key) == null) {
+                mCache.put(key, new Entry(model));
+            }
+            return mCache.get(key).mModel;
+        }
+    }
+
+    /**
+     * Sets the model of {@code packageName} and schedules it to be written to storage.
+     *
+     * @param model the new model, or {@code null} to remove the package's model.
+     */
+    void setModel(int userId, String packageName, @Nullable ScrollFrameRateModel model) {
+        synchronized (mLock) {
+            mCache.put(getKey(userId, packageName), new Entry(model));
+        }
+        final PersisterQueue queue = mPersisterQueueSupplier.get();
+        if (queue != null) {
+            queue.updateLastOrAddItem(new ScrollModelWriteQueueItem(userId, packageName, model),
+                    false /* flush */);
+        }
+    }
+
+    void removeRecordForPackage(int userId, String packageName) {
+        synchronized (mLock) {
+            mCache.remove(getKey(userId, packageName));
+        }
+        final PersisterQueue queue = mPersisterQueueSupplier.get();
+        if (queue == null) {
+            return;
+        }
+        final File modelFile = getModelFile(getModelFolder(userId), packageName);
+        synchronized (queue) {
+            queue.removeItem(ScrollModelWriteQueueItem.class, getKey(userId, packageName));
+            queue.addItem(new CleanUpModelQueueItem(modelFile), false /* flush */);
+        }
+    }
+
+    @Nullable
+    private ScrollFrameRateModel loadModel(int userId, String packageName) {
+        final File file = getModelFile(getModelFolder(userId), packageName);
+        if (!file.isFile()) {
+            return null;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            final XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(reader);
+            final ArrayList<float[]> points = new ArrayList<>();
+            int event;
+            while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (event != XmlPullParser.START_TAG || !TAG_POINT.equals(parser.getName())) {
+                    continue;
+                }
+                points.add(new float[] {
+                        Float.parseFloat(parser.getAttributeValue(null, ATTR_VELOCITY)),
+                        Float.parseFloat(parser.getAttributeValue(null, ATTR_FRAME_RATE))});
+            }
+            final float[] velocities = new float[points.size()];
+            final float[] frameRates = new float[points.size()];
+            for (int i = 0; i < points.size(); i++) {
+                velocities[i] = points.get(i)[0];
+                frameRates[i] = points.get(i)[1];
+            }
+            final ScrollFrameRateModel model =
+                    ScrollFrameRateModel.create(velocities, frameRates);
+            if (model == null) {
+                Slog.w(TAG, "Invalid scroll model for " + packageName);
+            }
+            return model;
+        } catch (Exception e) {
+            Slog.w(TAG, "Failed to restore scroll model for " + packageName, e);
+            return null;
+        } finally {
+            IoUtils.closeQuietly(reader);
+        }
+    }
+
+    private static String getKey(int userId, String packageName) {
+        return userId + ":" + packageName;
+    }
+
+    private File getModelFile(File modelFolder, String packageName) {
+        return new File(modelFolder, packageName + SCROLL_MODEL_FILE_SUFFIX);
+    }
+
+    private File getModelFolder(int userId) {
+        final File userFolder = mUserFolderGetter.apply(userId);
+        return new File(userFolder, SCROLL_MODELS_DIRNAME);
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.println(prefix + "ScrollModelPersister: " + mCache.size() + "/"
+                    + mCache.maxSize() + " cached, hits=" + mCache.hitCount()
+                    + " misses=" + mCache.missCount() + " evictions=" + mCache.evictionCount());
+            for (Map.Entry<String, Entry> entry : mCache.snapshot().entrySet()) {
+                final ScrollFrameRateModel model = entry.getValue().mModel;
+                if (model != null) {
+                    pw.println(prefix + "  " + entry.getKey() + ":");
+                    model.dump(pw, prefix + "    ");
+                }
+            }
+        }
+    }
+
+    private static final class Entry {
+        @Nullable
+        final ScrollFrameRateModel mModel;
+
+        Entry(@Nullable ScrollFrameRateModel model) {
+            mModel = model;
+        }
+    }
+
+    private class PackageListObserver implements PackageManagerInternal.PackageListObserver {
+        @Override
+        public void onPackageAdded(String packageName, int uid) { }
+
+        @Override
+        public void onPackageRemoved(String packageName, int uid) {
+            removeRecordForPackage(UserHandle.getUserId(uid), packageName);
+        }
+    }
+
+    private class ScrollModelWriteQueueItem
+            implements PersisterQueue.WriteQueueItem<ScrollModelWriteQueueItem> {
+        private final int mUserId;
+        private final String mPackageName;
+
+        @Nullable
+        private ScrollFrameRateModel mModel;
+
+        private ScrollModelWriteQueueItem(int userId, String packageName,
+                @Nullable ScrollFrameRateModel model) {
+            mUserId = userId;
+            mPackageName = packageName;
+            mModel = model;
+        }
+
+        private StringWriter saveModelToXml() {
+            final StringWriter writer = new StringWriter();
+            final XmlSerializer serializer = new FastXmlSerializer();
+
+            try {
+                serializer.setOutput(writer);
+                serializer.startDocument(/* encoding */ null, /* standalone */ true);
+                serializer.startTag(null, TAG_SCROLL_MODEL);
+
+                for (int i = 0; i < mModel.size(); i++) {
+                    serializer.startTag(null, TAG_POINT);
+                    serializer.attribute(null, ATTR_VELOCITY,
+                            Float.toString(mModel.getVelocityAt(i)));
+                    serializer.attribute(null, ATTR_FRAME_RATE,
+                            Float.toString(mModel.getFrameRateAt(i)));
+                    serializer.endTag(null, TAG_POINT);
+                }
+
+                serializer.endTag(null, TAG_SCROLL_MODEL);
+                serializer.endDocument();
+                serializer.flush();
+
+                return writer;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void process() {
+            final File modelFolder = getModelFolder(mUserId);
+            final File modelFile = getModelFile(modelFolder, mPackageName);
+            if (mModel == null) {
+                if (modelFile.exists() && !modelFile.delete()) {
+                    Slog.w(TAG, "Failed to delete " + modelFile.getAbsolutePath());
+                }
+                return;
+            }
+
+            final StringWriter writer = saveModelToXml();
+            if (writer == null) {
+                return;
+            }
+            if (!modelFolder.isDirectory() && !modelFolder.mkdirs()) {
+                Slog.w(TAG, "Failed to create folder for " + mUserId);
+                return;
+            }
+
+            final AtomicFile atomicFile = new AtomicFile(modelFile);
+            FileOutputStream stream = null;
+            try {
+                stream = atomicFile.startWrite();
+                stream.write(writer.toString().getBytes());
+            } catch (Exception e) {
+                Slog.e(TAG, "Failed to write scroll model for " + mPackageName, e);
+                if (stream != null) {
+                    atomicFile.failWrite(stream);
+                }
+                return;
+            }
+            atomicFile.finishWrite(stream);
+        }
+
+        @Override
+        public boolean matches(ScrollModelWriteQueueItem item) {
+            return mUserId == item.mUserId && mPackageName.equals(item.mPackageName);
+        }
+
+        @Override
+        public void updateFrom(ScrollModelWriteQueueItem item) {
+            mModel = item.mModel;
+        }
+
+        @Override
+        public Object getKey() {
+            return ScrollModelPersister.getKey(mUserId, mPackageName);
+        }
+    }
+
+    private static class CleanUpModelQueueItem implements PersisterQueue.WriteQueueItem {
+        private final File mModelFile;
+
+        private CleanUpModelQueueItem(File modelFile) {
+            mModelFile = modelFile;
+        }
+
+        @Override
+        public void process() {
+            if (mModelFile.exists() && !mModelFile.delete()) {
+                Slog.w(TAG, "Failed to delete " + mModelFile.getAbsolutePath());
+            }
+        }
+    }
+}
@@ -1,20 +1,25 @@
 package com.android.server.wm; 
-import android.os.RemoteException;
 
+import android.os.Binder;
 import android.os.Looper;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.SystemClock;
 import android.content.Context;
+import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.util.DumpUtils;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Map;
 import java.lang.System;
 
 import com.android.server.input.InputManagerService;
 
+import android.hardware.display.DisplayManager;
 import android.hardware.input.InputManager;
 import android.view.InputChannel;
 import android.view.InputMonitor;
@@ -24,16 +29,17 @@ import android.view.MotionEvent;
 import android.view.VelocityTracker;
 import android.view.IScrollMonitorService;
 import android.view.Display;
-import android.view.SurfaceControl;
 import static android.view.Display.DEFAULT_DISPLAY;
 import android.widget.Scroller;
 
 import android.view.ViewConfiguration;
 import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import android.os.ShellCallback;
 import android.os.ResultReceiver;
 import android.os.IBinder;
 import android.os.Process;
+import android.os.UserHandle;
 
 public class ScrollMonitorService extends IScrollMonitorService.Stub{
     	public boolean isDesignEnabled = false;
@@ -44,47 +50,69 @@ public class ScrollMonitorService extends IScrollMonitorService.Stub{
 	private static final String TAG = "ScrollMonitorService";
 	private static final int MSG_SCROLL_STOPPED = 1;
 	private static final int MSG_FLINGING = 2;
+	private static final int MSG_FLING_STARTED = 3;
+	private static final int MSG_FOCUS_CHANGED = 4;
+
+	/** Reasons a scroll stopped, passed as arg1 of {@link #MSG_SCROLL_STOPPED}. */
+	private static final int STOP_PREDICTED_END = 0;
+	private static final int STOP_TOUCH = 1;
+	private static final int STOP_APP = 2;
+
+	/**
+	 * How much a package's model is lowered at the start velocity of a fling that ran to its end,
+	 * and raised at the velocity a lowered fling was interrupted at by a touch. Interruptions are
+	 * taken as a much stronger signal than flings that were left alone.
+	 */
+	private static final float LEARN_DOWN_STEP = 0.5f;
+	private static final float LEARN_UP_STEP = 2.5f;
+	/**
+	 * How far below the global model a package's model can be lowered by flings that ran to
+	 * their end. Without a bound, apps that are rarely interrupted drift to the lowest rate.
+	 */
+	private static final float LEARN_MAX_DROP = 15.0f;
+
+	/** Deceleration exponent of the {@link Scroller} fling spline. */
+	private static final float DECELERATION_RATE = (float) (Math.log(0.78) / Math.log(0.9));
+	/** Interval at which a fling's velocity curve is sampled when planning frame rate steps. */
+	private static final int FLING_PLAN_SAMPLE_MS = 20;
 	private final int pid;
 
-	
+
 	private Context mContext;  
 	private final WindowManagerService mWindowManagerService;  
 	private final InputManagerService mInputManagerService;
 	private final HandlerThread mInputHandlerThread;
+	private final Handler mInputHandler;
 	private final HandlerThread mStatusHandlerThread;
-	private final InputChannel mInputChannel;
-	private final InputEventReceiver mInputEventReceiver;
-	private final StatusCheckHandler mStatusCheckHandler;
+	/** Runs display callbacks and {@link #mModeArbiter} commits on the status thread. */
+	private final Handler mStatusHandler;
+	private final ScrollModeArbiter mModeArbiter;
 	private final WindowFocusChangeListener mWindowFocusChangeListener;
-	private VelocityTracker mVelocityTracker = null;
-	private WindowState mFocusedWindow;
-	private final Display mDisplay;
+	private final ScrollFocusFilter mFocusFilter;
+	private final ScrollTraceBuffer mTraceBuffer =
+			new ScrollTraceBuffer(ScrollTraceBuffer.DEFAULT_CAPACITY);
+	private final ScrollMetrics mMetrics = new ScrollMetrics();
 	private static boolean isScrolling;
 
+	/** The displays scrolling is monitored on, keyed by display id. */
+	private final SparseArray<DisplayScrollState> mDisplayStates = new SparseArray<>();
+	/** The display focused windows are reported on when the caller isn't focused anywhere. */
+	private volatile int mTopFocusedDisplayId = DEFAULT_DISPLAY;
+
 	private final Scroller mScroller;
 	private final int maxFlingVelocity = 28000;
 
 	private float scaleFactor = 1.0f;
 	private float desiredFrameRate = 60.0f;
-	private final float ydpi;
-	private final int heightPixels;
 
-	private final IBinder mDisplayToken; 
 	private int viewId;
-	private final int[] allowedConfigs = new int[1];
 	private int frameTime = 11;
-	private final Map<Float, Config> availableConfigs = new HashMap<Float, Config>();
-	private Map<Integer, Float> model = new HashMap<Integer, Float>();
-	private final int[] velocityCandidates = {1000, 2000, 4000, 6000, 8000, 10000, 12500, 15000, 17500, 20000};
-	
-	private class Config {
-		public int mode;
-		public int divisor;
-		public Config(int m, int d) {
-			mode = m;
-			divisor = d;
-		}
-	}
+	/** Viewing distance, in cm, assumed by {@link #getScaleFactor}. */
+	private static final float VIEWING_DISTANCE_CM = 35.0f;
+	private volatile ScrollFrameRateModel model = ScrollFrameRateModel.getDefault();
+	/** Set by {@link #setFixedFrameRate}; a fixed rate takes precedence over package models. */
+	private volatile boolean mFixedFrameRate;
+	private final ScrollModelPersister mModelPersister;
 
 	public ScrollMonitorService(Context ctx, WindowManagerService wm, InputManagerService inputManager){
 		mContext = ctx;
@@ -92,165 +120,295 @@ public class ScrollMonitorService extends IScrollMonitorService.Stub{
 		mInputManagerService = inputManager;
 		pid = Process.myPid();
 
-		mInputHandlerThread = new HandlerThread("InputReceiverThread");
-		mInputHandlerThread.start();
-
-		mInputChannel = mInputManagerService.monitorGestureInput(TAG, DEFAULT_DISPLAY).getInputChannel();
-		mInputEventReceiver = new ScrollInputReceiver(mInputChannel, mInputHandlerThread.getLooper());
-
 		mStatusHandlerThread = new HandlerThread("StatusMonitorThread");
 		mStatusHandlerThread.start();
-		mStatusCheckHandler = new StatusCheckHandler(mStatusHandlerThread.getLooper());
-
-		if(mVelocityTracker == null){
-			mVelocityTracker = VelocityTracker.obtain();
-		}
-		
+		mStatusHandler = new Handler(mStatusHandlerThread.getLooper());
+		mModeArbiter = new ScrollModeArbiter(mWindowManagerService, mStatusHandler, mMetrics);
+		mModelPersister = new ScrollModelPersister(() -> {
+			final ActivityStackSupervisor supervisor = mWindowManagerService.mAtmService.mStackSupervisor;
+			return supervisor != null ? supervisor.mPersisterQueue : null;
+		});
+		mModelPersister.onSystemReady();
+
+		mFocusFilter = ScrollFocusFilter.create();
+		mFocusFilter.onSystemReady();
 		mWindowFocusChangeListener = new WindowFocusChangeListener();
 		mWindowManagerService.addWindowChangeListener(mWindowFocusChangeListener);
 
 		mScroller = new Scroller(mContext);
-		
-		mDisplay = mContext.getDisplay();
-		mDisplayToken = SurfaceControl.getInternalDisplayToken();
-
-		ydpi = Math.round(mContext.getResources().getDisplayMetrics().ydpi);
-		heightPixels = mContext.getResources().getDisplayMetrics().heightPixels;
-		
-		availableConfigs.put(90.0f, new Config(0, 1));
-		availableConfigs.put(60.0f, new Config(1, 1));
-		availableConfigs.put(45.0f, new Config(0, 2));
-		availableConfigs.put(30.0f, new Config(1, 2));
-		availableConfigs.put(22.5f, new Config(0, 4));
-		availableConfigs.put(20.0f, new Config(1, 4));
-
-		resetModel();
+
+		// Start receiving input last, everything the receivers use must be set up by now.
+		mInputHandlerThread = new HandlerThread("InputReceiverThread");
+		mInputHandlerThread.start();
+		mInputHandler = new Handler(mInputHandlerThread.getLooper());
+
+		final DisplayManager displayManager = mContext.getSystemService(DisplayManager.class);
+		displayManager.registerDisplayListener(new ScrollDisplayListener(), mStatusHandler);
+		for (Display display : displayManager.getDisplays()) {
+			addDisplay(display.getDisplayId());
+		}
 
 		Log.d(TAG, "initialized! mContext=" + mContext);
 	}
 
+	/**
+	 * Everything the service keeps for one display. Each display has its own gesture monitor,
+	 * velocity tracker, focused window and status handler, so a fling on one display never
+	 * changes the frame rate of another.
+	 */
+	private final class DisplayScrollState {
+		final int mDisplayId;
+		final Display mDisplay;
+		final float mYdpi;
+		final StatusCheckHandler mHandler;
+		final VelocityTracker mVelocityTracker = VelocityTracker.obtain();
+		InputMonitor mInputMonitor;
+		ScrollInputReceiver mInputReceiver;
+
+		/**
+		 * Frame rates the display can run at. Rebuilt on the status thread when the display's
+		 * supported modes change.
+		 */
+		volatile ScrollFrameRateTable mFrameRateTable;
+		/** The display's focused window if it is eligible for frame rate changes. */
+		volatile WindowState mFocusedWindow;
+		/**
+		 * The learned model of the focused package, or {@code null} to use {@link #model}. Only
+		 * written on the status thread.
+		 */
+		volatile ScrollFrameRateModel mFocusedModel;
+
+		// The focused package and the fling in progress, only used on the status thread.
+		String mFocusedPackage;
+		int mFocusedUserId;
+		int mFlingVelocity;
+		int mFlingDuration;
+		long mFlingStartTime;
+		boolean mFlingLowered;
+
+		DisplayScrollState(Display display) {
+			mDisplayId = display.getDisplayId();
+			mDisplay = display;
+			final DisplayMetrics metrics = new DisplayMetrics();
+			display.getRealMetrics(metrics);
+			mYdpi = Math.round(metrics.ydpi);
+			mFrameRateTable = ScrollFrameRateTable.create(display);
+			mHandler = new StatusCheckHandler(mStatusHandlerThread.getLooper(), this);
+		}
+	}
+
+	private void addDisplay(int displayId) {
+		final Display display = mContext.getSystemService(DisplayManager.class)
+				.getDisplay(displayId);
+		if (display == null) {
+			return;
+		}
+		synchronized (mDisplayStates) {
+			if (mDisplayStates.get(displayId) != null) {
+				return;
+			}
+			final DisplayScrollState state = new DisplayScrollState(display);
+			state.mInputMonitor = mInputManagerService.monitorGestureInput(TAG, displayId);
+			state.mInputReceiver = new ScrollInputReceiver(
+					state.mInputMonitor.getInputChannel(), mInputHandlerThread.getLooper(), state);
+			mDisplayStates.put(displayId, state);
+		}
+		mWindowFocusChangeListener.focusChanged();
+	}
+
+	private void removeDisplay(int displayId) {
+		final DisplayScrollState state;
+		synchronized (mDisplayStates) {
+			state = mDisplayStates.get(displayId);
+			if (state == null) {
+				return;
+			}
+			mDisplayStates.remove(displayId);
+		}
+		state.mHandler.removeCallbacksAndMessages(null);
+		mModeArbiter.removeDisplay(displayId);
+		// Tear down on the input thread so no event is being handled while the receiver goes.
+		mInputHandler.post(() -> {
+			state.mInputReceiver.dispose();
+			state.mInputMonitor.dispose();
+			state.mVelocityTracker.recycle();
+		});
+	}
+
+	private DisplayScrollState getDisplayState(int displayId) {
+		synchronized (mDisplayStates) {
+			return mDisplayStates.get(displayId);
+		}
+	}
+
+	private DisplayScrollState[] getDisplayStates() {
+		synchronized (mDisplayStates) {
+			final DisplayScrollState[] states = new DisplayScrollState[mDisplayStates.size()];
+			for (int i = 0; i < states.length; i++) {
+				states[i] = mDisplayStates.valueAt(i);
+			}
+			return states;
+		}
+	}
+
+	/**
+	 * @return the display the calling app's window is focused on, or the top focused display if
+	 *         the caller has no focused window, e.g. for shell commands. May be {@code null} while
+	 *         displays are being added.
+	 */
+	private DisplayScrollState getCallerDisplayState() {
+		final int callingUid = Binder.getCallingUid();
+		for (DisplayScrollState state : getDisplayStates()) {
+			final WindowState focusedWindow = state.mFocusedWindow;
+			if (focusedWindow != null && focusedWindow.getOwningUid() == callingUid) {
+				return state;
+			}
+		}
+		return getDisplayState(mTopFocusedDisplayId);
+	}
+
+	/**
+	 * Receives the gesture monitor stream of one display. This runs for every input event on the
+	 * display, so the MOVE path must not allocate or log: the velocity tracker is only fed, and
+	 * velocity is only computed once the gesture ends. Debug output goes to {@link #mTraceBuffer}
+	 * instead of logcat.
+	 */
 	private class ScrollInputReceiver extends InputEventReceiver {
-		private MotionEvent me;
+		private final DisplayScrollState mState;
 		private int velocityY;
-		private int velocityX;
 		private float velocityYAbs;
 		private float velocityYCm;
-		private float ppi;
-		private Config config;
-		//private float sf;
-		private int duration;
-		private Message msg;
-		public ScrollInputReceiver(InputChannel inputChannel, Looper looper) {
+
+		public ScrollInputReceiver(InputChannel inputChannel, Looper looper,
+				DisplayScrollState state) {
 			super(inputChannel, looper);
+			mState = state;
 		}
+
 		@Override
-		public void onInputEvent(InputEvent e) { 
-			if(e instanceof MotionEvent) {
-				me = (MotionEvent) e;
-				final int action = me.getAction() & MotionEvent.ACTION_MASK;
-				mVelocityTracker.addMovement(me);	
-				switch(action) {
-					case MotionEvent.ACTION_DOWN:
-						mVelocityTracker.computeCurrentVelocity(1000, maxFlingVelocity);
-						velocityY = (int) mVelocityTracker.getYVelocity();
-						Log.i(TAG, "DOWN");
-						Log.i(TAG, "velocityY_DOWN=" + velocityY);
-						if(!mScroller.isFinished()){
-							mScroller.abortAnimation();
-						}
-						break;
-					case MotionEvent.ACTION_MOVE:
-						mVelocityTracker.computeCurrentVelocity(1000, maxFlingVelocity);
-						velocityY = (int) mVelocityTracker.getYVelocity();	
-						Log.i(TAG, "MOVE");
-						Log.i(TAG, "velocityY_MOVE=" + velocityY);				
-						break;
-					case MotionEvent.ACTION_UP:
-					case MotionEvent.ACTION_CANCEL:
-						mVelocityTracker.computeCurrentVelocity(1000, maxFlingVelocity);
-						velocityY = (int) mVelocityTracker.getYVelocity();
-						Log.i(TAG, "UP");
-						Log.i(TAG, "velocityY_UP=" + velocityY);						
-						if (isDesignEnabled && mFocusedWindow != null) {
-							//float upX = me.getX();
-                			//float upY = me.getY();
-							//int scrollX = mScroller.getScrollX();
-							//int scrollY = mScroller.getScrollY();
-							mVelocityTracker.computeCurrentVelocity(1000, maxFlingVelocity);
-							velocityY = (int) mVelocityTracker.getYVelocity();
-							Log.i(TAG, "velocityY_CANCLE=" + velocityY);
-							//velocityX = (int) mVelocityTracker.getXVelocity();
-							velocityYAbs = Math.abs(velocityY);
-							//Log.i(TAG, "upX=" + upX + " upY=" + upY + " scrollX=" + scrollX + " scrollY=" + scrollY);
-							//Log.d(TAG, "upX=" + upX + " upY=" + upY + " width=" + mFocusedWindow.mRequestedWidth + " height=" + mFocusedWindow.mRequestedHeight);
-							if(velocityYAbs >= 1000) {
-								//mScroller.fling(scrollX, scrollY, -velocityX, -velocityY, 0, mFocusedWindow.getAttrs().width, 0, mFocusedWindow.getAttrs().height);
-								velocityYCm = pixelToCm(velocityYAbs);
-								if(isResolutionEnable == true){
-							            switch(resolutionFR){
-							            case 0:
-							            	desiredFrameRate = 90.0f;
-							            	break;
-							            case 1:
-							            	desiredFrameRate = 60.0f;
-							            	break;
-							            case 2:
-							            	desiredFrameRate = 45.0f;
-							            	break;
-							            case 3:
-							            	desiredFrameRate = 30.0f;
-							            	break;
-							            case 4:
-							           	desiredFrameRate = 22.5f;
-							            	break;
-							              case 5:
-							           	desiredFrameRate = 20.0f;
-							            	break;
-							            }
-								}
-								else{
-								    desiredFrameRate = getDesiredFrameRate(velocityY);
-								    Log.i(TAG,"desiredFrameRate = "+desiredFrameRate);
-								}
-								if(isFramerateEnable == true)
-								{   
-								    scaleFactor = 1.0f;
-								}
-								else{
-								scaleFactor = getScaleFactor(velocityYCm);
-								}
-								//duration = mScroller.getSplineFlingDuration(velocityY);
-								//Log.w(TAG, "Duration="+ duration);								
-								config = availableConfigs.get(desiredFrameRate);
-								frameTime = (int)(1.0f / desiredFrameRate * 1000.0f);
-								Log.i(TAG,"frameTime = " + frameTime);
-								allowedConfigs[0] = config.mode;
-								try {
-									//mFocusedWindow.mClient.dispatchModeChanged(scaleFactor, frameTime, config.divisor);
-									//Log.i(TAG,"scalefactor1="+scaleFactor);
-									mFocusedWindow.mClient.dispatchModeChanged(scaleFactor, frameTime, config.divisor);
-									Log.i(TAG, "scalefactor2 = " + scaleFactor);
-									SurfaceControl.setAllowedDisplayConfigs(mDisplayToken, allowedConfigs);//guess change framerate 
-									Log.i(TAG, "try_scrollmoniter");
-								} catch (RemoteException re) {
-									Log.e(TAG, "RPC error: " + re);
-								}
-									
-								//Log.d(TAG, "velocityY=" + velocityY + " velocityYCm=" + velocityYCm + " duration=" + duration + " scaleFactor=" + scaleFactor + " desiredFrameRate=" + desiredFrameRate);
-							}
-						}
-						break;
-				}				
+		public void onInputEvent(InputEvent e) {
+			try {
+				if (e instanceof MotionEvent) {
+					onMotionEvent((MotionEvent) e);
+				}
+			} finally {
+				finishInputEvent(e, false);
+			}
+		}
+
+		private void onMotionEvent(MotionEvent me) {
+			final int action = me.getActionMasked();
+			mState.mVelocityTracker.addMovement(me);
+			switch (action) {
+				case MotionEvent.ACTION_DOWN:
+					// Touching the screen stops any fling in progress, so drop its remaining
+					// frame rate steps and restore the idle rate for the new gesture.
+					if (mState.mHandler.hasMessages(MSG_FLINGING)
+							|| mState.mHandler.hasMessages(MSG_SCROLL_STOPPED)) {
+						stopScroll(mState, STOP_TOUCH);
+					}
+					if (mTraceBuffer.isEnabled()) {
+						mTraceBuffer.record(action, 0, 0f);
+					}
+					break;
+				case MotionEvent.ACTION_MOVE:
+					if (mTraceBuffer.isEnabled()) {
+						mTraceBuffer.record(action, 0, 0f);
+					}
+					break;
+				case MotionEvent.ACTION_UP:
+				case MotionEvent.ACTION_CANCEL:
+					mState.mVelocityTracker.computeCurrentVelocity(1000, maxFlingVelocity);
+					velocityY = (int) mState.mVelocityTracker.getYVelocity();
+					final boolean flung = onGestureEnd();
+					if (mTraceBuffer.isEnabled()) {
+						mTraceBuffer.record(action, velocityY, flung ? desiredFrameRate : 0f);
+					}
+					break;
+			}
+		}
+
+		/**
+		 * Picks the frame rate and scale for the fling that just started, and pushes it to the
+		 * display's focused window and the display.
+		 *
+		 * @return {@code true} if the gesture was a fling that changed the frame rate.
+		 */
+		private boolean onGestureEnd() {
+			final WindowState focusedWindow = mState.mFocusedWindow;
+			if (!isDesignEnabled || focusedWindow == null) {
+				return false;
+			}
+			velocityYAbs = Math.abs(velocityY);
+			if (velocityYAbs < 1000) {
+				return false;
+			}
+			final ScrollFrameRateTable table = mState.mFrameRateTable;
+			final int index = table.findClosest(isResolutionEnable
+					? getResolutionFrameRate(resolutionFR)
+					: getActiveModel(mState).getFrameRate(velocityYAbs));
+			if (index < 0) {
+				return false;
 			}
+			velocityYCm = pixelToCm(velocityYAbs, mState.mYdpi);
+			desiredFrameRate = table.getFrameRate(index);
+			if (isFramerateEnable) {
+				scaleFactor = 1.0f;
+			} else {
+				scaleFactor = getScaleFactor(velocityYCm, mState.mYdpi);
+			}
+			frameTime = (int) (1.0f / desiredFrameRate * 1000.0f);
+			mMetrics.onFling((int) velocityYAbs, desiredFrameRate);
+			mModeArbiter.requestMode(mState.mDisplayId, focusedWindow,
+					getVoteModeId(table, index), table.getDivisor(index), desiredFrameRate,
+					scaleFactor);
+			mState.mHandler.obtainMessage(MSG_FLING_STARTED, (int) velocityYAbs, index)
+					.sendToTarget();
+			return true;
+		}
+	}
+
+	/**
+	 * Maps the frame rate index selected through the "scalingmode re*" shell commands to a rate.
+	 */
+	private static float getResolutionFrameRate(int index) {
+		switch (index) {
+			case 1:
+				return 60.0f;
+			case 2:
+				return 45.0f;
+			case 3:
+				return 30.0f;
+			case 4:
+				return 22.5f;
+			case 5:
+				return 20.0f;
+			default:
+				return 90.0f;
 		}
 	}
 
+	void setTracingEnabled(boolean enabled) {
+		if (enabled && !mTraceBuffer.isEnabled()) {
+			mTraceBuffer.clear();
+		}
+		mTraceBuffer.setEnabled(enabled);
+	}
+
+	void dumpTrace(PrintWriter pw) {
+		mTraceBuffer.dump(pw, "");
+	}
+
 	@Override
     public void onShellCommand(FileDescriptor in, FileDescriptor out, FileDescriptor err,
             String[] args, ShellCallback callback, ResultReceiver result) {
         new ScrollMonitorShellCommand(this).exec(this, in, out, err, args, callback, result);
     }
 
+	/**
+	 * Tracks the focused window of every display. Focus changes are reported globally, so each
+	 * display's own focused window is looked up rather than the window with global focus.
+	 */
 	private class WindowFocusChangeListener implements WindowManagerService.WindowChangeListener {
 		@Override
 		public void windowsChanged() {
@@ -258,78 +416,152 @@ public class ScrollMonitorService extends IScrollMonitorService.Stub{
 		}
 		@Override
 		public void focusChanged() {
-			mFocusedWindow = mWindowManagerService.getFocusedWindow();
-			if (mFocusedWindow != null) {
-				if ((mFocusedWindow.getAttrs().type == 1 || mFocusedWindow.getAttrs().type == 2) && !mFocusedWindow.getWindowTag().toString().contains("launcher")) {
-					Log.d(TAG, "title=" + mFocusedWindow.getWindowTag() + " ApplicationInfo=" + mContext.getApplicationInfo());
-				} else {
-					mFocusedWindow = null;
+			final DisplayScrollState[] states = getDisplayStates();
+			synchronized (mWindowManagerService.mGlobalLock) {
+				final RootWindowContainer root = mWindowManagerService.mRoot;
+				final DisplayContent topFocusedDisplay = root.getTopFocusedDisplayContent();
+				if (topFocusedDisplay != null) {
+					mTopFocusedDisplayId = topFocusedDisplay.getDisplayId();
+				}
+				for (DisplayScrollState state : states) {
+					final DisplayContent dc = root.getDisplayContent(state.mDisplayId);
+					WindowState focusedWindow = dc != null ? dc.mCurrentFocus : null;
+					if (focusedWindow != null && !mFocusFilter.isEligible(focusedWindow)) {
+						focusedWindow = null;
+					}
+					if (focusedWindow == state.mFocusedWindow) {
+						continue;
+					}
+					Log.d(TAG, "focused=" + focusedWindow + " display=" + state.mDisplayId);
+					state.mFocusedWindow = focusedWindow;
+					// Loading the package's model may read from disk, do it on the status thread.
+					state.mHandler.obtainMessage(MSG_FOCUS_CHANGED, focusedWindow).sendToTarget();
 				}
 			}
 		}
 	}
 
-	private float pixelToCm(float pixels) {
+	private static float pixelToCm(float pixels, float ydpi) {
 		return pixels / ydpi * 2.54f;
 	}
 
-	private float getDesiredFrameRate (int velocity) {
-		int velocityAbs = Math.abs(velocity);
-		int minDistance = Math.abs(velocityAbs - velocityCandidates[0]);
-		int closestVelocity = velocityCandidates[0];
-
-		for(int v : velocityCandidates) {
-			int distance = Math.abs(velocityAbs - v);
-			if (distance <= minDistance) {
-				closestVelocity = v;
-				minDistance = distance;
-			}
+	/**
+	 * Starts and stops monitoring displays as they come and go, and rebuilds a display's frame
+	 * rate table when its supported modes change.
+	 */
+	private class ScrollDisplayListener implements DisplayManager.DisplayListener {
+		@Override
+		public void onDisplayAdded(int displayId) {
+			addDisplay(displayId);
 		}
-		if(model != null) {
-			return model.get(closestVelocity);
+
+		@Override
+		public void onDisplayRemoved(int displayId) {
+			removeDisplay(displayId);
 		}
-		else {
-			return 60.0f;
+
+		@Override
+		public void onDisplayChanged(int displayId) {
+			final DisplayScrollState state = getDisplayState(displayId);
+			if (state == null
+					|| !state.mFrameRateTable.isStale(state.mDisplay.getSupportedModes())) {
+				return;
+			}
+			state.mFrameRateTable = ScrollFrameRateTable.create(state.mDisplay);
 		}
 	}
 
-	//parameters for pixel 4 xl only
-	private float getScaleFactor(float velocityYCm) {
-		double velocityYAngle = Math.atan((velocityYCm / 2) / 35) * (180 / 3.1416) * 2;
+	/**
+	 * @return the frame rate table of the top focused display.
+	 */
+	ScrollFrameRateTable getFrameRateTable() {
+		final DisplayScrollState state = getDisplayState(mTopFocusedDisplayId);
+		return state != null ? state.mFrameRateTable : ScrollFrameRateTable.create(null, null);
+	}
+
+	/**
+	 * Estimates the resolution scale at which content moving at {@code velocityYCm} is still
+	 * perceived as sharp, from the display's pixel density and a typical viewing distance.
+	 */
+	private static float getScaleFactor(float velocityYCm, float ydpi) {
+		double velocityYAngle = Math.atan((velocityYCm / 2) / VIEWING_DISTANCE_CM) * (180 / 3.1416) * 2;
 		double acuity = 1 + 3.089 * 0.000001 * velocityYAngle * velocityYAngle * velocityYAngle;
-		float scaleFactor = (float) (1 / (2  *35 *537 * Math.tan((((acuity / 60) * 3.1416) / 180) / 2)));
+		float scaleFactor = (float) (1 / (2 * VIEWING_DISTANCE_CM * ydpi
+				* Math.tan((((acuity / 60) * 3.1416) / 180) / 2)));
 		scaleFactor = Math.round(scaleFactor * 1000.0f) / 1000.0f;
 		return scaleFactor;
 	}
 
+	/**
+	 * @return the modes supported by the top focused display.
+	 */
 	public Display.Mode[] getDisplayModes () {
-		Display.Mode[] modes = mDisplay.getSupportedModes();
-		return modes;
+		final DisplayScrollState state = getDisplayState(mTopFocusedDisplayId);
+		return state != null ? state.mDisplay.getSupportedModes() : null;
 	}
 
 	@Override
 	public boolean setFrameRate(float frameRate) {
-		if(!availableConfigs.containsKey(frameRate)) 
+		final DisplayScrollState state = getCallerDisplayState();
+		if (state == null) {
 			return false;
-		Config c = availableConfigs.get(frameRate);
-		frameTime = (int)(1.0f / frameRate * 1000.0f);
-		allowedConfigs[0] = c.mode;
-		if (mFocusedWindow != null) {
-			try {
-				mFocusedWindow.mClient.setFrameRate(c.divisor);			
-				SurfaceControl.setAllowedDisplayConfigs(mDisplayToken, allowedConfigs);
-			} catch (RemoteException re) {
-				Log.e(TAG, "RPC error: " + re);
-				return false;
-			}
-		} else {
+		}
+		final ScrollFrameRateTable table = state.mFrameRateTable;
+		final int index = table.indexOf(frameRate);
+		if (index < 0) {
+			return false;
+		}
+		return applyFrameRate(state, table, index);
+	}
+
+	/**
+	 * Asks the display's focused window and the display to switch to the frame rate at
+	 * {@code index} of {@code table}. The switch is committed asynchronously by
+	 * {@link #mModeArbiter}.
+	 *
+	 * @return {@code false} if the display has no focused window, in which case the scroll vote
+	 *         is withdrawn instead.
+	 */
+	private boolean applyFrameRate(DisplayScrollState state, ScrollFrameRateTable table,
+			int index) {
+		final WindowState focusedWindow = state.mFocusedWindow;
+		frameTime = (int) (1.0f / table.getFrameRate(index) * 1000.0f);
+		if (focusedWindow == null) {
+			withdrawFrameRate(state);
 			return false;
 		}
+		mModeArbiter.requestMode(state.mDisplayId, focusedWindow,
+				getVoteModeId(table, index), table.getDivisor(index), table.getFrameRate(index),
+				ScrollModeArbiter.KEEP_SCALE);
 		return true;
 	}
 
+	/**
+	 * Withdraws the scroll vote of a display without an eligible focused window, so that the
+	 * display doesn't stay at a lowered mode for whichever window is focused next.
+	 */
+	private void withdrawFrameRate(DisplayScrollState state) {
+		final ScrollFrameRateTable table = state.mFrameRateTable;
+		mModeArbiter.requestMode(state.mDisplayId, null /* window */, 0 /* modeId */,
+				1 /* divisor */, table.isEmpty() ? 0 : table.getMaxFrameRate(),
+				ScrollModeArbiter.KEEP_SCALE);
+	}
+
+	/**
+	 * @return the display mode to vote for to run at the frame rate at {@code index}, or 0 for
+	 *         the fastest rate: that is what the display runs at without a vote, so the vote is
+	 *         withdrawn instead of pinning the display to it.
+	 */
+	private static int getVoteModeId(ScrollFrameRateTable table, int index) {
+		return index == table.size() - 1 ? 0 : table.getModeId(index);
+	}
+
+	/**
+	 * @return the focused window of the top focused display.
+	 */
 	public WindowState getFocusedWindow() {
-		return mFocusedWindow;
+		final DisplayScrollState state = getDisplayState(mTopFocusedDisplayId);
+		return state != null ? state.mFocusedWindow : null;
 	}
 
 	public boolean setScaleFactor(float scale) {
@@ -341,119 +573,322 @@ public class ScrollMonitorService extends IScrollMonitorService.Stub{
 		}
 	}
 
+	/**
+	 * Applies frame rate changes for one display off the input thread. When a fling starts it
+	 * plans the rest of the fling ahead of time: the {@link Scroller} spline gives the fling's
+	 * duration and velocity curve, so the rate can step down as the content slows and go back to
+	 * the idle rate when the fling is predicted to end, without waiting for the app to call
+	 * {@link #notifyScrollStopped()}.
+	 */
 	private class StatusCheckHandler extends Handler {
-		public StatusCheckHandler(Looper looper) {
+		private final DisplayScrollState mState;
+
+		public StatusCheckHandler(Looper looper, DisplayScrollState state) {
 			super(looper);
+			mState = state;
 		}
+
 		@Override
-		public void handleMessage(Message msg){
+		public void handleMessage(Message msg) {
 			super.handleMessage(msg);
 			switch (msg.what) {
-				case MSG_SCROLL_STOPPED:						
-					Log.d(TAG, "scroll stopped!!!!!!");
-					//+
-					Config c = availableConfigs.get(90.0f);
-					if(resolutionFR == 0){
-					c = availableConfigs.get(90.0f);
-					frameTime = (int)(1.0f / 90.0f * 1000.0f);
-					allowedConfigs[0] = c.mode;
-					}else if (resolutionFR == 1){
-					c = availableConfigs.get(60.0f);
-					frameTime = (int)(1.0f / 60.0f * 1000.0f);
-					allowedConfigs[0] = c.mode;
-					}else if (resolutionFR == 2){
-					c = availableConfigs.get(45.0f);
-					frameTime = (int)(1.0f / 45.0f * 1000.0f);
-					allowedConfigs[0] = c.mode;
-					}else if (resolutionFR == 3){
-					c = availableConfigs.get(30.0f);
-					frameTime = (int)(1.0f / 30.0f * 1000.0f);
-					allowedConfigs[0] = c.mode;
-					}else if (resolutionFR == 4){
-					c = availableConfigs.get(22.5f);
-					frameTime = (int)(1.0f / 22.5f * 1000.0f);
-					allowedConfigs[0] = c.mode;
+				case MSG_SCROLL_STOPPED: {
+					removeMessages(MSG_FLINGING);
+					removeMessages(MSG_SCROLL_STOPPED);
+					learnFromFling(msg.arg1);
+					mMetrics.drain();
+					final ScrollFrameRateTable table = mState.mFrameRateTable;
+					final int index = table.findClosest(getResolutionFrameRate(resolutionFR));
+					if (index >= 0) {
+						applyFrameRate(mState, table, index);
 					}
-					
-					//mFocusedWindow.mClient.setFrameRate(c.divisor);	
-					//SurfaceControl.setAllowedDisplayConfigs(mDisplayToken, allowedConfigs);
-					if (mFocusedWindow != null) {
-						try {
-							mFocusedWindow.mClient.setFrameRate(c.divisor);			
-							SurfaceControl.setAllowedDisplayConfigs(mDisplayToken, allowedConfigs);
-						} catch (RemoteException re) {
-						Log.e(TAG, "RPC error: " + re);
-						return ;
-						}
-					} else {
-						return ;
+					break;
+				}
+				case MSG_FLING_STARTED:
+					scheduleFling(msg.arg1, msg.arg2);
+					break;
+				case MSG_FLINGING: {
+					final ScrollFrameRateTable table = mState.mFrameRateTable;
+					if (msg.obj == table) {
+						applyFrameRate(mState, table, msg.arg1);
 					}
-					//Log.d(TAG, " STOP FrameRate= "  );
 					break;
-			}			
+				}
+				case MSG_FOCUS_CHANGED:
+					loadFocusedModel((WindowState) msg.obj);
+					break;
+			}
+		}
+
+		private void loadFocusedModel(WindowState focusedWindow) {
+			// The fling belongs to the previous window, don't learn from it.
+			mState.mFlingVelocity = 0;
+			if (focusedWindow == null) {
+				mState.mFocusedPackage = null;
+				mState.mFocusedModel = null;
+				// Nothing is left to restore the rate when the fling ends.
+				removeMessages(MSG_FLINGING);
+				removeMessages(MSG_SCROLL_STOPPED);
+				withdrawFrameRate(mState);
+				return;
+			}
+			mState.mFocusedPackage = focusedWindow.getOwningPackage();
+			mState.mFocusedUserId = UserHandle.getUserId(focusedWindow.getOwningUid());
+			mState.mFocusedModel =
+					mModelPersister.getModel(mState.mFocusedUserId, mState.mFocusedPackage);
 		}
+
+		/**
+		 * Nudges the focused package's model based on how the last fling ended. A fling that ran
+		 * to its predicted end without the user touching it is taken as a sign the rate at its
+		 * start velocity could have been a little lower. A fling the user caught while it was
+		 * running below the top rate is taken as a sign the rate was too low at the velocity it
+		 * had reached.
+		 */
+		private void learnFromFling(int reason) {
+			final int velocity = mState.mFlingVelocity;
+			mState.mFlingVelocity = 0;
+			final ScrollFrameRateTable table = mState.mFrameRateTable;
+			if (velocity == 0 || mState.mFocusedPackage == null || mFixedFrameRate
+					|| isResolutionEnable || table.isEmpty()) {
+				return;
+			}
+			final float learnVelocity;
+			final float delta;
+			if (reason == STOP_PREDICTED_END) {
+				learnVelocity = velocity;
+				delta = -LEARN_DOWN_STEP;
+			} else if (reason == STOP_TOUCH && mState.mFlingLowered) {
+				final int elapsed = (int) Math.min(
+						SystemClock.uptimeMillis() - mState.mFlingStartTime, mState.mFlingDuration);
+				learnVelocity = getFlingVelocity(velocity, mState.mFlingDuration, elapsed);
+				delta = LEARN_UP_STEP;
+			} else {
+				return;
+			}
+			final ScrollFrameRateModel learned = getActiveModel(mState).adjust(learnVelocity,
+					delta, table.getFrameRate(0), table.getMaxFrameRate(), model, LEARN_MAX_DROP);
+			mState.mFocusedModel = learned;
+			mModelPersister.setModel(mState.mFocusedUserId, mState.mFocusedPackage, learned);
+		}
+
+		/**
+		 * Plans the frame rate for the rest of a fling that was started at {@code velocity} px/s
+		 * and the rate at {@code startIndex} of the display's frame rate table.
+		 */
+		private void scheduleFling(int velocity, int startIndex) {
+			removeMessages(MSG_FLINGING);
+			removeMessages(MSG_SCROLL_STOPPED);
+
+			// Shared between displays, but only ever used on the status thread.
+			mScroller.fling(0, 0, 0, velocity, 0, 0, Integer.MIN_VALUE, Integer.MAX_VALUE);
+			final int duration = mScroller.getDuration();
+			mScroller.abortAnimation();
+
+			final long start = SystemClock.uptimeMillis();
+			final ScrollFrameRateTable table = mState.mFrameRateTable;
+			final ScrollFrameRateModel currentModel = getActiveModel(mState);
+			mState.mFlingVelocity = velocity;
+			mState.mFlingDuration = duration;
+			mState.mFlingStartTime = start;
+			mState.mFlingLowered = startIndex < table.size() - 1;
+			if (!isResolutionEnable) {
+				int index = startIndex;
+				for (int t = FLING_PLAN_SAMPLE_MS; t < duration; t += FLING_PLAN_SAMPLE_MS) {
+					final int next = table.findClosest(
+							currentModel.getFrameRate(getFlingVelocity(velocity, duration, t)));
+					// Only ever step down; a lower velocity never needs a higher rate.
+					if (next >= 0 && next < index) {
+						index = next;
+						mState.mFlingLowered = true;
+						// The table is attached so steps planned against a stale table are dropped.
+						sendMessageAtTime(obtainMessage(MSG_FLINGING, index, 0, table), start + t);
+					}
+				}
+			}
+			sendMessageAtTime(obtainMessage(MSG_SCROLL_STOPPED, STOP_PREDICTED_END, 0),
+					start + duration);
+		}
+	}
+
+	/**
+	 * @return the velocity {@code t} ms into a fling that started at {@code velocity} and lasts
+	 *         {@code duration} ms. The {@link Scroller} spline is self-similar: the rest of a fling
+	 *         behaves like a new fling at the current velocity, and since fling duration grows
+	 *         with velocity^(1 / (DECELERATION_RATE - 1)), velocity decays with the remaining
+	 *         time to the power of DECELERATION_RATE - 1.
+	 */
+	private static float getFlingVelocity(int velocity, int duration, int t) {
+		return velocity * (float) Math.pow(1.0f - (float) t / duration, DECELERATION_RATE - 1);
+	}
+
+	/**
+	 * @return the model for the display's focused window: its package's learned model if it has
+	 *         one, otherwise the global model.
+	 */
+	private ScrollFrameRateModel getActiveModel(DisplayScrollState state) {
+		final ScrollFrameRateModel focusedModel = state.mFocusedModel;
+		return focusedModel != null && !mFixedFrameRate ? focusedModel : model;
 	}
 
 	public void resetModel() {
-		if (model == null) {
-			model = new HashMap<Integer, Float>();
-		}
-		model.clear();
-		model.put(1000, 22.5f);
-		model.put(2000, 30.0f);
-		model.put(4000, 30.0f);
-		model.put(6000, 45.0f);
-		model.put(8000, 60.0f);
-		model.put(10000, 60.0f);
-		model.put(12500, 60.0f);
-		model.put(15000, 60.0f);
-		model.put(17500, 60.0f);
-		model.put(20000, 60.0f);
+		mFixedFrameRate = false;
+		model = ScrollFrameRateModel.getDefault();
 	}
 
+	/**
+	 * Makes every fling run at {@code frameRate}, which must be supported by the top focused
+	 * display.
+	 */
 	public boolean setFixedFrameRate(float frameRate) {
-		if(!availableConfigs.containsKey(frameRate)) 
+		if (getFrameRateTable().indexOf(frameRate) < 0) {
 			return false;
-		if (model == null) {
-			model = new HashMap<Integer, Float>();
-		}
-		model.clear();
-		for (int v : velocityCandidates) {
-			model.put(v, frameRate);
 		}
+		model = ScrollFrameRateModel.createFixed(frameRate);
+		mFixedFrameRate = true;
 		return true;
 	}
 
+	/**
+	 * Replaces the speed to frame rate model.
+	 *
+	 * @param speedToFR map of fling velocity in px/s to frame rate. Any number of calibration
+	 *                  points is accepted; rates between points are interpolated.
+	 * @return {@code false} if the map is not a valid model, in which case the current model is
+	 *         kept.
+	 */
 	@Override
 	public boolean setModel(Map speedToFR) {
-		if (speedToFR != null && model != null) {
-			model.clear();
-			for (Integer velocity : velocityCandidates) {
-				Float frameRate = (Float) speedToFR.get(velocity);
-				if (frameRate != null && availableConfigs.containsKey(frameRate)) {
-					model.put(velocity, frameRate);
-				} else {
-					model.clear();
-					resetModel();
-					return false;
-				}
-			}
-			return true;
+		final ScrollFrameRateModel newModel = ScrollFrameRateModel.fromMap(speedToFR);
+		if (newModel == null) {
+			return false;
 		}
-		return false;
+		mFixedFrameRate = false;
+		model = newModel;
+		return true;
 	}
 
-	public Map<Integer, Float> getModel() {
+	boolean setModel(float[] velocities, float[] frameRates) {
+		final ScrollFrameRateModel newModel = ScrollFrameRateModel.create(velocities, frameRates);
+		if (newModel == null) {
+			return false;
+		}
+		mFixedFrameRate = false;
+		model = newModel;
+		return true;
+	}
+
+	public ScrollFrameRateModel getModel() {
 		return model;
 	}
 
+	/**
+	 * Replaces the model of a package, which is used instead of the global model while one of
+	 * the package's windows is focused and keeps being adjusted from then on.
+	 *
+	 * @param speedToFR map of fling velocity in px/s to frame rate, or {@code null} to drop the
+	 *                  package's model.
+	 * @return {@code false} if the map is not a valid model.
+	 */
+	public boolean setPackageModel(String packageName, int userId, Map speedToFR) {
+		ScrollFrameRateModel newModel = null;
+		if (speedToFR != null) {
+			newModel = ScrollFrameRateModel.fromMap(speedToFR);
+			if (newModel == null) {
+				return false;
+			}
+		}
+		mModelPersister.setModel(userId, packageName, newModel);
+		reloadFocusedModels();
+		return true;
+	}
+
+	boolean setPackageModel(String packageName, int userId, float[] velocities,
+			float[] frameRates) {
+		final ScrollFrameRateModel newModel = ScrollFrameRateModel.create(velocities, frameRates);
+		if (newModel == null) {
+			return false;
+		}
+		mModelPersister.setModel(userId, packageName, newModel);
+		reloadFocusedModels();
+		return true;
+	}
+
+	/**
+	 * Picks up a changed package model on the displays where the package is focused.
+	 */
+	private void reloadFocusedModels() {
+		for (DisplayScrollState state : getDisplayStates()) {
+			state.mHandler.obtainMessage(MSG_FOCUS_CHANGED, state.mFocusedWindow).sendToTarget();
+		}
+	}
+
+	/**
+	 * @return the model of a package, or {@code null} if it uses the global model. May read from
+	 *         disk.
+	 */
+	ScrollFrameRateModel getPackageModel(String packageName, int userId) {
+		return mModelPersister.getModel(userId, packageName);
+	}
+
+	/**
+	 * Restores the idle frame rate on the display the calling app is focused on.
+	 */
 	@Override
 	public void notifyScrollStopped() {
-		Message msg =mStatusCheckHandler.obtainMessage(MSG_SCROLL_STOPPED);
-		mStatusCheckHandler.sendMessageAtFrontOfQueue(msg);
+		final DisplayScrollState state = getCallerDisplayState();
+		if (state != null) {
+			stopScroll(state, STOP_APP);
+		}
+	}
+
+	private void stopScroll(DisplayScrollState state, int reason) {
+		Message msg = state.mHandler.obtainMessage(MSG_SCROLL_STOPPED, reason, 0);
+		state.mHandler.sendMessageAtFrontOfQueue(msg);
 	}
 
 	public String getServeceInfo() {
 		return "pid=" + pid;
 	}
+
+	void dumpDisplays(PrintWriter pw) {
+		pw.println("Displays: topFocused=" + mTopFocusedDisplayId);
+		for (DisplayScrollState state : getDisplayStates()) {
+			pw.println("  display=" + state.mDisplayId + " ydpi=" + state.mYdpi
+					+ " focused=" + state.mFocusedWindow
+					+ " learned=" + (state.mFocusedModel != null));
+		}
+	}
+
+	void dumpMetrics(PrintWriter pw) {
+		mMetrics.dump(pw, "");
+	}
+
+	void resetMetrics() {
+		mMetrics.reset();
+	}
+
+	@Override
+	protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+		if (!DumpUtils.checkDumpPermission(mContext, TAG, pw)) return;
+		pw.println("SCROLL MONITOR");
+		pw.println(getServeceInfo());
+		dumpDisplays(pw);
+		mFocusFilter.dump(pw, "");
+		mModeArbiter.dump(pw, "");
+		mModelPersister.dump(pw, "");
+		mMetrics.dump(pw, "");
+	}
+
+	void dumpFocusFilter(PrintWriter pw) {
+		mFocusFilter.dump(pw, "");
+	}
+
+	void dumpModeArbiter(PrintWriter pw) {
+		mModeArbiter.dump(pw, "");
+	}
+
+	void dumpModelPersister(PrintWriter pw) {
+		mModelPersister.dump(pw, "");
+	}
 } 
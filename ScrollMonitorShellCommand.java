@@ -25,7 +25,6 @@ import android.os.UserHandle;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -70,6 +69,12 @@ public class ScrollMonitorShellCommand extends ShellCommand {
                     return runDisplayModes(pw);
                 case "outputmodel":
                     return runOutputModel(pw);
+                case "setmodel":
+                    return runSetModel(pw);
+                case "trace":
+                    return runTrace(pw);
+                case "metrics":
+                    return runMetrics(pw);
                 default:
                     return handleDefaultCommands(cmd);
             }
@@ -102,12 +107,63 @@ public class ScrollMonitorShellCommand extends ShellCommand {
         }
     }
 
+    private int runTrace(PrintWriter pw) throws RemoteException {
+        String arg = getNextArg();
+        if (arg == null) {
+            pw.println("Bad argument");
+            return -1;
+        }
+        switch (arg) {
+            case "on":
+                mInternal.setTracingEnabled(true);
+                return 0;
+            case "off":
+                mInternal.setTracingEnabled(false);
+                return 0;
+            case "dump":
+                mInternal.dumpTrace(pw);
+                return 0;
+            default:
+                pw.println("Bad argument");
+                return -1;
+        }
+    }
+
+    private int runMetrics(PrintWriter pw) throws RemoteException {
+        String arg = getNextArg();
+        if (arg == null) {
+            mInternal.dumpMetrics(pw);
+            return 0;
+        }
+        if (arg.equals("reset")) {
+            mInternal.resetMetrics();
+            return 0;
+        }
+        pw.println("Bad argument");
+        return -1;
+    }
+
     private int runOutputModel(PrintWriter pw) throws RemoteException {
-        Map<Integer, Float> model = mInternal.getModel();
-        if (model != null) {
-            for(Map.Entry<Integer, Float> entry : model.entrySet()) {
-                pw.println("speed: " + entry.getKey() + " frame rate: " + entry.getValue());
+        String packageName = null;
+        int userId = UserHandle.USER_SYSTEM;
+        String opt;
+        while ((opt = getNextOption()) != null) {
+            switch (opt) {
+                case "--package":
+                    packageName = getNextArgRequired();
+                    break;
+                case "--user":
+                    userId = UserHandle.parseUserArg(getNextArgRequired());
+                    break;
+                default:
+                    pw.println("Unknown option: " + opt);
+                    return -1;
             }
+        }
+        ScrollFrameRateModel model = packageName != null
+                ? mInternal.getPackageModel(packageName, userId) : mInternal.getModel();
+        if (model != null) {
+            model.dump(pw, "");
             return 0;
         } else {
             pw.println("no model found!!!");
@@ -115,6 +171,55 @@ public class ScrollMonitorShellCommand extends ShellCommand {
         }
     }
 
+    private int runSetModel(PrintWriter pw) throws RemoteException {
+        String packageName = null;
+        int userId = UserHandle.USER_SYSTEM;
+        String opt;
+        while ((opt = getNextOption()) != null) {
+            switch (opt) {
+                case "--package":
+                    packageName = getNextArgRequired();
+                    break;
+                case "--user":
+                    userId = UserHandle.parseUserArg(getNextArgRequired());
+                    break;
+                default:
+                    pw.println("Unknown option: " + opt);
+                    return -1;
+            }
+        }
+        final ArrayList<String> points = new ArrayList<>();
+        String arg;
+        while ((arg = getNextArg()) != null) {
+            points.add(arg);
+        }
+        final float[] velocities = new float[points.size()];
+        final float[] frameRates = new float[points.size()];
+        for (int i = 0; i < points.size(); i++) {
+            final String point = points.get(i);
+            final int separator = point.indexOf(':');
+            try {
+                velocities[i] = Float.parseFloat(point.substring(0, separator));
+                frameRates[i] = Float.parseFloat(point.substring(separator + 1));
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                pw.println("invalid point: " + point);
+                return -1;
+            }
+        }
+        if (packageName != null && points.isEmpty()) {
+            mInternal.setPackageModel(packageName, userId, null);
+            return 0;
+        }
+        final boolean valid = packageName != null
+                ? mInternal.setPackageModel(packageName, userId, velocities, frameRates)
+                : mInternal.setModel(velocities, frameRates);
+        if (!valid) {
+            pw.println("invalid model");
+            return -1;
+        }
+        return 0;
+    }
+
     private int runSetFrameRate(PrintWriter pw) throws RemoteException {
         String arg1 = getNextArg();
         try {
@@ -142,6 +247,7 @@ public class ScrollMonitorShellCommand extends ShellCommand {
                 pw.println(mode);
             }
             pw.println("current in-use mode=" + window.mAttrs.preferredDisplayModeId);
+            mInternal.getFrameRateTable().dump(pw, "");
             return 0;
         }
 
@@ -247,6 +353,10 @@ public class ScrollMonitorShellCommand extends ShellCommand {
 
     private int runOutputInfo(PrintWriter pw) throws RemoteException {
         pw.println(mInternal.getServeceInfo());
+        mInternal.dumpDisplays(pw);
+        mInternal.dumpFocusFilter(pw);
+        mInternal.dumpModeArbiter(pw);
+        mInternal.dumpModelPersister(pw);
         return 0;
         
         /*WindowState window = mInternal.getFocusedWindow();
@@ -269,6 +379,18 @@ public class ScrollMonitorShellCommand extends ShellCommand {
         pw.println("      Print this help text.");
         pw.println("  test");
         pw.println("      test [good]");
+        pw.println("  outputmodel [--package <PACKAGE> [--user <USER_ID>]]");
+        pw.println("      Print the speed to frame rate model, or the model learned for a");
+        pw.println("      package.");
+        pw.println("  setmodel [--package <PACKAGE> [--user <USER_ID>]]");
+        pw.println("          <speed>:<frame rate> [<speed>:<frame rate> ...]");
+        pw.println("      Set the speed to frame rate model. Speeds are in px/s; frame rates");
+        pw.println("      between points are interpolated. With --package, set the model");
+        pw.println("      of a package instead; without points, drop the package's model.");
+        pw.println("  trace (on | off | dump)");
+        pw.println("      Start, stop or print the scroll input event trace.");
+        pw.println("  metrics [reset]");
+        pw.println("      Print or reset fling, frame rate and mode switch histograms.");
         if (!IS_USER) {
             pw.println("  tracing (start | stop)");
             pw.println("    Start or stop window tracing.");
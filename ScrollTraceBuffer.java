@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm;
+
+import android.os.SystemClock;
+import android.view.MotionEvent;
+
+import java.io.PrintWriter;
+
+/**
+ * Fixed-size ring buffer used by {@link ScrollMonitorService} to trace input events without
+ * allocating on the input thread. Entries are stored in preallocated primitive arrays and
+ * overwrite the oldest entry once the buffer is full.
+ *
+ * Only the input thread writes to the buffer; readers (dumps) may observe a partially written
+ * entry, which is acceptable for debugging output.
+ */
+class ScrollTraceBuffer {
+    static final int DEFAULT_CAPACITY = 256;
+
+    private final long[] mTimes;
+    private final int[] mActions;
+    private final int[] mVelocities;
+    private final float[] mFrameRates;
+    private final int mCapacity;
+
+    private volatile boolean mEnabled;
+    private int mNext;
+    private long mCount;
+
+    ScrollTraceBuffer(int capacity) {
+        mCapacity = capacity;
+        mTimes = new long[capacity];
+        mActions = new int[capacity];
+        mVelocities = new int[capacity];
+        mFrameRates = new float[capacity];
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * Records an entry. Callers should check {@link #isEnabled()} first so that the disabled
+     * path costs a single volatile read.
+     *
+     * @param action the masked {@link MotionEvent} action
+     * @param velocityY the vertical velocity in px/s, or 0 if not computed for this event
+     * @param frameRate the frame rate chosen for this event, or 0 if none was chosen
+     */
+    void record(int action, int velocityY, float frameRate) {
+        final int i = mNext;
+        mTimes[i] = SystemClock.uptimeMillis();
+        mActions[i] = action;
+        mVelocities[i] = velocityY;
+        mFrameRates[i] = frameRate;
+        mNext = i + 1 == mCapacity ? 0 : i + 1;
+        mCount++;
+    }
+
+    void clear() {
+        mNext = 0;
+        mCount = 0;
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        final long count = mCount;
+        final int size = (int) Math.min(count, mCapacity);
+        pw.println(prefix + "ScrollTraceBuffer enabled=" + mEnabled + " recorded=" + count
+                + " capacity=" + mCapacity);
+        int i = size < mCapacity ? 0 : mNext;
+        for (int n = 0; n < size; n++) {
+            pw.print(prefix);
+            pw.print("  t=");
+            pw.print(mTimes[i]);
+            pw.print(" action=");
+            pw.print(MotionEvent.actionToString(mActions[i]));
+            pw.print(" vY=");
+            pw.print(mVelocities[i]);
+            if (mFrameRates[i] != 0f) {
+                pw.print(" fps=");
+                pw.print(mFrameRates[i]);
+            }
+            pw.println();
+            i = i + 1 == mCapacity ? 0 : i + 1;
+        }
+    }
+}
@@ -73,7 +73,10 @@ class SurfaceAnimator {
             @Nullable Runnable animationFinishedCallback) {
         return anim -> {
             synchronized (mService.mGlobalLock) {
-                final SurfaceAnimator target = mService.mAnimationTransferMap.remove(anim);
+                final SurfaceAnimator target;
+                synchronized (mService.mAnimationTransferMap) {
+                    target = mService.mAnimationTransferMap.remove(anim);
+                }
                 if (target != null) {
                     target.mInnerAnimationFinishedCallback.onAnimationFinished(anim);
                     return;
@@ -237,7 +240,9 @@ class SurfaceAnimator {
         t.reparent(surface, mLeash);
         t.reparent(mLeash, parent);
         mAnimatable.onAnimationLeashCreated(t, mLeash);
-        mService.mAnimationTransferMap.put(mAnimation, this);
+        synchronized (mService.mAnimationTransferMap) {
+            mService.mAnimationTransferMap.put(mAnimation, this);
+        }
     }
 
     boolean isAnimationStartDelayed() {
@@ -296,7 +301,11 @@ class SurfaceAnimator {
                 scheduleAnim = true;
             }
         }
-        mService.mAnimationTransferMap.remove(mAnimation);
+        // Also reached from displays preparing their surfaces in parallel, see
+        // WindowAnimator#prepareSurfacesInParallel.
+        synchronized (mService.mAnimationTransferMap) {
+            mService.mAnimationTransferMap.remove(mAnimation);
+        }
         if (mLeash != null && destroyLeash) {
             t.remove(mLeash);
             scheduleAnim = true;
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.wm;
+
+import static com.android.server.policy.WindowManagerPolicy.FINISH_LAYOUT_REDO_ANIM;
+import static com.android.server.policy.WindowManagerPolicy.FINISH_LAYOUT_REDO_CONFIG;
+import static com.android.server.policy.WindowManagerPolicy.FINISH_LAYOUT_REDO_LAYOUT;
+import static com.android.server.policy.WindowManagerPolicy.FINISH_LAYOUT_REDO_WALLPAPER;
+
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+
+/**
+ * Times the phases of each surface placement traversal and attributes the traversals and layouts
+ * that had to be repeated to the display and the {@code FINISH_LAYOUT_REDO_*} flags that caused
+ * them. Started and stopped with {@code adb shell cmd window placement-profile}, and printed by
+ * {@code dumpsys window placement}.
+ * <p>
+ * All the hooks return straight away while the profiler is stopped, so it costs next to nothing
+ * then.
+ * <p>
+ * Access to this class should be guarded by the global window manager lock.
+ */
+class SurfacePlacementProfiler {
+
+    /** Layout, including the post layout policy, repeated until the display settles. */
+    static final int PHASE_LAYOUT = 0;
+    /** Applying the surface changes of the windows, excluding {@link #PHASE_LAYOUT}. */
+    static final int PHASE_SURFACE_CHANGES = 1;
+    /** Running the after prepare surfaces runnables and starting ready app transitions. */
+    static final int PHASE_ANIMATOR = 2;
+    /** Updating the input windows, gesture exclusion and touch exclude regions. */
+    static final int PHASE_INPUT = 3;
+    private static final int PHASE_COUNT = 4;
+    private static final String[] PHASE_NAMES = { "layout", "surfaceChanges", "animator", "input" };
+
+    private static final int REASON_REDO_LAYOUT = 0;
+    private static final int REASON_REDO_CONFIG = 1;
+    private static final int REASON_REDO_WALLPAPER = 2;
+    private static final int REASON_REDO_ANIM = 3;
+    /** Layout was needed again without any pending layout changes to show for it. */
+    private static final int REASON_OTHER = 4;
+    private static final int REASON_COUNT = 5;
+    private static final String[] REASON_NAMES = { "layout", "config", "wallpaper", "anim",
+            "other" };
+
+    /** Upper bounds of the buckets of the traversal duration histogram, in milliseconds. */
+    private static final int[] DURATION_BUCKETS_MS = { 1, 2, 4, 8, 16, 32 };
+    /** Layout repeats and passes beyond this share the last bucket of their histogram. */
+    private static final int MAX_COUNT_BUCKET = 6;
+
+    private boolean mEnabled;
+
+    // State of the traversal in progress.
+    private long mTraversalStartNs;
+    private final long[] mPhaseStartNs = new long[PHASE_COUNT];
+    private final long[] mTraversalPhaseNs = new long[PHASE_COUNT];
+    private int mTraversalLayoutRepeats;
+    private int mPasses;
+
+    // Totals since the profiler was last reset.
+    private long mTraversals;
+    private long mTotalNs;
+    private long mMaxNs;
+    private final long[] mPhaseTotalNs = new long[PHASE_COUNT];
+    private final long[] mPhaseMaxNs = new long[PHASE_COUNT];
+    private final long[] mDurationHistogram = new long[DURATION_BUCKETS_MS.length + 1];
+    private final long[] mLayoutRepeatHistogram = new long[MAX_COUNT_BUCKET + 1];
+    private final long[] mPassHistogram = new long[MAX_COUNT_BUCKET + 1];
+    private long mTraversalRepeats;
+    private long mLayoutRepeats;
+    /** Per display, why it needed another traversal, see {@link #onTraversalRepeat}. */
+    private final SparseArray<long[]> mTraversalRepeatReasons = new SparseArray<>();
+    /** Per display, why it needed another layout, see {@link #onLayoutRepeat}. */
+    private final SparseArray<long[]> mLayoutRepeatReasons = new SparseArray<>();
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        mTraversalStartNs = 0;
+        clear(mPhaseStartNs);
+        mPasses = 0;
+    }
+
+    void reset() {
+        mTraversals = 0;
+        mTotalNs = 0;
+        mMaxNs = 0;
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            mPhaseTotalNs[i] = 0;
+            mPhaseMaxNs[i] = 0;
+        }
+        clear(mDurationHistogram);
+        clear(mLayoutRepeatHistogram);
+        clear(mPassHistogram);
+        mTraversalRepeats = 0;
+        mLayoutRepeats = 0;
+        mTraversalRepeatReasons.clear();
+        mLayoutRepeatReasons.clear();
+    }
+
+    private static void clear(long[] values) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 0;
+        }
+    }
+
+    /**
+     * Called when {@link WindowSurfacePlacer#performSurfacePlacement} starts a traversal.
+     */
+    void beginTraversal() {
+        if (!mEnabled) {
+            return;
+        }
+        mTraversalStartNs = System.nanoTime();
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            mTraversalPhaseNs[i] = 0;
+        }
+        mTraversalLayoutRepeats = 0;
+        mPasses++;
+    }
+
+    void beginPhase(int phase) {
+        if (!mEnabled) {
+            return;
+        }
+        mPhaseStartNs[phase] = System.nanoTime();
+    }
+
+    void endPhase(int phase) {
+        if (!mEnabled || mPhaseStartNs[phase] == 0) {
+            return;
+        }
+        mTraversalPhaseNs[phase] += System.nanoTime() - mPhaseStartNs[phase];
+        mPhaseStartNs[phase] = 0;
+    }
+
+    /**
+     * Called when a display needs to lay out again within the same traversal.
+     *
+     * @param pendingLayoutChanges the {@code FINISH_LAYOUT_REDO_*} flags the display has pending.
+     */
+    void onLayoutRepeat(int displayId, int pendingLayoutChanges) {
+        if (!mEnabled) {
+            return;
+        }
+        mTraversalLayoutRepeats++;
+        mLayoutRepeats++;
+        addReasons(mLayoutRepeatReasons, displayId, pendingLayoutChanges);
+    }
+
+    /**
+     * Called when a traversal ends with layout still needed, so another traversal follows.
+     */
+    void onTraversalRepeat(RootWindowContainer root) {
+        if (!mEnabled) {
+            return;
+        }
+        mTraversalRepeats++;
+        root.forAllDisplays(dc -> {
+            if (dc.isLayoutNeeded()) {
+                addReasons(mTraversalRepeatReasons, dc.getDisplayId(), dc.pendingLayoutChanges);
+            }
+        });
+    }
+
+    private static void addReasons(SparseArray<long[]> reasons, int displayId,
+            int pendingLayoutChanges) {
+        long[] counts = reasons.get(displayId);
+        if (counts == null) {
+            counts = new long[REASON_COUNT];
+            reasons.put(displayId, counts);
+        }
+        if ((pendingLayoutChanges & FINISH_LAYOUT_REDO_LAYOUT) != 0) {
+            counts[REASON_REDO_LAYOUT]++;
+        }
+        if ((pendingLayoutChanges & FINISH_LAYOUT_REDO_CONFIG) != 0) {
+            counts[REASON_REDO_CONFIG]++;
+        }
+        if ((pendingLayoutChanges & FINISH_LAYOUT_REDO_WALLPAPER) != 0) {
+            counts[REASON_REDO_WALLPAPER]++;
+        }
+        if ((pendingLayoutChanges & FINISH_LAYOUT_REDO_ANIM) != 0) {
+            counts[REASON_REDO_ANIM]++;
+        }
+        if ((pendingLayoutChanges & (FINISH_LAYOUT_REDO_LAYOUT | FINISH_LAYOUT_REDO_CONFIG
+                | FINISH_LAYOUT_REDO_WALLPAPER | FINISH_LAYOUT_REDO_ANIM)) == 0) {
+            counts[REASON_OTHER]++;
+        }
+    }
+
+    /**
+     * Called when a traversal started by {@link #beginTraversal} ends.
+     */
+    void endTraversal() {
+        if (!mEnabled || mTraversalStartNs == 0) {
+            return;
+        }
+        final long durationNs = System.nanoTime() - mTraversalStartNs;
+        mTraversalStartNs = 0;
+        // Layout runs within the surface changes transaction.
+        mTraversalPhaseNs[PHASE_SURFACE_CHANGES] = Math.max(0,
+                mTraversalPhaseNs[PHASE_SURFACE_CHANGES] - mTraversalPhaseNs[PHASE_LAYOUT]);
+
+        mTraversals++;
+        mTotalNs += durationNs;
+        mMaxNs = Math.max(mMaxNs, durationNs);
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            mPhaseTotalNs[i] += mTraversalPhaseNs[i];
+            mPhaseMaxNs[i] = Math.max(mPhaseMaxNs[i], mTraversalPhaseNs[i]);
+        }
+        final long durationMs = durationNs / 1000000;
+        int bucket = 0;
+        while (bucket < DURATION_BUCKETS_MS.length && durationMs >= DURATION_BUCKETS_MS[bucket]) {
+            bucket++;
+        }
+        mDurationHistogram[bucket]++;
+        mLayoutRepeatHistogram[Math.min(mTraversalLayoutRepeats, MAX_COUNT_BUCKET)]++;
+    }
+
+    /**
+     * Called when {@link WindowSurfacePlacer#performSurfacePlacement} is done with all the
+     * traversals it ran back to back.
+     */
+    void endPlacement() {
+        if (!mEnabled) {
+            return;
+        }
+        if (mPasses > 0) {
+            mPassHistogram[Math.min(mPasses, MAX_COUNT_BUCKET)]++;
+        }
+        mPasses = 0;
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "SurfacePlacementProfiler enabled=" + mEnabled
+                + " traversals=" + mTraversals);
+        if (mTraversals == 0) {
+            return;
+        }
+        final String innerPrefix = prefix + "  ";
+        pw.println(innerPrefix + "total avg=" + formatMs(mTotalNs / mTraversals)
+                + " max=" + formatMs(mMaxNs));
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            pw.println(innerPrefix + PHASE_NAMES[i]
+                    + " avg=" + formatMs(mPhaseTotalNs[i] / mTraversals)
+                    + " max=" + formatMs(mPhaseMaxNs[i]));
+        }
+
+        pw.print(innerPrefix + "duration histogram:");
+        for (int i = 0; i < mDurationHistogram.length; i++) {
+            pw.print(i < DURATION_BUCKETS_MS.length
+                    ? " <" + DURATION_BUCKETS_MS[i] + "ms="
+                    : " >=" + DURATION_BUCKETS_MS[DURATION_BUCKETS_MS.length - 1] + "ms=");
+            pw.print(mDurationHistogram[i]);
+        }
+        pw.println();
+        dumpCountHistogram(pw, innerPrefix + "layout repeats per traversal:",
+                mLayoutRepeatHistogram, 0);
+        dumpCountHistogram(pw, innerPrefix + "traversals per placement:", mPassHistogram, 1);
+
+        pw.println(innerPrefix + "traversal repeats=" + mTraversalRepeats);
+        dumpReasons(pw, innerPrefix + "  ", mTraversalRepeatReasons);
+        pw.println(innerPrefix + "layout repeats=" + mLayoutRepeats);
+        dumpReasons(pw, innerPrefix + "  ", mLayoutRepeatReasons);
+    }
+
+    private static void dumpCountHistogram(PrintWriter pw, String title, long[] histogram,
+            int first) {
+        pw.print(title);
+        for (int i = first; i < histogram.length; i++) {
+            pw.print(" " + i + (i == MAX_COUNT_BUCKET ? "+=" : "=") + histogram[i]);
+        }
+        pw.println();
+    }
+
+    private static void dumpReasons(PrintWriter pw, String prefix, SparseArray<long[]> reasons) {
+        for (int i = 0; i < reasons.size(); i++) {
+            final long[] counts = reasons.valueAt(i);
+            pw.print(prefix + "display " + reasons.keyAt(i) + ":");
+            for (int j = 0; j < REASON_COUNT; j++) {
+                if (counts[j] != 0) {
+                    pw.print(" " + REASON_NAMES[j] + "=" + counts[j]);
+                }
+            }
+            pw.println();
+        }
+    }
+
+    private static String formatMs(long ns) {
+        return String.format("%.3fms", ns / 1000000f);
+    }
+}
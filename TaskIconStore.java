@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.LruCache;
+import android.util.Slog;
+
+import com.android.internal.util.HexDump;
+
+import libcore.io.IoUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Stores task description icons for {@link TaskPersister}.
+ *
+ * Decoded icons are kept in an LRU cache bounded by bytes, so the recents UI doesn't decode the
+ * same icon from disk every time it asks for it. On disk, each distinct icon is encoded once,
+ * into a file named after the hash of its pixels, and the per-task icon paths handed out to apps
+ * are hard links to it. An app setting the same icon again, or many tasks with the same icon,
+ * costs a hash and a link instead of a PNG encode and write. An icon file is deleted once no
+ * task path links to it anymore.
+ */
+class TaskIconStore {
+    private static final String TAG = TaskPersister.TAG;
+
+    /**
+     * Prefix of the content-addressed icon files. Like {@link PersistedTaskLog#LOG_FILENAME},
+     * these names must not contain '_', or they'd be parsed as belonging to a task.
+     */
+    private static final String ICON_FILE_PREFIX = "icon-";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final int MAX_CACHED_ICON_BYTES = 2 * 1024 * 1024;
+
+    private final LruCache<String, Bitmap> mIcons = new LruCache<String, Bitmap>(
+            MAX_CACHED_ICON_BYTES) {
+        @Override
+        protected int sizeOf(String filePath, Bitmap icon) {
+            return icon.getAllocationByteCount();
+        }
+    };
+
+    /**
+     * @return the icon at {@code filePath}, decoding it from disk if it isn't cached.
+     */
+    Bitmap getIcon(String filePath) {
+        Bitmap icon = mIcons.get(filePath);
+        if (icon == null) {
+            if (TaskPersister.DEBUG) Slog.d(TAG, "getIcon: decoding " + filePath);
+            icon = BitmapFactory.decodeFile(filePath);
+            if (icon != null) {
+                mIcons.put(filePath, icon);
+            }
+        }
+        return icon;
+    }
+
+    /**
+     * Caches {@code icon} as the icon at {@code filePath}, ahead of it being written.
+     */
+    void putIcon(String filePath, Bitmap icon) {
+        mIcons.put(filePath, icon);
+    }
+
+    /**
+     * Writes a batch of icons, keyed by path. Only called on the persister thread.
+     */
+    void writeIcons(ArrayMap<String, Bitmap> icons) {
+        // Identical icons in the batch are hashed and encoded once.
+        final ArrayMap<Bitmap, File> iconFiles = new ArrayMap<>();
+        for (int i = 0; i < icons.size(); i++) {
+            final String filePath = icons.keyAt(i);
+            final Bitmap icon = icons.valueAt(i);
+            final File file = new File(filePath);
+            final File parentDir = file.getParentFile();
+            if (!parentDir.exists() && !parentDir.mkdirs()) {
+                Slog.e(TAG, "Error while creating images directory for file: " + filePath);
+                continue;
+            }
+            if (TaskPersister.DEBUG) Slog.d(TAG, "writing bitmap: filename=" + filePath);
+
+            File iconFile = iconFiles.get(icon);
+            if (iconFile == null) {
+                iconFile = getOrCreateIconFile(parentDir, icon);
+                iconFiles.put(icon, iconFile);
+            }
+            if (iconFile == null || !link(iconFile, file)) {
+                // Fall back to a file of its own. Unlink first, so as not to write through a
+                // link into an icon file other tasks share.
+                file.delete();
+                writePng(icon, file);
+            }
+        }
+    }
+
+    /**
+     * @return the content-addressed file holding {@code icon}, encoding it if there is none, or
+     *         {@code null} on failure.
+     */
+    private File getOrCreateIconFile(File imagesDir, Bitmap icon) {
+        final String hash;
+        try {
+            hash = hashPixels(icon);
+        } catch (RuntimeException e) {
+            // E.g. a hardware bitmap, whose pixels can't be read back.
+            Slog.w(TAG, "Unable to hash icon " + icon, e);
+            return null;
+        }
+        final File iconFile = new File(imagesDir,
+                ICON_FILE_PREFIX + hash + TaskPersister.IMAGE_EXTENSION);
+        if (iconFile.exists()) {
+            return iconFile;
+        }
+        final File tmpFile = new File(iconFile.getPath() + TMP_SUFFIX);
+        if (!writePng(icon, tmpFile) || !tmpFile.renameTo(iconFile)) {
+            tmpFile.delete();
+            return null;
+        }
+        return iconFile;
+    }
+
+    private static String hashPixels(Bitmap icon) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final ByteBuffer pixels = ByteBuffer.allocate(icon.getByteCount());
+        icon.copyPixelsToBuffer(pixels);
+        digest.update(ByteBuffer.allocate(12).putInt(icon.getWidth()).putInt(icon.getHeight())
+                .putInt(icon.getConfig().ordinal()).array());
+        digest.update(pixels.array());
+        return HexDump.toHexString(digest.digest(), false /* upperCase */);
+    }
+
+    /**
+     * Makes {@code file} a link to {@code iconFile}, replacing whatever was there.
+     */
+    private static boolean link(File iconFile, File file) {
+        try {
+            final StructStat iconStat = Os.stat(iconFile.getPath());
+            if (file.exists() && Os.stat(file.getPath()).st_ino == iconStat.st_ino) {
+                // Already set to this icon.
+                return true;
+            }
+            final String tmpPath = file.getPath() + TMP_SUFFIX;
+            new File(tmpPath).delete();
+            Os.link(iconFile.getPath(), tmpPath);
+            Os.rename(tmpPath, file.getPath());
+            return true;
+        } catch (ErrnoException e) {
+            Slog.w(TAG, "Unable to link " + file + " to " + iconFile, e);
+            return false;
+        }
+    }
+
+    private static boolean writePng(Bitmap icon, File file) {
+        FileOutputStream imageFile = null;
+        try {
+            imageFile = new FileOutputStream(file);
+            icon.compress(Bitmap.CompressFormat.PNG, 100, imageFile);
+            return true;
+        } catch (Exception e) {
+            Slog.e(TAG, "saveImage: unable to save " + file, e);
+            return false;
+        } finally {
+            IoUtils.closeQuietly(imageFile);
+        }
+    }
+
+    /**
+     * Deletes the icon files in {@code imagesDir} that no task links to anymore, and drops the
+     * cached icons of tasks not in {@code persistentTaskIds}. Only called on the persister
+     * thread.
+     */
+    void removeObsoleteIcons(File imagesDir, ArraySet<Integer> persistentTaskIds) {
+        final File[] files = imagesDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                if (!name.startsWith(ICON_FILE_PREFIX)) {
+                    continue;
+                }
+                try {
+                    if (name.endsWith(TMP_SUFFIX) || Os.stat(file.getPath()).st_nlink <= 1) {
+                        if (TaskPersister.DEBUG) Slog.d(TAG, "Deleting unused icon " + name);
+                        file.delete();
+                    }
+                } catch (ErrnoException e) {
+                    Slog.w(TAG, "Unable to stat " + file, e);
+                }
+            }
+        }
+
+        final String imagesDirPath = imagesDir.getPath();
+        for (String filePath : mIcons.snapshot().keySet()) {
+            final File file = new File(filePath);
+            if (!imagesDirPath.equals(file.getParent())) {
+                continue;
+            }
+            final String name = file.getName();
+            final int taskIdEnd = name.indexOf('_');
+            if (taskIdEnd <= 0) {
+                continue;
+            }
+            try {
+                if (!persistentTaskIds.contains(
+                        Integer.parseInt(name.substring(0, taskIdEnd)))) {
+                    mIcons.remove(filePath);
+                }
+            } catch (NumberFormatException e) {
+                mIcons.remove(filePath);
+            }
+        }
+    }
+}
@@ -16,15 +16,14 @@
 
 package com.android.server.wm;
 
-import static com.android.server.wm.RootActivityContainer.MATCH_TASK_IN_STACKS_OR_RECENT_TASKS;
-
 import android.annotation.NonNull;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Debug;
 import android.os.Environment;
 import android.os.FileUtils;
 import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Slog;
@@ -32,6 +31,7 @@ import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 import android.util.Xml;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.XmlUtils;
@@ -44,17 +44,25 @@ import org.xmlpull.v1.XmlSerializer;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.StringWriter;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Persister that saves recent tasks into disk.
@@ -71,14 +79,40 @@ public class TaskPersister implements PersisterQueue.Listener {
 
     private static final String TAG_TASK = "task";
 
+    /** Maximum number of threads reading task files when a user's recent tasks are restored. */
+    private static final int MAX_RESTORE_THREADS = 4;
+    /** Fewer task files than this per thread are cheaper to read on the calling thread. */
+    private static final int MIN_TASK_FILES_PER_RESTORE_THREAD = 32;
+    /** How long a restore thread is kept alive once there are no task files to read. */
+    private static final long RESTORE_THREAD_KEEP_ALIVE_MS = 10 * 1000;
+
+    /**
+     * Whether recent tasks are persisted to a {@link PersistedTaskLog} per user instead of one
+     * XML file per task. Either format is read back, and tasks are migrated to the one in use
+     * when they are restored.
+     */
+    private static final String TASK_LOG_PROPERTY = "persist.wm.recent_tasks_log";
+
     private final ActivityTaskManagerService mService;
     private final ActivityStackSupervisor mStackSupervisor;
     private final RecentTasks mRecentTasks;
     private final SparseArray<SparseBooleanArray> mTaskIdsInFile = new SparseArray<>();
+
+    /**
+     * Reads task files in parallel for {@link #readTaskFilesForUser}. Shared by all users, and
+     * only has threads while restoring.
+     */
+    private final ThreadPoolExecutor mRestoreExecutor = createRestoreExecutor();
     private final File mTaskIdsDir;
     // To lock file operations in TaskPersister
     private final Object mIoLock = new Object();
     private final PersisterQueue mPersisterQueue;
+    private final boolean mUseTaskLog;
+    // Task logs opened for writing, by user id.
+    @GuardedBy("mIoLock")
+    private final SparseArray<PersistedTaskLog> mTaskLogs = new SparseArray<>();
+
+    private final TaskIconStore mIconStore = new TaskIconStore();
 
     private final ArraySet<Integer> mTmpTaskIds = new ArraySet<>();
 
@@ -106,6 +140,7 @@ public class TaskPersister implements PersisterQueue.Listener {
         mRecentTasks = recentTasks;
         mPersisterQueue = persisterQueue;
         mPersisterQueue.addListener(this);
+        mUseTaskLog = SystemProperties.getBoolean(TASK_LOG_PROPERTY, false);
     }
 
     @VisibleForTesting
@@ -116,6 +151,7 @@ public class TaskPersister implements PersisterQueue.Listener {
         mRecentTasks = null;
         mPersisterQueue = new PersisterQueue();
         mPersisterQueue.addListener(this);
+        mUseTaskLog = false;
     }
 
     private void removeThumbnails(TaskRecord task) {
@@ -183,19 +219,26 @@ public class TaskPersister implements PersisterQueue.Listener {
 
     void unloadUserDataFromMemory(int userId) {
         mTaskIdsInFile.delete(userId);
+        synchronized (mIoLock) {
+            final PersistedTaskLog taskLog = mTaskLogs.get(userId);
+            if (taskLog != null) {
+                taskLog.close();
+                mTaskLogs.remove(userId);
+            }
+        }
     }
 
     void wakeup(TaskRecord task, boolean flush) {
         synchronized (mPersisterQueue) {
             if (task != null) {
-                final TaskWriteQueueItem item = mPersisterQueue.findLastItem(
-                        queueItem -> task == queueItem.mTask, TaskWriteQueueItem.class);
+                final TaskWriteQueueItem item =
+                        mPersisterQueue.findItem(TaskWriteQueueItem.class, task);
                 if (item != null && !task.inRecents) {
                     removeThumbnails(task);
                 }
 
                 if (item == null && task.isPersistable) {
-                    mPersisterQueue.addItem(new TaskWriteQueueItem(task, mService), flush);
+                    mPersisterQueue.addItem(new TaskWriteQueueItem(task, mService, this), flush);
                 }
             } else {
                 // Dummy. Ensures removeObsoleteFiles is called when LazyTaskThreadWriter is
@@ -216,6 +259,7 @@ public class TaskPersister implements PersisterQueue.Listener {
     }
 
     void saveImage(Bitmap image, String filePath) {
+        mIconStore.putIcon(filePath, image);
         mPersisterQueue.updateLastOrAddItem(new ImageWriteQueueItem(filePath, image),
                 /* flush */ false);
         if (DEBUG) {
@@ -230,32 +274,15 @@ public class TaskPersister implements PersisterQueue.Listener {
         if (icon != null) {
             return icon;
         }
-        return restoreImage(filePath);
+        return mIconStore.getIcon(filePath);
     }
 
     private Bitmap getImageFromWriteQueue(String filePath) {
-        final ImageWriteQueueItem item = mPersisterQueue.findLastItem(
-                queueItem -> queueItem.mFilePath.equals(filePath), ImageWriteQueueItem.class);
+        final ImageWriteQueueItem item =
+                mPersisterQueue.findItem(ImageWriteQueueItem.class, filePath);
         return item != null ? item.mImage : null;
     }
 
-    private String fileToString(File file) {
-        final String newline = System.lineSeparator();
-        try {
-            BufferedReader reader = new BufferedReader(new FileReader(file));
-            StringBuffer sb = new StringBuffer((int) file.length() * 2);
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line + newline);
-            }
-            reader.close();
-            return sb.toString();
-        } catch (IOException ioe) {
-            Slog.e(TAG, "Couldn't read file " + file.getName());
-            return null;
-        }
-    }
-
     private TaskRecord taskIdToTask(int taskId, ArrayList<TaskRecord> tasks) {
         if (taskId < 0) {
             return null;
@@ -270,46 +297,153 @@ public class TaskPersister implements PersisterQueue.Listener {
         return null;
     }
 
-    List<TaskRecord> restoreTasksForUserLocked(final int userId, SparseBooleanArray preaddedTasks) {
-        final ArrayList<TaskRecord> tasks = new ArrayList<TaskRecord>();
-        ArraySet<Integer> recoveredTaskIds = new ArraySet<Integer>();
-
-        File userTasksDir = getUserTasksDir(userId);
-
-        File[] recentFiles = userTasksDir.listFiles();
-        if (recentFiles == null) {
-            Slog.e(TAG, "restoreTasksForUserLocked: Unable to list files from " + userTasksDir);
-            return tasks;
+    /**
+     * Reads the task files of {@code userId} into memory. This is the part of restoring a user's
+     * recent tasks that touches the disk, so it doesn't need the global lock and can run ahead of
+     * {@link #restoreTasksForUserLocked(UserTaskFiles, SparseBooleanArray)}. Large directories
+     * are read on a small pool of threads.
+     */
+    UserTaskFiles readTaskFilesForUser(int userId) {
+        final File userTasksDir = getUserTasksDir(userId);
+        final UserTaskFiles userTaskFiles =
+                new UserTaskFiles(userId, userTasksDir, userTasksDir.listFiles());
+        if (userTaskFiles.mFiles == null) {
+            return userTaskFiles;
+        }
+
+        final File logFile = new File(userTasksDir, PersistedTaskLog.LOG_FILENAME);
+        SparseArray<byte[]> loggedTasks = null;
+        if (PersistedTaskLog.exists(logFile)) {
+            synchronized (mIoLock) {
+                try {
+                    loggedTasks = PersistedTaskLog.read(logFile);
+                    // Whatever is in the log is moved to XML files if the log isn't used.
+                    userTaskFiles.mNeedsMigration |= !mUseTaskLog;
+                } catch (IOException e) {
+                    Slog.e(TAG, "Unable to read " + logFile, e);
+                }
+            }
         }
 
-        for (int taskNdx = 0; taskNdx < recentFiles.length; ++taskNdx) {
-            File taskFile = recentFiles[taskNdx];
+        final ArrayList<TaskFile> taskFiles = userTaskFiles.mTaskFiles;
+        final SparseBooleanArray xmlTaskIds = new SparseBooleanArray();
+        for (File taskFile : userTaskFiles.mFiles) {
             if (DEBUG) {
-                Slog.d(TAG, "restoreTasksForUserLocked: userId=" + userId
+                Slog.d(TAG, "readTaskFilesForUser: userId=" + userId
                         + ", taskFile=" + taskFile.getName());
             }
 
-            if (!taskFile.getName().endsWith(TASK_FILENAME_SUFFIX)) {
+            final String name = taskFile.getName();
+            if (!name.endsWith(TASK_FILENAME_SUFFIX)) {
                 continue;
             }
             try {
-                final int taskId = Integer.parseInt(taskFile.getName().substring(
-                        0 /* beginIndex */,
-                        taskFile.getName().length() - TASK_FILENAME_SUFFIX.length()));
-                if (preaddedTasks.get(taskId, false)) {
-                    Slog.w(TAG, "Task #" + taskId +
-                            " has already been created so we don't restore again");
+                final int taskId = Integer.parseInt(name.substring(0 /* beginIndex */,
+                        name.length() - TASK_FILENAME_SUFFIX.length()));
+                // XML files are moved to the log if it is used.
+                userTaskFiles.mNeedsMigration |= mUseTaskLog;
+                if (mUseTaskLog && loggedTasks != null && loggedTasks.get(taskId) != null) {
+                    // The log has the latest copy of the task.
                     continue;
                 }
+                xmlTaskIds.put(taskId, true);
+                taskFiles.add(new TaskFile(taskFile, taskId));
             } catch (NumberFormatException e) {
                 Slog.w(TAG, "Unexpected task file name", e);
+            }
+        }
+
+        final int threadCount = Math.min(MAX_RESTORE_THREADS,
+                taskFiles.size() / MIN_TASK_FILES_PER_RESTORE_THREAD);
+        if (threadCount > 1) {
+            final ArrayList<Callable<Object>> reads = new ArrayList<>(threadCount);
+            for (int i = 0; i < threadCount; i++) {
+                final int first = i;
+                reads.add(Executors.callable(() -> {
+                    for (int j = first; j < taskFiles.size(); j += threadCount) {
+                        taskFiles.get(j).read();
+                    }
+                }));
+            }
+            try {
+                mRestoreExecutor.invokeAll(reads);
+            } catch (InterruptedException e) {
+                // The reads not done yet are cancelled, and anything not read is read below.
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (int i = taskFiles.size() - 1; i >= 0; i--) {
+            final TaskFile taskFile = taskFiles.get(i);
+            if (!taskFile.mRead) {
+                taskFile.read();
+            }
+        }
+
+        if (loggedTasks != null) {
+            for (int i = 0; i < loggedTasks.size(); i++) {
+                final int taskId = loggedTasks.keyAt(i);
+                if (!mUseTaskLog && xmlTaskIds.get(taskId)) {
+                    // The XML file was written after the log was abandoned, so it is newer.
+                    continue;
+                }
+                taskFiles.add(new TaskFile(logFile, taskId, loggedTasks.valueAt(i)));
+            }
+        }
+        return userTaskFiles;
+    }
+
+    private static ThreadPoolExecutor createRestoreExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_RESTORE_THREADS,
+                MAX_RESTORE_THREADS, RESTORE_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> new Thread(r, "TaskRestore"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    List<TaskRecord> restoreTasksForUserLocked(final int userId, SparseBooleanArray preaddedTasks) {
+        return restoreTasksForUserLocked(readTaskFilesForUser(userId), preaddedTasks);
+    }
+
+    /**
+     * Restores the tasks read by {@link #readTaskFilesForUser}. Only the tasks themselves are
+     * created here, from memory, along with their validation and the affiliation fix-up.
+     */
+    List<TaskRecord> restoreTasksForUserLocked(UserTaskFiles userTaskFiles,
+            SparseBooleanArray preaddedTasks) {
+        final ArrayList<TaskRecord> tasks = new ArrayList<TaskRecord>();
+        ArraySet<Integer> recoveredTaskIds = new ArraySet<Integer>();
+        // Tasks restored from the format not in use, to be rewritten in the one in use.
+        final SparseArray<byte[]> tasksToMigrate = new SparseArray<>();
+
+        final int userId = userTaskFiles.mUserId;
+        File userTasksDir = userTaskFiles.mUserTasksDir;
+
+        if (userTaskFiles.mFiles == null) {
+            Slog.e(TAG, "restoreTasksForUserLocked: Unable to list files from " + userTasksDir);
+            return tasks;
+        }
+
+        // Look up the tasks that already exist once, rather than searching every stack for each
+        // restored task.
+        final SparseBooleanArray existingTaskIds = getExistingTaskIdsLocked();
+
+        for (int taskNdx = 0; taskNdx < userTaskFiles.mTaskFiles.size(); ++taskNdx) {
+            final TaskFile taskFileContent = userTaskFiles.mTaskFiles.get(taskNdx);
+            final File taskFile = taskFileContent.mFile;
+            if (preaddedTasks.get(taskFileContent.mTaskId, false)) {
+                Slog.w(TAG, "Task #" + taskFileContent.mTaskId +
+                        " has already been created so we don't restore again");
                 continue;
             }
 
             BufferedReader reader = null;
             boolean deleteFile = false;
             try {
-                reader = new BufferedReader(new FileReader(taskFile));
+                if (taskFileContent.mContent == null) {
+                    throw new IOException("Unable to read " + taskFile);
+                }
+                reader = new BufferedReader(new InputStreamReader(
+                        new ByteArrayInputStream(taskFileContent.mContent)));
                 final XmlPullParser in = Xml.newPullParser();
                 in.setInput(reader);
 
@@ -330,8 +464,7 @@ public class TaskPersister implements PersisterQueue.Listener {
                                 // mWriteQueue.add(new TaskWriteQueueItem(task));
 
                                 final int taskId = task.taskId;
-                                if (mService.mRootActivityContainer.anyTaskForId(taskId,
-                                        MATCH_TASK_IN_STACKS_OR_RECENT_TASKS) != null) {
+                                if (existingTaskIds.get(taskId)) {
                                     // Should not happen.
                                     Slog.wtf(TAG, "Existing task with taskId " + taskId + "found");
                                 } else if (userId != task.userId) {
@@ -344,10 +477,14 @@ public class TaskPersister implements PersisterQueue.Listener {
                                     task.isPersistable = true;
                                     tasks.add(task);
                                     recoveredTaskIds.add(taskId);
+                                    existingTaskIds.put(taskId, true);
+                                    if (taskFileContent.mFromLog != mUseTaskLog) {
+                                        tasksToMigrate.put(taskId, taskFileContent.mContent);
+                                    }
                                 }
                             } else {
                                 Slog.e(TAG, "restoreTasksForUserLocked: Unable to restore taskFile="
-                                        + taskFile + ": " + fileToString(taskFile));
+                                        + taskFile + ": " + taskFileContent);
                             }
                         } else {
                             Slog.wtf(TAG, "restoreTasksForUserLocked: Unknown xml event=" + event
@@ -358,19 +495,25 @@ public class TaskPersister implements PersisterQueue.Listener {
                 }
             } catch (Exception e) {
                 Slog.wtf(TAG, "Unable to parse " + taskFile + ". Error ", e);
-                Slog.e(TAG, "Failing file: " + fileToString(taskFile));
+                Slog.e(TAG, "Failing file: " + taskFileContent);
                 deleteFile = true;
             } finally {
                 IoUtils.closeQuietly(reader);
-                if (deleteFile) {
+                // A bad task in the log is dropped when the log is next compacted.
+                if (deleteFile && !taskFileContent.mFromLog) {
                     if (DEBUG) Slog.d(TAG, "Deleting file=" + taskFile.getName());
                     taskFile.delete();
                 }
             }
         }
 
+        if (userTaskFiles.mNeedsMigration) {
+            mPersisterQueue.addItem(new MigrateTasksQueueItem(userId, tasksToMigrate),
+                    false /* flush */);
+        }
+
         if (!DEBUG) {
-            removeObsoleteFiles(recoveredTaskIds, userTasksDir.listFiles());
+            removeObsoleteFiles(recoveredTaskIds, userTaskFiles.mFiles);
         }
 
         // Fix up task affiliation from taskIds
@@ -396,6 +539,28 @@ public class TaskPersister implements PersisterQueue.Listener {
         return tasks;
     }
 
+    /**
+     * @return the ids of all tasks in stacks or in recents.
+     */
+    private SparseBooleanArray getExistingTaskIdsLocked() {
+        final SparseBooleanArray taskIds = new SparseBooleanArray();
+        final RootActivityContainer root = mService.mRootActivityContainer;
+        for (int displayNdx = root.getChildCount() - 1; displayNdx >= 0; --displayNdx) {
+            final ActivityDisplay display = root.getChildAt(displayNdx);
+            for (int stackNdx = display.getChildCount() - 1; stackNdx >= 0; --stackNdx) {
+                final ArrayList<TaskRecord> stackTasks = display.getChildAt(stackNdx).getAllTasks();
+                for (int taskNdx = stackTasks.size() - 1; taskNdx >= 0; --taskNdx) {
+                    taskIds.put(stackTasks.get(taskNdx).taskId, true);
+                }
+            }
+        }
+        final ArrayList<TaskRecord> recentTasks = mRecentTasks.getRawTasks();
+        for (int taskNdx = recentTasks.size() - 1; taskNdx >= 0; --taskNdx) {
+            taskIds.put(recentTasks.get(taskNdx).taskId, true);
+        }
+        return taskIds;
+    }
+
     @Override
     public void onPreProcessItem(boolean queueEmpty) {
         // We can't lock mService while locking the queue, but we don't want to
@@ -412,10 +577,53 @@ public class TaskPersister implements PersisterQueue.Listener {
                         mRecentTasks.usersWithRecentsLoadedLocked());
             }
             removeObsoleteFiles(mTmpTaskIds);
+            syncTaskLogs();
         }
         writeTaskIdsFiles();
     }
 
+    @GuardedBy("mIoLock")
+    private PersistedTaskLog getTaskLog(int userId) {
+        PersistedTaskLog taskLog = mTaskLogs.get(userId);
+        if (taskLog == null) {
+            taskLog = new PersistedTaskLog(
+                    new File(getUserTasksDir(userId), PersistedTaskLog.LOG_FILENAME));
+            mTaskLogs.put(userId, taskLog);
+        }
+        return taskLog;
+    }
+
+    private void appendToTaskLog(int userId, int taskId, byte[] taskXml) {
+        synchronized (mIoLock) {
+            final PersistedTaskLog taskLog = getTaskLog(userId);
+            try {
+                taskLog.appendTask(taskId, taskXml);
+            } catch (IOException e) {
+                Slog.e(TAG, "Unable to append task " + taskId + " to " + taskLog, e);
+                // Rescan the log before the next append.
+                taskLog.close();
+            }
+        }
+    }
+
+    /**
+     * Makes the records appended since the last call durable. Writes are synced once per batch
+     * rather than once per task.
+     */
+    private void syncTaskLogs() {
+        synchronized (mIoLock) {
+            for (int i = mTaskLogs.size() - 1; i >= 0; i--) {
+                final PersistedTaskLog taskLog = mTaskLogs.valueAt(i);
+                try {
+                    taskLog.sync();
+                } catch (IOException e) {
+                    Slog.e(TAG, "Unable to sync " + taskLog, e);
+                    taskLog.close();
+                }
+            }
+        }
+    }
+
     private static void removeObsoleteFiles(ArraySet<Integer> persistentTaskIds, File[] files) {
         if (DEBUG) Slog.d(TAG, "removeObsoleteFiles: persistentTaskIds=" + persistentTaskIds +
                 " files=" + files);
@@ -475,15 +683,22 @@ public class TaskPersister implements PersisterQueue.Listener {
         }
         for (int userId : candidateUserIds) {
             removeObsoleteFiles(persistentTaskIds, getUserImagesDir(userId).listFiles());
+            mIconStore.removeObsoleteIcons(getUserImagesDir(userId), persistentTaskIds);
             removeObsoleteFiles(persistentTaskIds, getUserTasksDir(userId).listFiles());
+            if (mUseTaskLog) {
+                synchronized (mIoLock) {
+                    final PersistedTaskLog taskLog = getTaskLog(userId);
+                    try {
+                        taskLog.removeTasksNotIn(persistentTaskIds);
+                    } catch (IOException e) {
+                        Slog.e(TAG, "Unable to remove obsolete tasks from " + taskLog, e);
+                        taskLog.close();
+                    }
+                }
+            }
         }
     }
 
-    static Bitmap restoreImage(String filename) {
-        if (DEBUG) Slog.d(TAG, "restoreImage: restoring " + filename);
-        return BitmapFactory.decodeFile(filename);
-    }
-
     private File getUserPersistedTaskIdsFile(int userId) {
         File userTaskIdsDir = new File(mTaskIdsDir, String.valueOf(userId));
         if (!userTaskIdsDir.exists() && !userTaskIdsDir.mkdirs()) {
@@ -500,18 +715,93 @@ public class TaskPersister implements PersisterQueue.Listener {
         return new File(Environment.getDataSystemCeDirectory(userId), IMAGES_DIRNAME);
     }
 
-    private static boolean createParentDirectory(String filePath) {
-        File parentDir = new File(filePath).getParentFile();
-        return parentDir.exists() || parentDir.mkdirs();
+    private static File getTaskFile(File userTasksDir, int taskId) {
+        return new File(userTasksDir, String.valueOf(taskId) + TASK_FILENAME_SUFFIX);
+    }
+
+    private static void writeTaskFile(File taskFile, byte[] taskXml) throws IOException {
+        final AtomicFile atomicFile = new AtomicFile(taskFile);
+        FileOutputStream file = null;
+        try {
+            file = atomicFile.startWrite();
+            file.write(taskXml);
+            file.write('\n');
+            atomicFile.finishWrite(file);
+        } catch (IOException e) {
+            if (file != null) {
+                atomicFile.failWrite(file);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * The task files of a user, read into memory by {@link #readTaskFilesForUser}.
+     */
+    static final class UserTaskFiles {
+        final int mUserId;
+        final File mUserTasksDir;
+        /** Every file in {@link #mUserTasksDir}, or {@code null} if it couldn't be listed. */
+        final File[] mFiles;
+        final ArrayList<TaskFile> mTaskFiles = new ArrayList<>();
+        /** Whether some tasks are stored in the format not in use. */
+        boolean mNeedsMigration;
+
+        UserTaskFiles(int userId, File userTasksDir, File[] files) {
+            mUserId = userId;
+            mUserTasksDir = userTasksDir;
+            mFiles = files;
+        }
+    }
+
+    private static final class TaskFile {
+        final File mFile;
+        final int mTaskId;
+        /** The file's contents, or {@code null} if it couldn't be read. */
+        volatile byte[] mContent;
+        volatile boolean mRead;
+        /** Whether the task comes from the user's {@link PersistedTaskLog} at {@link #mFile}. */
+        final boolean mFromLog;
+
+        TaskFile(File file, int taskId) {
+            mFile = file;
+            mTaskId = taskId;
+            mFromLog = false;
+        }
+
+        TaskFile(File logFile, int taskId, byte[] content) {
+            mFile = logFile;
+            mTaskId = taskId;
+            mContent = content;
+            mRead = true;
+            mFromLog = true;
+        }
+
+        void read() {
+            try {
+                mContent = Files.readAllBytes(mFile.toPath());
+            } catch (IOException e) {
+                Slog.e(TAG, "Couldn't read file " + mFile.getName());
+            }
+            mRead = true;
+        }
+
+        @Override
+        public String toString() {
+            return mContent != null ? new String(mContent) : null;
+        }
     }
 
     private static class TaskWriteQueueItem implements PersisterQueue.WriteQueueItem {
         private final ActivityTaskManagerService mService;
+        private final TaskPersister mPersister;
         private final TaskRecord mTask;
 
-        TaskWriteQueueItem(TaskRecord task, ActivityTaskManagerService service) {
+        TaskWriteQueueItem(TaskRecord task, ActivityTaskManagerService service,
+                TaskPersister persister) {
             mTask = task;
             mService = service;
+            mPersister = persister;
         }
 
         private StringWriter saveToXml(TaskRecord task) throws IOException, XmlPullParserException {
@@ -557,38 +847,112 @@ public class TaskPersister implements PersisterQueue.Listener {
             }
             if (stringWriter != null) {
                 // Write out xml file while not holding mService lock.
-                FileOutputStream file = null;
-                AtomicFile atomicFile = null;
+                File userTasksDir = getUserTasksDir(task.userId);
+                if (!userTasksDir.isDirectory() && !userTasksDir.mkdirs()) {
+                    Slog.e(TAG, "Failure creating tasks directory for user " + task.userId
+                            + ": " + userTasksDir + " Dropping persistence for task " + task);
+                    return;
+                }
+                if (mPersister.mUseTaskLog) {
+                    mPersister.appendToTaskLog(task.userId, task.taskId,
+                            stringWriter.toString().getBytes());
+                    return;
+                }
+                final File taskFile = getTaskFile(userTasksDir, task.taskId);
                 try {
-                    File userTasksDir = getUserTasksDir(task.userId);
-                    if (!userTasksDir.isDirectory() && !userTasksDir.mkdirs()) {
-                        Slog.e(TAG, "Failure creating tasks directory for user " + task.userId
-                                + ": " + userTasksDir + " Dropping persistence for task " + task);
-                        return;
-                    }
-                    atomicFile = new AtomicFile(new File(userTasksDir,
-                            String.valueOf(task.taskId) + TASK_FILENAME_SUFFIX));
-                    file = atomicFile.startWrite();
-                    file.write(stringWriter.toString().getBytes());
-                    file.write('\n');
-                    atomicFile.finishWrite(file);
+                    writeTaskFile(taskFile, stringWriter.toString().getBytes());
                 } catch (IOException e) {
-                    if (file != null) {
-                        atomicFile.failWrite(file);
-                    }
                     Slog.e(TAG,
-                            "Unable to open " + atomicFile + " for persisting. " + e);
+                            "Unable to open " + taskFile + " for persisting. " + e);
                 }
             }
         }
 
+        @Override
+        public Object getKey() {
+            return mTask;
+        }
+
+        @Override
+        public boolean isUrgent() {
+            // Tasks are written ahead of their icons, which are larger and only cosmetic.
+            return true;
+        }
+
         @Override
         public String toString() {
             return "TaskWriteQueueItem{task=" + mTask + "}";
         }
     }
 
-    private static class ImageWriteQueueItem implements
+    /**
+     * Moves the tasks of a user restored from the format not in use to the one in use, then
+     * deletes the old files.
+     */
+    private class MigrateTasksQueueItem implements PersisterQueue.WriteQueueItem {
+        private final int mUserId;
+        private final SparseArray<byte[]> mTasks;
+
+        MigrateTasksQueueItem(int userId, SparseArray<byte[]> tasks) {
+            mUserId = userId;
+            mTasks = tasks;
+        }
+
+        @Override
+        public void process() {
+            final File userTasksDir = getUserTasksDir(mUserId);
+            synchronized (mIoLock) {
+                // Tasks written since the restore are newer than the copies here, so they are
+                // kept. Old files are only deleted once everything is moved.
+                if (mUseTaskLog) {
+                    final PersistedTaskLog taskLog = getTaskLog(mUserId);
+                    try {
+                        for (int i = 0; i < mTasks.size(); i++) {
+                            if (!taskLog.contains(mTasks.keyAt(i))) {
+                                taskLog.appendTask(mTasks.keyAt(i), mTasks.valueAt(i));
+                            }
+                        }
+                        taskLog.sync();
+                    } catch (IOException e) {
+                        Slog.e(TAG, "Unable to migrate tasks to " + taskLog, e);
+                        taskLog.close();
+                        return;
+                    }
+                    final File[] files = userTasksDir.listFiles();
+                    if (files != null) {
+                        for (File file : files) {
+                            if (file.getName().endsWith(TASK_FILENAME_SUFFIX)) {
+                                file.delete();
+                            }
+                        }
+                    }
+                } else {
+                    for (int i = 0; i < mTasks.size(); i++) {
+                        final File taskFile = getTaskFile(userTasksDir, mTasks.keyAt(i));
+                        if (taskFile.exists()) {
+                            continue;
+                        }
+                        try {
+                            writeTaskFile(taskFile, mTasks.valueAt(i));
+                        } catch (IOException e) {
+                            Slog.e(TAG, "Unable to migrate task to " + taskFile, e);
+                            return;
+                        }
+                    }
+                    new PersistedTaskLog(
+                            new File(userTasksDir, PersistedTaskLog.LOG_FILENAME)).delete();
+                }
+            }
+            if (DEBUG) Slog.d(TAG, "Migrated " + mTasks.size() + " tasks of user " + mUserId);
+        }
+
+        @Override
+        public String toString() {
+            return "MigrateTasksQueueItem{user=" + mUserId + ", tasks=" + mTasks.size() + "}";
+        }
+    }
+
+    private class ImageWriteQueueItem implements
             PersisterQueue.WriteQueueItem<ImageWriteQueueItem> {
         final String mFilePath;
         Bitmap mImage;
@@ -600,22 +964,14 @@ public class TaskPersister implements PersisterQueue.Listener {
 
         @Override
         public void process() {
-            final String filePath = mFilePath;
-            if (!createParentDirectory(filePath)) {
-                Slog.e(TAG, "Error while creating images directory for file: " + filePath);
-                return;
-            }
-            final Bitmap bitmap = mImage;
-            if (DEBUG) Slog.d(TAG, "writing bitmap: filename=" + filePath);
-            FileOutputStream imageFile = null;
-            try {
-                imageFile = new FileOutputStream(new File(filePath));
-                bitmap.compress(Bitmap.CompressFormat.PNG, 100, imageFile);
-            } catch (Exception e) {
-                Slog.e(TAG, "saveImage: unable to save " + filePath, e);
-            } finally {
-                IoUtils.closeQuietly(imageFile);
-            }
+            // Write out every queued image in one go rather than one per write delay.
+            final ArrayMap<String, Bitmap> images = new ArrayMap<>();
+            images.put(mFilePath, mImage);
+            mPersisterQueue.removeItems(item -> {
+                images.put(item.mFilePath, item.mImage);
+                return true;
+            }, ImageWriteQueueItem.class);
+            mIconStore.writeIcons(images);
         }
 
         @Override
@@ -628,6 +984,11 @@ public class TaskPersister implements PersisterQueue.Listener {
             mImage = item.mImage;
         }
 
+        @Override
+        public Object getKey() {
+            return mFilePath;
+        }
+
         @Override
         public String toString() {
             return "ImageWriteQueueItem{path=" + mFilePath
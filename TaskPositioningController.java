@@ -69,11 +69,16 @@ class TaskPositioningController {
         mHandler = new Handler(looper);
     }
 
-    void hideInputSurface(SurfaceControl.Transaction t, int displayId) {
+    /**
+     * @return whether anything was added to {@code t}.
+     */
+    boolean hideInputSurface(SurfaceControl.Transaction t, int displayId) {
         if (mPositioningDisplay != null && mPositioningDisplay.getDisplayId() == displayId
                 && mInputSurface != null) {
             t.hide(mInputSurface);
+            return true;
         }
+        return false;
     }
 
     void showInputSurface(SurfaceControl.Transaction t, int displayId) {
@@ -16,8 +16,14 @@
 
 package com.android.server.wm;
 
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_COMPLETE;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN;
+
 import android.annotation.Nullable;
 import android.app.ActivityManager.TaskSnapshot;
+import android.graphics.GraphicBuffer;
 import android.util.ArrayMap;
 import android.util.LruCache;
 
@@ -28,28 +34,81 @@ import java.util.Map.Entry;
 /**
  * Caches snapshots. See {@link TaskSnapshotController}.
  * <p>
+ * Snapshots are looked up in three tiers: the running cache, holding the latest full snapshot of
+ * each running task; the restored cache, a byte-bounded LRU of the reduced resolution snapshots
+ * restored from disk, which is what recents asks for when scrolling through tasks that aren't
+ * running; and the disk itself. The running cache is not bounded: snapshot starting windows and
+ * recents animations only look it up, without falling back to the disk, so an entry dropped
+ * from it loses the task its snapshot starting window. It is only trimmed under critical memory
+ * pressure, see {@link #onTrimMemory}.
+ * <p>
  * Access to this class should be guarded by the global window manager lock.
  */
 class TaskSnapshotCache {
 
+    /** Budget of the restored cache. */
+    private static final int RESTORED_CACHE_BYTES = 16 * 1024 * 1024;
+    private static final int LOW_RAM_RESTORED_CACHE_BYTES = 4 * 1024 * 1024;
+
     private final WindowManagerService mService;
     private final TaskSnapshotLoader mLoader;
     private final ArrayMap<AppWindowToken, Integer> mAppTaskMap = new ArrayMap<>();
     private final ArrayMap<Integer, CacheEntry> mRunningCache = new ArrayMap<>();
+    private long mRunningBytes;
+
+    /**
+     * Reduced resolution snapshots restored from disk, by task id. Thread-safe on its own, but
+     * only added to with the window manager lock held, see {@link #mGeneration}.
+     */
+    private final LruCache<Integer, TaskSnapshot> mRestoredCache;
+
+    /**
+     * Incremented whenever a snapshot is put or removed, so that a snapshot restored from disk
+     * concurrently, which may then be stale, isn't cached.
+     */
+    private int mGeneration;
+
+    private long mRunningHits;
+    private long mRestoredHits;
+    private long mDiskLoads;
+    private long mDiskMisses;
+    /** Snapshots evicted from the restored cache, including by {@link #onTrimMemory}. */
+    private long mEvictions;
+    private long mTrimmedRunningEntries;
 
     TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader) {
         mService = service;
         mLoader = loader;
+        mRestoredCache = new LruCache<Integer, TaskSnapshot>(service.mLowRamTaskSnapshotsAndRecents
+                ? LOW_RAM_RESTORED_CACHE_BYTES : RESTORED_CACHE_BYTES) {
+            @Override
+            protected int sizeOf(Integer taskId, TaskSnapshot snapshot) {
+                return getByteCount(snapshot);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Integer taskId, TaskSnapshot oldValue,
+                    TaskSnapshot newValue) {
+                if (evicted) {
+                    // Only counted, not destroyed: recents may still be showing the buffer.
+                    mEvictions++;
+                }
+            }
+        };
     }
 
     void putSnapshot(Task task, TaskSnapshot snapshot) {
         final CacheEntry entry = mRunningCache.get(task.mTaskId);
         if (entry != null) {
             mAppTaskMap.remove(entry.topApp);
+            mRunningBytes -= getByteCount(entry.snapshot);
         }
         final AppWindowToken top = task.getTopChild();
         mAppTaskMap.put(top, task.mTaskId);
         mRunningCache.put(task.mTaskId, new CacheEntry(snapshot, task.getTopChild()));
+        mRunningBytes += getByteCount(snapshot);
+        mRestoredCache.remove(task.mTaskId);
+        mGeneration++;
     }
 
     /**
@@ -58,28 +117,70 @@ class TaskSnapshotCache {
     @Nullable TaskSnapshot getSnapshot(int taskId, int userId, boolean restoreFromDisk,
             boolean reducedResolution) {
 
+        final int generation;
         synchronized (mService.mGlobalLock) {
             // Try the running cache.
             final CacheEntry entry = mRunningCache.get(taskId);
             if (entry != null) {
+                mRunningHits++;
                 return entry.snapshot;
             }
+
+            // Then the snapshots restored before.
+            if (reducedResolution) {
+                final TaskSnapshot snapshot = mRestoredCache.get(taskId);
+                if (snapshot != null) {
+                    mRestoredHits++;
+                    return snapshot;
+                }
+            }
+            generation = mGeneration;
         }
 
         // Try to restore from disk if asked.
         if (!restoreFromDisk) {
             return null;
         }
-        return tryRestoreFromDisk(taskId, userId, reducedResolution);
+        return tryRestoreFromDisk(taskId, userId, reducedResolution, generation);
     }
 
     /**
+     * Restores the reduced resolution snapshot of a task from disk into the restored cache,
+     * unless either cache already holds a snapshot of it. Unlike {@link #getSnapshot}, cached
+     * snapshots don't count as hits.
+     * <p>
      * DO NOT HOLD THE WINDOW MANAGER LOCK WHEN CALLING THIS METHOD!
+     *
+     * @return the snapshot loaded from disk, or {@code null} if it was already cached or there is
+     *         none on disk.
      */
-    private TaskSnapshot tryRestoreFromDisk(int taskId, int userId, boolean reducedResolution) {
+    @Nullable TaskSnapshot prefetchSnapshot(int taskId, int userId) {
+        final int generation;
+        synchronized (mService.mGlobalLock) {
+            if (mRunningCache.containsKey(taskId) || mRestoredCache.get(taskId) != null) {
+                return null;
+            }
+            generation = mGeneration;
+        }
+        return tryRestoreFromDisk(taskId, userId, true /* reducedResolution */, generation);
+    }
+
+    /**
+     * DO NOT HOLD THE WINDOW MANAGER LOCK WHEN CALLING THIS METHOD!
+     */
+    private TaskSnapshot tryRestoreFromDisk(int taskId, int userId, boolean reducedResolution,
+            int generation) {
         final TaskSnapshot snapshot = mLoader.loadTask(taskId, userId, reducedResolution);
-        if (snapshot == null) {
-            return null;
+        synchronized (mService.mGlobalLock) {
+            if (snapshot == null) {
+                mDiskMisses++;
+                return null;
+            }
+            mDiskLoads++;
+            // Full sized snapshots are only restored for starting windows, and too large to keep.
+            if (reducedResolution && generation == mGeneration) {
+                mRestoredCache.put(taskId, snapshot);
+            }
         }
         return snapshot;
     }
@@ -106,20 +207,69 @@ class TaskSnapshotCache {
 
     void onTaskRemoved(int taskId) {
         removeRunningEntry(taskId);
+        mRestoredCache.remove(taskId);
     }
 
     private void removeRunningEntry(int taskId) {
-        final CacheEntry entry = mRunningCache.get(taskId);
-        if (entry != null) {
-            mAppTaskMap.remove(entry.topApp);
-            mRunningCache.remove(taskId);
+        final int index = mRunningCache.indexOfKey(taskId);
+        if (index >= 0) {
+            removeRunningEntryAt(index);
+        }
+    }
+
+    private void removeRunningEntryAt(int index) {
+        final CacheEntry entry = mRunningCache.valueAt(index);
+        mAppTaskMap.remove(entry.topApp);
+        mRunningBytes -= getByteCount(entry.snapshot);
+        mRunningCache.removeAt(index);
+        mGeneration++;
+    }
+
+    /**
+     * Releases cached snapshots according to {@code level}, one of the
+     * {@link android.content.ComponentCallbacks2} TRIM_MEMORY_* levels. Restored snapshots are
+     * loaded from disk again when asked for. Running snapshots are not, as their users don't read
+     * the disk, so they are only dropped when memory is critically low.
+     */
+    void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_COMPLETE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            mRestoredCache.evictAll();
+            // Keep the snapshots of visible tasks, which are the likeliest to be needed next.
+            for (int i = mRunningCache.size() - 1; i >= 0; i--) {
+                final CacheEntry entry = mRunningCache.valueAt(i);
+                if (entry.topApp == null || !entry.topApp.isVisible()) {
+                    removeRunningEntryAt(i);
+                    mTrimmedRunningEntries++;
+                }
+            }
+            mGeneration++;
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            mRestoredCache.evictAll();
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            mRestoredCache.trimToSize(mRestoredCache.maxSize() / 2);
         }
     }
 
+    int getRestoredCacheMaxBytes() {
+        return mRestoredCache.maxSize();
+    }
+
+    static int getByteCount(TaskSnapshot snapshot) {
+        final GraphicBuffer buffer = snapshot.getSnapshot();
+        // Snapshots are RGBA_8888 or RGB_565; assume the larger.
+        return buffer != null ? buffer.getWidth() * buffer.getHeight() * 4 : 0;
+    }
+
     void dump(PrintWriter pw, String prefix) {
         final String doublePrefix = prefix + "  ";
         final String triplePrefix = doublePrefix + "  ";
-        pw.println(prefix + "SnapshotCache");
+        pw.println(prefix + "SnapshotCache running=" + mRunningCache.size() + " ("
+                + mRunningBytes / 1024 + "KB) restored=" + mRestoredCache.snapshot().size()
+                + " (" + mRestoredCache.size() / 1024 + "KB of "
+                + mRestoredCache.maxSize() / 1024 + "KB)");
+        pw.println(doublePrefix + "runningHits=" + mRunningHits + " restoredHits="
+                + mRestoredHits + " diskLoads=" + mDiskLoads + " diskMisses=" + mDiskMisses
+                + " evictions=" + mEvictions + " trimmedRunning=" + mTrimmedRunningEntries);
         for (int i = mRunningCache.size() - 1; i >= 0; i--) {
             final CacheEntry entry = mRunningCache.valueAt(i);
             pw.println(doublePrefix + "Entry taskId=" + mRunningCache.keyAt(i));
@@ -25,7 +25,9 @@ import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.app.ActivityManager;
 import android.app.ActivityManager.TaskSnapshot;
+import android.content.ComponentCallbacks2;
 import android.content.pm.PackageManager;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.GraphicBuffer;
 import android.graphics.PixelFormat;
@@ -91,6 +93,7 @@ class TaskSnapshotController {
 
     private final TaskSnapshotCache mCache;
     private final TaskSnapshotPersister mPersister;
+    private final TaskSnapshotPrefetcher mPrefetcher;
     private final TaskSnapshotLoader mLoader;
     private final ArraySet<Task> mSkipClosingAppSnapshotTasks = new ArraySet<>();
     private final ArraySet<Task> mTmpTasks = new ArraySet<>();
@@ -119,6 +122,7 @@ class TaskSnapshotController {
         mPersister = new TaskSnapshotPersister(mService, Environment::getDataSystemCeDirectory);
         mLoader = new TaskSnapshotLoader(mPersister);
         mCache = new TaskSnapshotCache(mService, mLoader);
+        mPrefetcher = new TaskSnapshotPrefetcher(mCache);
         mIsRunningOnTv = mService.mContext.getPackageManager().hasSystemFeature(
                 PackageManager.FEATURE_LEANBACK);
         mIsRunningOnIoT = mService.mContext.getPackageManager().hasSystemFeature(
@@ -131,6 +135,46 @@ class TaskSnapshotController {
 
     void systemReady() {
         mPersister.start();
+        mService.mContext.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                TaskSnapshotController.this.onTrimMemory(level);
+            }
+
+            @Override
+            public void onLowMemory() {
+                TaskSnapshotController.this.onTrimMemory(TRIM_MEMORY_COMPLETE);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+        });
+    }
+
+    /**
+     * Releases cached snapshots under memory pressure, see {@link TaskSnapshotCache#onTrimMemory}.
+     */
+    void onTrimMemory(int level) {
+        synchronized (mService.mGlobalLock) {
+            mPrefetcher.cancel();
+            mCache.onTrimMemory(level);
+        }
+    }
+
+    /**
+     * Loads the reduced resolution snapshots of the given tasks into the cache in the
+     * background, in order, see {@link TaskSnapshotPrefetcher}.
+     */
+    void prefetchSnapshots(int[] taskIds, int[] userIds) {
+        if (shouldDisableSnapshots()) {
+            return;
+        }
+        mPrefetcher.prefetch(taskIds, userIds);
+    }
+
+    void cancelSnapshotPrefetch() {
+        mPrefetcher.cancel();
     }
 
     void onTransitionStarting(DisplayContent displayContent) {
@@ -491,5 +535,7 @@ class TaskSnapshotController {
     void dump(PrintWriter pw, String prefix) {
         pw.println(prefix + "mFullSnapshotScale=" + mFullSnapshotScale);
         mCache.dump(pw, prefix);
+        mPersister.dump(pw, prefix);
+        mPrefetcher.dump(pw, prefix);
     }
 }
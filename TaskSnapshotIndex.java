@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.wm;
+
+import static com.android.server.wm.WindowManagerDebugConfig.TAG_WITH_CLASS_NAME;
+import static com.android.server.wm.WindowManagerDebugConfig.TAG_WM;
+
+import android.util.ArraySet;
+import android.util.AtomicFile;
+import android.util.Slog;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * The snapshot protos of one user in a single file, so that loading a snapshot doesn't need to
+ * open and read a proto file of its own. The index is read once, on first use, and then kept in
+ * memory; {@link TaskSnapshotPersister} updates it as it writes and deletes snapshots, and writes
+ * it back out once its queue is idle.
+ * <p>
+ * The per-task proto files are still written, and stay the source of truth: when the index is
+ * read, entries older than their proto file, e.g. because the system went down before the index
+ * was written back, are dropped, and the loader falls back to the proto file for those.
+ * <p>
+ * The file is {@code [magic][version][count]}, followed by {@code [taskId][length][proto]} for
+ * each task.
+ */
+class TaskSnapshotIndex {
+
+    private static final String TAG = TAG_WITH_CLASS_NAME ? "TaskSnapshotIndex" : TAG_WM;
+
+    /** Name of the index in the snapshot directory. */
+    static final String INDEX_FILENAME = "index.bin";
+
+    private static final int MAGIC = 0x54534958; // "TSIX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int ENTRY_HEADER_SIZE = 8;
+
+    private final File mFile;
+    private final File mDirectory;
+    private final String mProtoExtension;
+
+    /** The proto of each task, {@code null} until the index is read. */
+    @GuardedBy("this")
+    private SparseArray<byte[]> mProtos;
+    @GuardedBy("this")
+    private boolean mDirty;
+
+    TaskSnapshotIndex(File directory, String protoExtension) {
+        mDirectory = directory;
+        mFile = new File(directory, INDEX_FILENAME);
+        mProtoExtension = protoExtension;
+    }
+
+    /**
+     * @return the proto of {@code taskId}, or {@code null} if it isn't in the index.
+     */
+    synchronized byte[] get(int taskId) {
+        ensureReadLocked();
+        return mProtos.get(taskId);
+    }
+
+    synchronized void put(int taskId, byte[] proto) {
+        ensureReadLocked();
+        mProtos.put(taskId, proto);
+        mDirty = true;
+    }
+
+    synchronized void remove(int taskId) {
+        ensureReadLocked();
+        if (mProtos.indexOfKey(taskId) >= 0) {
+            mProtos.remove(taskId);
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Removes the tasks that are in neither {@code taskIds} nor {@code moreTaskIds}.
+     */
+    synchronized void retainAll(ArraySet<Integer> taskIds, ArraySet<Integer> moreTaskIds) {
+        ensureReadLocked();
+        for (int i = mProtos.size() - 1; i >= 0; i--) {
+            final int taskId = mProtos.keyAt(i);
+            if (!taskIds.contains(taskId) && !moreTaskIds.contains(taskId)) {
+                mProtos.removeAt(i);
+                mDirty = true;
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private void ensureReadLocked() {
+        if (mProtos != null) {
+            return;
+        }
+        mProtos = new SparseArray<>();
+        final AtomicFile atomicFile = new AtomicFile(mFile);
+        final byte[] bytes;
+        try {
+            bytes = atomicFile.readFully();
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (IOException e) {
+            Slog.w(TAG, "Unable to read " + mFile, e);
+            return;
+        }
+        final long indexTime = atomicFile.getLastModifiedTime();
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                Slog.w(TAG, "Ignoring index with unknown header: " + mFile);
+                return;
+            }
+            final int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                final int taskId = buffer.getInt();
+                final byte[] proto = new byte[buffer.getInt()];
+                buffer.get(proto);
+                final File protoFile = new File(mDirectory, taskId + mProtoExtension);
+                final long protoTime = protoFile.lastModified();
+                if (protoTime != 0 && protoTime <= indexTime) {
+                    mProtos.put(taskId, proto);
+                }
+            }
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            Slog.w(TAG, "Ignoring truncated index: " + mFile);
+            mProtos.clear();
+        }
+    }
+
+    /**
+     * Writes the index out if it changed since it was last written. Only called on the persister
+     * thread.
+     */
+    void flush() {
+        final ByteBuffer buffer;
+        synchronized (this) {
+            if (!mDirty) {
+                return;
+            }
+            int size = HEADER_SIZE;
+            for (int i = 0; i < mProtos.size(); i++) {
+                size += ENTRY_HEADER_SIZE + mProtos.valueAt(i).length;
+            }
+            buffer = ByteBuffer.allocate(size);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(mProtos.size());
+            for (int i = 0; i < mProtos.size(); i++) {
+                final byte[] proto = mProtos.valueAt(i);
+                buffer.putInt(mProtos.keyAt(i)).putInt(proto.length).put(proto);
+            }
+            mDirty = false;
+        }
+        if (!mDirectory.exists()) {
+            return;
+        }
+        final AtomicFile atomicFile = new AtomicFile(mFile);
+        FileOutputStream fos = null;
+        try {
+            fos = atomicFile.startWrite();
+            fos.write(buffer.array());
+            atomicFile.finishWrite(fos);
+        } catch (IOException e) {
+            atomicFile.failWrite(fos);
+            Slog.e(TAG, "Unable to write " + mFile, e);
+            synchronized (this) {
+                mDirty = true;
+            }
+        }
+    }
+}
@@ -33,7 +33,6 @@ import com.android.server.wm.nano.WindowManagerProtos.TaskSnapshotProto;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 
 /**
  * Loads a persisted {@link TaskSnapshot} from disk.
@@ -64,19 +63,24 @@ class TaskSnapshotLoader {
      * @return The loaded {@link TaskSnapshot} or {@code null} if it couldn't be loaded.
      */
     TaskSnapshot loadTask(int taskId, int userId, boolean reducedResolution) {
-        final File protoFile = mPersister.getProtoFile(taskId, userId);
-        final File bitmapFile = reducedResolution
-                ? mPersister.getReducedResolutionBitmapFile(taskId, userId)
-                : mPersister.getBitmapFile(taskId, userId);
-        if (bitmapFile == null || !protoFile.exists() || !bitmapFile.exists()) {
+        // Prefer the current encoding, but still load snapshots written before it was changed.
+        int encoding = mPersister.getEncoding();
+        File bitmapFile = getBitmapFile(taskId, userId, reducedResolution, encoding);
+        for (int i = 0; i < TaskSnapshotPersister.ENCODING_COUNT
+                && (bitmapFile == null || !bitmapFile.exists()); i++) {
+            encoding = i;
+            bitmapFile = getBitmapFile(taskId, userId, reducedResolution, encoding);
+        }
+        if (bitmapFile == null || !bitmapFile.exists()) {
             return null;
         }
         try {
-            final byte[] bytes = Files.readAllBytes(protoFile.toPath());
+            final byte[] bytes = mPersister.readProto(taskId, userId);
+            if (bytes == null) {
+                return null;
+            }
             final TaskSnapshotProto proto = TaskSnapshotProto.parseFrom(bytes);
-            final Options options = new Options();
-            options.inPreferredConfig = Config.HARDWARE;
-            final Bitmap bitmap = BitmapFactory.decodeFile(bitmapFile.getPath(), options);
+            final Bitmap bitmap = decodeBitmap(bitmapFile, encoding);
             if (bitmap == null) {
                 Slog.w(TAG, "Failed to load bitmap: " + bitmapFile.getPath());
                 return null;
@@ -102,4 +106,29 @@ class TaskSnapshotLoader {
             return null;
         }
     }
+
+    private File getBitmapFile(int taskId, int userId, boolean reducedResolution, int encoding) {
+        return reducedResolution
+                ? mPersister.getReducedResolutionBitmapFile(taskId, userId, encoding)
+                : mPersister.getBitmapFile(taskId, userId, encoding);
+    }
+
+    /**
+     * @return the snapshot bitmap in {@code bitmapFile} as a hardware bitmap, or {@code null} if
+     *         it couldn't be decoded.
+     */
+    private Bitmap decodeBitmap(File bitmapFile, int encoding) throws IOException {
+        if (encoding != TaskSnapshotPersister.ENCODING_RAW) {
+            final Options options = new Options();
+            options.inPreferredConfig = Config.HARDWARE;
+            return BitmapFactory.decodeFile(bitmapFile.getPath(), options);
+        }
+        final Bitmap swBitmap = TaskSnapshotRawCodec.decode(bitmapFile);
+        if (swBitmap == null) {
+            return null;
+        }
+        final Bitmap bitmap = swBitmap.copy(Config.HARDWARE, false /* isMutable */);
+        swBitmap.recycle();
+        return bitmap;
+    }
 }
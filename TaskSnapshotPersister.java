@@ -17,6 +17,7 @@
 package com.android.server.wm;
 
 import static android.graphics.Bitmap.CompressFormat.JPEG;
+import static android.graphics.Bitmap.CompressFormat.WEBP;
 
 import static com.android.server.wm.WindowManagerDebugConfig.TAG_WITH_CLASS_NAME;
 import static com.android.server.wm.WindowManagerDebugConfig.TAG_WM;
@@ -28,8 +29,10 @@ import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.os.Process;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.util.ArraySet;
 import android.util.Slog;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
@@ -39,8 +42,16 @@ import com.android.server.wm.nano.WindowManagerProtos.TaskSnapshotProto;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
 import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Persists {@link TaskSnapshot}s to disk.
@@ -59,13 +70,64 @@ class TaskSnapshotPersister {
     private static final long DELAY_MS = 100;
     private static final int QUALITY = 95;
     private static final String PROTO_EXTENSION = ".proto";
-    private static final String BITMAP_EXTENSION = ".jpg";
-    private static final int MAX_STORE_QUEUE_DEPTH = 2;
+    /** Suffix of the file a bitmap is written to before it is renamed over the old one. */
+    private static final String TMP_SUFFIX = ".tmp";
+    /**
+     * Budget of the buffers of snapshots waiting to be written. A newer snapshot of a task that is
+     * still waiting replaces the older one, so the queue holds at most one snapshot per task and
+     * a burst of task switches is written out rather than dropped. Callers hold the window
+     * manager lock and can't be made to wait, so only past this budget is the oldest waiting
+     * snapshot dropped.
+     */
+    private static final int MAX_STORE_QUEUE_BYTES = 64 * 1024 * 1024;
+    private static final int LOW_RAM_MAX_STORE_QUEUE_BYTES = 16 * 1024 * 1024;
+
+    /** How snapshot bitmaps are encoded, see {@link #ENCODING_PROPERTY}. */
+    static final int ENCODING_JPEG = 0;
+    static final int ENCODING_WEBP = 1;
+    /** Raw pixels, see {@link TaskSnapshotRawCodec}. */
+    static final int ENCODING_RAW = 2;
+    private static final String[] ENCODING_NAMES = {"jpeg", "webp", "raw"};
+    private static final String[] BITMAP_EXTENSIONS = {".jpg", ".webp", ".raw"};
+    static final int ENCODING_COUNT = BITMAP_EXTENSIONS.length;
+
+    /** One of {@link #ENCODING_NAMES}, jpeg if unset. */
+    private static final String ENCODING_PROPERTY = "persist.wm.task_snapshot_encoding";
+    /** Quality of jpeg and webp snapshots, {@link #QUALITY} if unset. */
+    private static final String QUALITY_PROPERTY = "persist.wm.task_snapshot_quality";
+    /**
+     * Whether raw snapshots are deflated, false if unset. Uncompressed ones are bigger on disk but
+     * load straight from the page cache; deflated ones are read into a heap buffer and inflated
+     * into another before they are copied into the bitmap.
+     */
+    private static final String RAW_COMPRESSION_PROPERTY =
+            "persist.wm.task_snapshot_raw_compression";
+
+    /** Number of threads the bitmaps of snapshots are scaled and encoded on. */
+    private static final int ENCODE_THREADS = 2;
+    /**
+     * Maximum number of snapshots being encoded at once. Once reached, the persister thread
+     * waits for one to finish before copying out the next, rather than buffering more bitmaps.
+     * This only throttles the persister thread; it doesn't hold back {@link #persistSnapshot}.
+     */
+    private static final int MAX_ENCODING_SNAPSHOTS = 2;
+
+    private static final int STAGE_PROTO = 0;
+    private static final int STAGE_COPY = 1;
+    private static final int STAGE_SCALE = 2;
+    private static final int STAGE_ENCODE_REDUCED = 3;
+    private static final int STAGE_ENCODE_FULL = 4;
+    private static final String[] STAGE_NAMES =
+            {"proto", "copy", "scale", "encodeReduced", "encodeFull"};
 
     @GuardedBy("mLock")
     private final ArrayDeque<WriteQueueItem> mWriteQueue = new ArrayDeque<>();
     @GuardedBy("mLock")
     private final ArrayDeque<StoreWriteQueueItem> mStoreQueueItems = new ArrayDeque<>();
+    /** Bytes of the snapshots in {@link #mStoreQueueItems}. */
+    @GuardedBy("mLock")
+    private long mStoreQueueBytes;
+    private final int mMaxStoreQueueBytes;
     @GuardedBy("mLock")
     private boolean mQueueIdling;
     @GuardedBy("mLock")
@@ -74,6 +136,31 @@ class TaskSnapshotPersister {
     private final Object mLock = new Object();
     private final DirectoryResolver mDirectoryResolver;
     private final float mReducedScale;
+    private final int mEncoding;
+    private final int mQuality;
+    private final boolean mRawCompression;
+
+    private final ExecutorService mEncodeExecutor = Executors.newFixedThreadPool(ENCODE_THREADS,
+            r -> new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, "TaskSnapshotEncoder"));
+    private final Semaphore mEncodingSnapshots = new Semaphore(MAX_ENCODING_SNAPSHOTS);
+    /** The snapshot index of each user, created on first use. */
+    @GuardedBy("mIndexes")
+    private final SparseArray<TaskSnapshotIndex> mIndexes = new SparseArray<>();
+
+    /** Ids of the tasks whose snapshots are being encoded. */
+    @GuardedBy("mEncodingTaskIds")
+    private final ArraySet<Integer> mEncodingTaskIds = new ArraySet<>();
+
+    /** Total time spent in, and number of runs of, each of the STAGE_* stages. */
+    private final AtomicLongArray mStageTimeNs = new AtomicLongArray(STAGE_NAMES.length);
+    private final AtomicLongArray mStageCounts = new AtomicLongArray(STAGE_NAMES.length);
+    @GuardedBy("mLock")
+    private int mCoalescedCount;
+    @GuardedBy("mLock")
+    private int mDroppedCount;
 
     /**
      * The list of ids of the tasks that have been persisted since {@link #removeObsoleteFiles} was
@@ -92,6 +179,13 @@ class TaskSnapshotPersister {
             mReducedScale = ActivityManager.isLowRamDeviceStatic()
                     ? LOW_RAM_REDUCED_SCALE : REDUCED_SCALE;
         }
+        final int encoding = Arrays.asList(ENCODING_NAMES).indexOf(
+                SystemProperties.get(ENCODING_PROPERTY, ENCODING_NAMES[ENCODING_JPEG]));
+        mEncoding = encoding >= 0 ? encoding : ENCODING_JPEG;
+        mQuality = SystemProperties.getInt(QUALITY_PROPERTY, QUALITY);
+        mRawCompression = SystemProperties.getBoolean(RAW_COMPRESSION_PROPERTY, false);
+        mMaxStoreQueueBytes = ActivityManager.isLowRamDeviceStatic()
+                ? LOW_RAM_MAX_STORE_QUEUE_BYTES : MAX_STORE_QUEUE_BYTES;
     }
 
     /**
@@ -114,6 +208,15 @@ class TaskSnapshotPersister {
     void persistSnapshot(int taskId, int userId, TaskSnapshot snapshot) {
         synchronized (mLock) {
             mPersistedTaskIdsSinceLastRemoveObsolete.add(taskId);
+            // Only the latest snapshot of a task matters, so replace one that is still queued.
+            for (StoreWriteQueueItem item : mStoreQueueItems) {
+                if (item.mTaskId == taskId && item.mUserId == userId) {
+                    item.setSnapshotLocked(snapshot);
+                    mCoalescedCount++;
+                    ensureStoreQueueBytesLocked();
+                    return;
+                }
+            }
             sendToQueueLocked(new StoreWriteQueueItem(taskId, userId, snapshot));
         }
     }
@@ -164,6 +267,13 @@ class TaskSnapshotPersister {
         return mReducedScale;
     }
 
+    /**
+     * @return the encoding new snapshots are written with, one of the ENCODING_* constants.
+     */
+    int getEncoding() {
+        return mEncoding;
+    }
+
     @TestApi
     void waitForQueueEmpty() {
         while (true) {
@@ -180,18 +290,25 @@ class TaskSnapshotPersister {
     private void sendToQueueLocked(WriteQueueItem item) {
         mWriteQueue.offer(item);
         item.onQueuedLocked();
-        ensureStoreQueueDepthLocked();
+        ensureStoreQueueBytesLocked();
         if (!mPaused) {
             mLock.notifyAll();
         }
     }
 
+    /**
+     * Drops the oldest queued snapshots while the queued ones are over
+     * {@link #mMaxStoreQueueBytes}, always keeping the newest. Those tasks keep whatever snapshot
+     * was last written for them.
+     */
     @GuardedBy("mLock")
-    private void ensureStoreQueueDepthLocked() {
-        while (mStoreQueueItems.size() > MAX_STORE_QUEUE_DEPTH) {
-            final StoreWriteQueueItem item = mStoreQueueItems.poll();
+    private void ensureStoreQueueBytesLocked() {
+        while (mStoreQueueBytes > mMaxStoreQueueBytes && mStoreQueueItems.size() > 1) {
+            final StoreWriteQueueItem item = mStoreQueueItems.peek();
             mWriteQueue.remove(item);
-            Slog.i(TAG, "Queue is too deep! Purged item with taskid=" + item.mTaskId);
+            item.onDequeuedLocked();
+            mDroppedCount++;
+            Slog.i(TAG, "Queue is too big! Purged item with taskid=" + item.mTaskId);
         }
     }
 
@@ -204,16 +321,70 @@ class TaskSnapshotPersister {
     }
 
     File getBitmapFile(int taskId, int userId) {
+        return getBitmapFile(taskId, userId, mEncoding);
+    }
+
+    /**
+     * @return the file of the full sized bitmap of a snapshot written with {@code encoding}.
+     */
+    File getBitmapFile(int taskId, int userId, int encoding) {
         // Full sized bitmaps are disabled on low ram devices
         if (DISABLE_FULL_SIZED_BITMAPS) {
             Slog.wtf(TAG, "This device does not support full sized resolution bitmaps.");
             return null;
         }
-        return new File(getDirectory(userId), taskId + BITMAP_EXTENSION);
+        return new File(getDirectory(userId), taskId + BITMAP_EXTENSIONS[encoding]);
     }
 
     File getReducedResolutionBitmapFile(int taskId, int userId) {
-        return new File(getDirectory(userId), taskId + REDUCED_POSTFIX + BITMAP_EXTENSION);
+        return getReducedResolutionBitmapFile(taskId, userId, mEncoding);
+    }
+
+    File getReducedResolutionBitmapFile(int taskId, int userId, int encoding) {
+        return new File(getDirectory(userId),
+                taskId + REDUCED_POSTFIX + BITMAP_EXTENSIONS[encoding]);
+    }
+
+    private TaskSnapshotIndex getIndex(int userId) {
+        synchronized (mIndexes) {
+            TaskSnapshotIndex index = mIndexes.get(userId);
+            if (index == null) {
+                index = new TaskSnapshotIndex(getDirectory(userId), PROTO_EXTENSION);
+                mIndexes.put(userId, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Reads the proto of a snapshot, from the user's snapshot index if it's there.
+     *
+     * @return the proto, or {@code null} if the task has no snapshot.
+     */
+    byte[] readProto(int taskId, int userId) throws IOException {
+        final TaskSnapshotIndex index = getIndex(userId);
+        final byte[] proto = index.get(taskId);
+        if (proto != null) {
+            return proto;
+        }
+        final File protoFile = getProtoFile(taskId, userId);
+        if (!protoFile.exists()) {
+            return null;
+        }
+        return Files.readAllBytes(protoFile.toPath());
+    }
+
+    private void flushIndexes() {
+        final TaskSnapshotIndex[] indexes;
+        synchronized (mIndexes) {
+            indexes = new TaskSnapshotIndex[mIndexes.size()];
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = mIndexes.valueAt(i);
+            }
+        }
+        for (TaskSnapshotIndex index : indexes) {
+            index.flush();
+        }
     }
 
     private boolean createDirectory(int userId) {
@@ -223,14 +394,69 @@ class TaskSnapshotPersister {
 
     private void deleteSnapshot(int taskId, int userId) {
         final File protoFile = getProtoFile(taskId, userId);
-        final File bitmapReducedFile = getReducedResolutionBitmapFile(taskId, userId);
         protoFile.delete();
-        bitmapReducedFile.delete();
+        getIndex(userId).remove(taskId);
+        deleteBitmaps(taskId, userId, -1 /* keepEncoding */);
+    }
 
-        // Low ram devices do not have a full sized file to delete
-        if (!DISABLE_FULL_SIZED_BITMAPS) {
-            final File bitmapFile = getBitmapFile(taskId, userId);
-            bitmapFile.delete();
+    /**
+     * Deletes the bitmaps of a snapshot in every encoding but {@code keepEncoding}.
+     */
+    private void deleteBitmaps(int taskId, int userId, int keepEncoding) {
+        for (int encoding = 0; encoding < BITMAP_EXTENSIONS.length; encoding++) {
+            if (encoding == keepEncoding) {
+                continue;
+            }
+            getReducedResolutionBitmapFile(taskId, userId, encoding).delete();
+
+            // Low ram devices do not have a full sized file to delete
+            if (!DISABLE_FULL_SIZED_BITMAPS) {
+                getBitmapFile(taskId, userId, encoding).delete();
+            }
+        }
+    }
+
+    /**
+     * Waits until no snapshot is being encoded.
+     */
+    private void waitForEncodes() {
+        mEncodingSnapshots.acquireUninterruptibly(MAX_ENCODING_SNAPSHOTS);
+        mEncodingSnapshots.release(MAX_ENCODING_SNAPSHOTS);
+    }
+
+    /**
+     * Waits until the snapshot of {@code taskId} is no longer being encoded, so that its files
+     * are never written by two threads, or written after being deleted.
+     */
+    private void waitForEncode(int taskId) {
+        final boolean encoding;
+        synchronized (mEncodingTaskIds) {
+            encoding = mEncodingTaskIds.contains(taskId);
+        }
+        if (encoding) {
+            waitForEncodes();
+        }
+    }
+
+    private void recordStage(int stage, long startTimeNs) {
+        mStageTimeNs.addAndGet(stage, System.nanoTime() - startTimeNs);
+        mStageCounts.incrementAndGet(stage);
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        final String doublePrefix = prefix + "  ";
+        synchronized (mLock) {
+            pw.println(prefix + "SnapshotPersister encoding=" + ENCODING_NAMES[mEncoding]
+                    + " quality=" + mQuality + " rawCompression=" + mRawCompression
+                    + " queued=" + mWriteQueue.size()
+                    + " queuedSnapshotBytes=" + mStoreQueueBytes / 1024 + "KB of "
+                    + mMaxStoreQueueBytes / 1024 + "KB"
+                    + " coalesced=" + mCoalescedCount + " dropped=" + mDroppedCount);
+        }
+        for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+            final long count = mStageCounts.get(stage);
+            pw.println(doublePrefix + STAGE_NAMES[stage] + ": count=" + count + " avg="
+                    + (count > 0 ? mStageTimeNs.get(stage) / count / 1000 : 0) + "us");
         }
     }
 
@@ -257,6 +483,15 @@ class TaskSnapshotPersister {
                     next.write();
                     SystemClock.sleep(DELAY_MS);
                 }
+                final boolean idle;
+                synchronized (mLock) {
+                    idle = mWriteQueue.isEmpty() || mPaused;
+                }
+                if (idle) {
+                    // Let the snapshots still being encoded finish before idling.
+                    waitForEncodes();
+                    flushIndexes();
+                }
                 synchronized (mLock) {
                     final boolean writeQueueEmpty = mWriteQueue.isEmpty();
                     if (!writeQueueEmpty && !mPaused) {
@@ -292,7 +527,8 @@ class TaskSnapshotPersister {
     private class StoreWriteQueueItem extends WriteQueueItem {
         private final int mTaskId;
         private final int mUserId;
-        private final TaskSnapshot mSnapshot;
+        /** Replaced by a newer snapshot under mLock while queued, read only once dequeued. */
+        private TaskSnapshot mSnapshot;
 
         StoreWriteQueueItem(int taskId, int userId, TaskSnapshot snapshot) {
             mTaskId = taskId;
@@ -300,16 +536,26 @@ class TaskSnapshotPersister {
             mSnapshot = snapshot;
         }
 
+        @GuardedBy("mLock")
+        void setSnapshotLocked(TaskSnapshot snapshot) {
+            mStoreQueueBytes += TaskSnapshotCache.getByteCount(snapshot)
+                    - TaskSnapshotCache.getByteCount(mSnapshot);
+            mSnapshot = snapshot;
+        }
+
         @GuardedBy("mLock")
         @Override
         void onQueuedLocked() {
             mStoreQueueItems.offer(this);
+            mStoreQueueBytes += TaskSnapshotCache.getByteCount(mSnapshot);
         }
 
         @GuardedBy("mLock")
         @Override
         void onDequeuedLocked() {
-            mStoreQueueItems.remove(this);
+            if (mStoreQueueItems.remove(this)) {
+                mStoreQueueBytes -= TaskSnapshotCache.getByteCount(mSnapshot);
+            }
         }
 
         @Override
@@ -318,19 +564,11 @@ class TaskSnapshotPersister {
                 Slog.e(TAG, "Unable to create snapshot directory for user dir="
                         + getDirectory(mUserId));
             }
-            boolean failed = false;
-            if (!writeProto()) {
-                failed = true;
-            }
-            if (!writeBuffer()) {
-                failed = true;
-            }
-            if (failed) {
-                deleteSnapshot(mTaskId, mUserId);
-            }
+            waitForEncode(mTaskId);
+            writeBuffer(buildProto());
         }
 
-        boolean writeProto() {
+        private byte[] buildProto() {
             final TaskSnapshotProto proto = new TaskSnapshotProto();
             proto.orientation = mSnapshot.getOrientation();
             proto.insetLeft = mSnapshot.getContentInsets().left;
@@ -343,7 +581,15 @@ class TaskSnapshotPersister {
             proto.isTranslucent = mSnapshot.isTranslucent();
             proto.topActivityComponent = mSnapshot.getTopActivityComponent().flattenToString();
             proto.scale = mSnapshot.getScale();
-            final byte[] bytes = TaskSnapshotProto.toByteArray(proto);
+            return TaskSnapshotProto.toByteArray(proto);
+        }
+
+        /**
+         * Writes the proto of the snapshot and adds it to the user's index. Only called once its
+         * bitmaps are written, so that the loader never finds the proto without them.
+         */
+        private boolean writeProto(byte[] bytes) {
+            final long startTimeNs = System.nanoTime();
             final File file = getProtoFile(mTaskId, mUserId);
             final AtomicFile atomicFile = new AtomicFile(file);
             FileOutputStream fos = null;
@@ -356,57 +602,142 @@ class TaskSnapshotPersister {
                 Slog.e(TAG, "Unable to open " + file + " for persisting. " + e);
                 return false;
             }
+            getIndex(mUserId).put(mTaskId, bytes);
+            recordStage(STAGE_PROTO, startTimeNs);
             return true;
         }
 
-        boolean writeBuffer() {
+        /**
+         * Copies the snapshot out of its hardware buffer on this thread, then scales and encodes
+         * the reduced and full sized bitmaps in parallel on the encode threads. Returns once
+         * they've been handed off. Once both are written, {@code proto} is written and published;
+         * the snapshot is deleted if any of that fails.
+         */
+        void writeBuffer(byte[] proto) {
+            // Don't copy out another bitmap until there's an encoder free for it.
+            mEncodingSnapshots.acquireUninterruptibly();
+
+            long startTimeNs = System.nanoTime();
             // TODO(b/116112787) TaskSnapshot needs bookkeep the ColorSpace of the
             // hardware bitmap when created.
             final Bitmap bitmap = Bitmap.wrapHardwareBuffer(
                     mSnapshot.getSnapshot(), mSnapshot.getColorSpace());
             if (bitmap == null) {
                 Slog.e(TAG, "Invalid task snapshot hw bitmap");
-                return false;
+                mEncodingSnapshots.release();
+                deleteSnapshot(mTaskId, mUserId);
+                return;
             }
 
             final Bitmap swBitmap = bitmap.copy(Config.ARGB_8888, false /* isMutable */);
-            final Bitmap reduced = mSnapshot.isReducedResolution()
-                    ? swBitmap
-                    : Bitmap.createScaledBitmap(swBitmap,
-                            (int) (bitmap.getWidth() * mReducedScale),
-                            (int) (bitmap.getHeight() * mReducedScale), true /* filter */);
-
-            final File reducedFile = getReducedResolutionBitmapFile(mTaskId, mUserId);
-            try {
-                FileOutputStream reducedFos = new FileOutputStream(reducedFile);
-                reduced.compress(JPEG, QUALITY, reducedFos);
-                reducedFos.close();
-            } catch (IOException e) {
-                Slog.e(TAG, "Unable to open " + reducedFile +" for persisting.", e);
-                return false;
+            recordStage(STAGE_COPY, startTimeNs);
+            final boolean reducedOnly = mSnapshot.isReducedResolution();
+            synchronized (mEncodingTaskIds) {
+                mEncodingTaskIds.add(mTaskId);
             }
-            reduced.recycle();
 
-            // For snapshots with reduced resolution, do not create or save full sized bitmaps
-            if (mSnapshot.isReducedResolution()) {
+            final AtomicInteger pendingEncodes = new AtomicInteger(reducedOnly ? 1 : 2);
+            final AtomicBoolean failed = new AtomicBoolean();
+            final Runnable onEncoded = () -> {
+                if (pendingEncodes.decrementAndGet() > 0) {
+                    return;
+                }
                 swBitmap.recycle();
-                return true;
+                if (failed.get() || !writeProto(proto)) {
+                    deleteSnapshot(mTaskId, mUserId);
+                } else {
+                    // Don't leave bitmaps of another encoding behind for the loader to find.
+                    deleteBitmaps(mTaskId, mUserId, mEncoding);
+                }
+                synchronized (mEncodingTaskIds) {
+                    mEncodingTaskIds.remove(mTaskId);
+                }
+                mEncodingSnapshots.release();
+            };
+
+            mEncodeExecutor.execute(() -> {
+                final long scaleStartTimeNs = System.nanoTime();
+                final Bitmap reduced = reducedOnly
+                        ? swBitmap
+                        : Bitmap.createScaledBitmap(swBitmap,
+                                (int) (swBitmap.getWidth() * mReducedScale),
+                                (int) (swBitmap.getHeight() * mReducedScale), true /* filter */);
+                if (!reducedOnly) {
+                    recordStage(STAGE_SCALE, scaleStartTimeNs);
+                }
+                if (!encode(reduced, getReducedResolutionBitmapFile(mTaskId, mUserId),
+                        STAGE_ENCODE_REDUCED)) {
+                    failed.set(true);
+                }
+                if (!reducedOnly) {
+                    reduced.recycle();
+                }
+                onEncoded.run();
+            });
+
+            // For snapshots with reduced resolution, do not create or save full sized bitmaps
+            if (!reducedOnly) {
+                mEncodeExecutor.execute(() -> {
+                    if (!encode(swBitmap, getBitmapFile(mTaskId, mUserId), STAGE_ENCODE_FULL)) {
+                        failed.set(true);
+                    }
+                    onEncoded.run();
+                });
             }
+        }
 
-            final File file = getBitmapFile(mTaskId, mUserId);
+        private boolean encode(Bitmap bitmap, File file, int stage) {
+            final long startTimeNs = System.nanoTime();
             try {
-                FileOutputStream fos = new FileOutputStream(file);
-                swBitmap.compress(JPEG, QUALITY, fos);
-                fos.close();
-            } catch (IOException e) {
+                if (mEncoding == ENCODING_RAW) {
+                    writeAtomically(file,
+                            out -> TaskSnapshotRawCodec.encode(bitmap, out, mRawCompression));
+                } else {
+                    writeAtomically(file, out -> {
+                        if (!bitmap.compress(mEncoding == ENCODING_WEBP ? WEBP : JPEG, mQuality,
+                                out)) {
+                            throw new IOException("Unable to compress " + file);
+                        }
+                    });
+                }
+            } catch (IOException | RuntimeException e) {
+                // Also runtime exceptions, so that onEncoded still runs and releases the encoder.
                 Slog.e(TAG, "Unable to open " + file + " for persisting.", e);
                 return false;
             }
-            swBitmap.recycle();
+            recordStage(stage, startTimeNs);
             return true;
         }
     }
 
+    private interface StreamWriter {
+        void write(FileOutputStream out) throws IOException;
+    }
+
+    /**
+     * Writes {@code file} to a temporary file, syncs it and renames it over {@code file}, so that
+     * readers see either the old file or the whole new one. A reader that already opened or
+     * mapped the old file keeps reading it.
+     */
+    private static void writeAtomically(File file, StreamWriter writer) throws IOException {
+        final File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+        boolean written = false;
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tmpFile)) {
+                writer.write(fos);
+                fos.getFD().sync();
+            }
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmpFile + " to " + file);
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                tmpFile.delete();
+            }
+        }
+    }
+
     private class DeleteWriteQueueItem extends WriteQueueItem {
         private final int mTaskId;
         private final int mUserId;
@@ -418,6 +749,7 @@ class TaskSnapshotPersister {
 
         @Override
         void write() {
+            waitForEncode(mTaskId);
             deleteSnapshot(mTaskId, mUserId);
         }
     }
@@ -436,6 +768,7 @@ class TaskSnapshotPersister {
 
         @Override
         void write() {
+            waitForEncodes();
             final ArraySet<Integer> newPersistedTaskIds;
             synchronized (mLock) {
                 newPersistedTaskIds = new ArraySet<>(mPersistedTaskIdsSinceLastRemoveObsolete);
@@ -446,7 +779,11 @@ class TaskSnapshotPersister {
                 if (files == null) {
                     continue;
                 }
+                getIndex(userId).retainAll(mPersistentTaskIds, newPersistedTaskIds);
                 for (String file : files) {
+                    if (TaskSnapshotIndex.INDEX_FILENAME.equals(file)) {
+                        continue;
+                    }
                     final int taskId = getTaskId(file);
                     if (!mPersistentTaskIds.contains(taskId)
                             && !newPersistedTaskIds.contains(taskId)) {
@@ -458,7 +795,7 @@ class TaskSnapshotPersister {
 
         @VisibleForTesting
         int getTaskId(String fileName) {
-            if (!fileName.endsWith(PROTO_EXTENSION) && !fileName.endsWith(BITMAP_EXTENSION)) {
+            if (!fileName.endsWith(PROTO_EXTENSION) && !hasBitmapExtension(fileName)) {
                 return -1;
             }
             final int end = fileName.lastIndexOf('.');
@@ -475,5 +812,14 @@ class TaskSnapshotPersister {
                 return -1;
             }
         }
+
+        private boolean hasBitmapExtension(String fileName) {
+            for (String extension : BITMAP_EXTENSIONS) {
+                if (fileName.endsWith(extension)) {
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.wm;
+
+import static com.android.server.wm.WindowManagerDebugConfig.TAG_WITH_CLASS_NAME;
+import static com.android.server.wm.WindowManagerDebugConfig.TAG_WM;
+
+import android.app.ActivityManager.TaskSnapshot;
+import android.os.Handler;
+import android.os.Trace;
+import android.util.Slog;
+
+import com.android.internal.os.BackgroundThread;
+
+import java.io.PrintWriter;
+
+/**
+ * Loads the reduced resolution snapshots of the tasks recents is likely to show next into
+ * {@link TaskSnapshotCache} ahead of time, so that neither the recents UI nor a quick switch
+ * waits on the disk for them.
+ * <p>
+ * Each snapshot is loaded by a message of its own on the background thread, so a prefetch can be
+ * cancelled between any two loads, and doesn't hold up other background work for long. Tasks
+ * either cache already holds are skipped. A prefetch stops after {@link #MAX_PREFETCH_TASKS}
+ * tasks, or once it has loaded half of the restored cache's budget from disk, so it can't push
+ * out what the cache already holds.
+ * <p>
+ * Access to this class should be guarded by the global window manager lock.
+ */
+class TaskSnapshotPrefetcher {
+
+    private static final String TAG = TAG_WITH_CLASS_NAME ? "TaskSnapshotPrefetcher" : TAG_WM;
+    private static final boolean DEBUG = false;
+
+    /** Maximum number of tasks loaded by one prefetch. */
+    static final int MAX_PREFETCH_TASKS = 6;
+
+    private final TaskSnapshotCache mCache;
+    private final Handler mHandler = BackgroundThread.getHandler();
+
+    private Prefetch mPrefetch;
+
+    /** Snapshots actually loaded from disk. Written only on the background thread. */
+    private volatile long mLoadedCount;
+    private long mCancelledCount;
+
+    TaskSnapshotPrefetcher(TaskSnapshotCache cache) {
+        mCache = cache;
+    }
+
+    /**
+     * Starts prefetching the snapshots of the given tasks, in order, cancelling any prefetch
+     * still running.
+     */
+    void prefetch(int[] taskIds, int[] userIds) {
+        cancel();
+        mPrefetch = new Prefetch(taskIds, userIds, mCache.getRestoredCacheMaxBytes() / 2);
+        mHandler.post(mPrefetch);
+    }
+
+    /**
+     * Cancels the loads of the current prefetch that haven't started yet.
+     */
+    void cancel() {
+        if (mPrefetch == null) {
+            return;
+        }
+        if (!mPrefetch.mDone) {
+            mCancelledCount++;
+        }
+        mPrefetch.mCancelled = true;
+        mHandler.removeCallbacks(mPrefetch);
+        mPrefetch = null;
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "SnapshotPrefetcher loaded=" + mLoadedCount
+                + " cancelled=" + mCancelledCount);
+    }
+
+    /**
+     * Loads one snapshot per run, then posts itself again for the next one.
+     */
+    private final class Prefetch implements Runnable {
+        private final int[] mTaskIds;
+        private final int[] mUserIds;
+        private final int mMaxBytes;
+        private int mNext;
+        private int mLoadedBytes;
+        volatile boolean mCancelled;
+        volatile boolean mDone;
+
+        Prefetch(int[] taskIds, int[] userIds, int maxBytes) {
+            mTaskIds = taskIds;
+            mUserIds = userIds;
+            mMaxBytes = maxBytes;
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            if (mNext >= Math.min(mTaskIds.length, MAX_PREFETCH_TASKS)
+                    || mLoadedBytes >= mMaxBytes) {
+                mDone = true;
+                return;
+            }
+            final int taskId = mTaskIds[mNext];
+            final int userId = mUserIds[mNext];
+            mNext++;
+            Trace.traceBegin(Trace.TRACE_TAG_WINDOW_MANAGER, "prefetchSnapshot");
+            try {
+                // Tasks already cached are skipped, so only what the disk loads adds to the cache
+                // counts against the budget.
+                final TaskSnapshot snapshot = mCache.prefetchSnapshot(taskId, userId);
+                if (snapshot != null) {
+                    mLoadedBytes += TaskSnapshotCache.getByteCount(snapshot);
+                    mLoadedCount++;
+                }
+                if (DEBUG) Slog.d(TAG, "prefetched taskId=" + taskId + " snapshot=" + snapshot);
+            } finally {
+                Trace.traceEnd(Trace.TRACE_TAG_WINDOW_MANAGER);
+            }
+            mHandler.post(this);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.wm;
+
+import static com.android.server.wm.WindowManagerDebugConfig.TAG_WITH_CLASS_NAME;
+import static com.android.server.wm.WindowManagerDebugConfig.TAG_WM;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.util.Slog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Reads and writes task snapshot bitmaps as raw {@link Config#ARGB_8888} pixels, either as they
+ * are or compressed with the fastest deflate level. Bigger on disk than JPEG, but much cheaper to
+ * encode and to load back, as loading is a copy rather than an image decode. Files are read
+ * through a memory map, so uncompressed pixels are copied straight from the page cache into the
+ * bitmap. Only uncompressed files take that path: compressed ones are copied to the heap and
+ * inflated into a second buffer first, trading two copies for less disk space. As the mapping
+ * faults if its file is truncated, a file that may be read must only ever be replaced by
+ * renaming a new one over it, never rewritten in place.
+ * <p>
+ * The file starts with a header of {@code [magic][version][width][height][compression]}, each an
+ * int, followed by the pixels in the byte order of {@link Bitmap#copyPixelsToBuffer}.
+ */
+class TaskSnapshotRawCodec {
+
+    private static final String TAG = TAG_WITH_CLASS_NAME ? "TaskSnapshotRawCodec" : TAG_WM;
+
+    private static final int MAGIC = 0x54535257; // "TSRW"
+    private static final int VERSION = 1;
+    static final int HEADER_SIZE = 20;
+
+    static final int COMPRESSION_NONE = 0;
+    static final int COMPRESSION_DEFLATE = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Writes the pixels of {@code bitmap}, which must be an {@link Config#ARGB_8888} bitmap, to
+     * {@code out}, which is left open.
+     *
+     * @param compress whether to deflate the pixels.
+     */
+    static void encode(Bitmap bitmap, OutputStream out, boolean compress) throws IOException {
+        final ByteBuffer pixels = ByteBuffer.allocate(bitmap.getByteCount());
+        bitmap.copyPixelsToBuffer(pixels);
+        out.write(ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION)
+                .putInt(bitmap.getWidth()).putInt(bitmap.getHeight())
+                .putInt(compress ? COMPRESSION_DEFLATE : COMPRESSION_NONE).array());
+        if (!compress) {
+            out.write(pixels.array());
+            return;
+        }
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            final DeflaterOutputStream deflaterOut =
+                    new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+            deflaterOut.write(pixels.array());
+            deflaterOut.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @return the {@link Config#ARGB_8888} bitmap in {@code file}, or {@code null} if it is
+     *         invalid.
+     */
+    static Bitmap decode(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            final FileChannel channel = in.getChannel();
+            return decode(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    private static Bitmap decode(File file, ByteBuffer data) {
+        if (data.remaining() < HEADER_SIZE || data.getInt() != MAGIC
+                || data.getInt() != VERSION) {
+            Slog.w(TAG, "Unknown snapshot format: " + file);
+            return null;
+        }
+        final int width = data.getInt();
+        final int height = data.getInt();
+        final int compression = data.getInt();
+        if (width <= 0 || height <= 0 || (long) width * height * 4 > Integer.MAX_VALUE) {
+            Slog.w(TAG, "Invalid snapshot size " + width + "x" + height + ": " + file);
+            return null;
+        }
+        // Allocated up front from the header, so the pixels are only ever copied into it once.
+        // Deflated pixels still go through two heap buffers on the way there.
+        final Bitmap bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+        ByteBuffer pixels = data;
+        if (compression == COMPRESSION_DEFLATE) {
+            final byte[] compressed = new byte[data.remaining()];
+            data.get(compressed);
+            pixels = ByteBuffer.allocate(bitmap.getByteCount());
+            final Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed);
+                pixels.limit(inflater.inflate(pixels.array()));
+            } catch (DataFormatException e) {
+                Slog.w(TAG, "Corrupt snapshot: " + file, e);
+                bitmap.recycle();
+                return null;
+            } finally {
+                inflater.end();
+            }
+        } else if (compression != COMPRESSION_NONE) {
+            Slog.w(TAG, "Unknown snapshot compression " + compression + ": " + file);
+            bitmap.recycle();
+            return null;
+        }
+        if (pixels.remaining() < bitmap.getByteCount()) {
+            Slog.w(TAG, "Truncated snapshot: " + file);
+            bitmap.recycle();
+            return null;
+        }
+        bitmap.copyPixelsFromBuffer(pixels);
+        return bitmap;
+    }
+}
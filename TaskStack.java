@@ -723,6 +723,7 @@ public class TaskStack extends WindowContainer<Task> implements
             if (wtoken.getTask() == task) {
                 wtoken.mIsExiting = false;
                 mExitingAppTokens.remove(appNdx);
+                onWindowOrderChanged();
             }
         }
     }
@@ -1042,6 +1043,7 @@ public class TaskStack extends WindowContainer<Task> implements
             if (mWmService.isCurrentProfileLocked(task.mUserId) || task.showForAllUsers()) {
                 mChildren.remove(taskNdx);
                 mChildren.add(task);
+                onWindowOrderChanged();
                 --top;
             }
         }
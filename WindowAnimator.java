@@ -24,6 +24,8 @@ import static com.android.server.wm.WindowSurfacePlacer.SET_ORIENTATION_CHANGE_C
 import static com.android.server.wm.WindowSurfacePlacer.SET_UPDATE_ROTATION;
 
 import android.content.Context;
+import android.os.Process;
+import android.os.SystemProperties;
 import android.os.Trace;
 import android.util.Slog;
 import android.util.SparseArray;
@@ -36,6 +38,9 @@ import com.android.server.policy.WindowManagerPolicy;
 
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Singleton class that carries out the animations and Surface operations in a separate task
@@ -85,6 +90,24 @@ public class WindowAnimator {
 
     private final SurfaceControl.Transaction mTransaction = new SurfaceControl.Transaction();
 
+    /**
+     * System property to make {@link #animate} prepare the surfaces of its displays in parallel,
+     * see {@link #prepareSurfacesInParallel}. Off by default.
+     */
+    static final String PARALLEL_PREPARE_PROPERTY = "persist.wm.parallel_prepare_surfaces";
+    private static final int PREPARE_THREADS = 2;
+
+    private final boolean mParallelPrepareEnabled =
+            SystemProperties.getBoolean(PARALLEL_PREPARE_PROPERTY, false);
+    private ExecutorService mPrepareExecutor;
+    private final ArrayList<DisplayContent> mTmpPrepareDisplays = new ArrayList<>();
+    /** Set while the displays are preparing their surfaces on more than one thread. */
+    private volatile boolean mInParallelPrepare;
+    /** See {@link #runAfterParallelPrepare}. */
+    private final ArrayList<Runnable> mAfterParallelPrepareRunnables = new ArrayList<>();
+    private final Runnable mScheduleAnimation = this::scheduleAnimation;
+    private long mParallelPrepareCount;
+
     WindowAnimator(final WindowManagerService service) {
         mService = service;
         mContext = service.mContext;
@@ -152,6 +175,7 @@ public class WindowAnimator {
                 final AccessibilityController accessibilityController =
                         mService.mAccessibilityController;
                 final int numDisplays = mDisplayContentsAnimators.size();
+                final boolean prepareInParallel = canPrepareSurfacesInParallel();
                 for (int i = 0; i < numDisplays; i++) {
                     final int displayId = mDisplayContentsAnimators.keyAt(i);
                     final DisplayContent dc = mService.mRoot.getDisplayContent(displayId);
@@ -180,7 +204,18 @@ public class WindowAnimator {
                     // associated with exiting/removed apps
                     dc.updateWindowsForAnimator();
                     dc.updateBackgroundForAnimator();
-                    dc.prepareSurfaces();
+                    if (prepareInParallel) {
+                        mTmpPrepareDisplays.add(dc);
+                    } else {
+                        dc.prepareSurfaces();
+                    }
+                }
+                if (prepareInParallel) {
+                    try {
+                        prepareSurfacesInParallel(mTmpPrepareDisplays);
+                    } finally {
+                        mTmpPrepareDisplays.clear();
+                    }
                 }
 
                 for (int i = 0; i < numDisplays; i++) {
@@ -303,6 +338,10 @@ public class WindowAnimator {
                     pw.print(Integer.toHexString(mBulkUpdateParams));
                     pw.println(bulkUpdateParamsToString(mBulkUpdateParams));
         }
+        if (mParallelPrepareEnabled) {
+            pw.print(prefix); pw.print("mParallelPrepareCount=");
+                    pw.println(mParallelPrepareCount);
+        }
     }
 
     int getPendingLayoutChanges(final int displayId) {
@@ -358,10 +397,173 @@ public class WindowAnimator {
     }
 
     void requestRemovalOfReplacedWindows(WindowState win) {
+        // Only ever set here, so it doesn't matter which display's thread gets to it first.
         mRemoveReplacedWindows = true;
     }
 
+    /**
+     * @return whether {@link #animate} should prepare the surfaces of its displays in parallel
+     *         this frame. Never while a screen rotation animation runs, as that drives the
+     *         surfaces of all windows through shared state.
+     */
+    private boolean canPrepareSurfacesInParallel() {
+        if (!mParallelPrepareEnabled || mDisplayContentsAnimators.size() < 2) {
+            return false;
+        }
+        for (int i = mDisplayContentsAnimators.size() - 1; i >= 0; i--) {
+            if (mDisplayContentsAnimators.valueAt(i).mScreenRotationAnimation != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Prepares the surfaces of each display on a thread of its own, and then merges the
+     * transaction of each display into the global one, in display order, on this thread.
+     * <p>
+     * The other threads run without the global lock, which this thread holds throughout, so
+     * {@link WindowContainer#prepareSurfaces} may only touch the containers and the pending
+     * transaction of its own display from here on; {@link SurfaceControl} guards the global
+     * transaction itself. Everything else it does goes through {@link #runAfterParallelPrepare},
+     * and runs on this thread once all displays are done, in no particular order between them:
+     * <ul>
+     * <li>the orientation change state and the surface memory reclaim of
+     * {@link WindowStateAnimator#prepareSurfaceLocked},
+     * <li>{@link WindowSurfaceController#setShown}, which updates the windows hiding non system
+     * overlays on all displays and the overlay surfaces of the {@link Session},
+     * <li>the preserved surfaces to destroy and hiding the wallpaper,
+     * <li>{@link #scheduleAnimation}.
+     * </ul>
+     * {@link WindowManagerService#mAnimationTransferMap}, which the dims reach through
+     * {@link SurfaceAnimator}, is synchronized on instead. Screen rotation animations, the window
+     * and wallpaper animations of {@link DisplayContent#updateWindowsForAnimator} and
+     * {@link DisplayContent#updateBackgroundForAnimator}, and the {@link AccessibilityController}
+     * all run on this thread before or after.
+     */
+    private void prepareSurfacesInParallel(ArrayList<DisplayContent> displays) {
+        Trace.traceBegin(Trace.TRACE_TAG_WINDOW_MANAGER, "prepareSurfacesInParallel");
+        try {
+            if (mPrepareExecutor == null) {
+                mPrepareExecutor = Executors.newFixedThreadPool(PREPARE_THREADS,
+                        r -> new Thread(() -> {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+                            r.run();
+                        }, "WindowPrepareSurfaces"));
+            }
+            final int count = displays.size();
+            final CountDownLatch done = new CountDownLatch(count - 1);
+            // Anything thrown on any thread, errors included, is rethrown on this one.
+            final Throwable[] failure = new Throwable[1];
+            mInParallelPrepare = true;
+            try {
+                for (int i = 1; i < count; i++) {
+                    final DisplayContent dc = displays.get(i);
+                    mPrepareExecutor.execute(() -> {
+                        try {
+                            dc.prepareDisplaySurfaces();
+                        } catch (Throwable e) {
+                            synchronized (failure) {
+                                if (failure[0] == null) {
+                                    failure[0] = e;
+                                }
+                            }
+                        } finally {
+                            done.countDown();
+                        }
+                    });
+                }
+                // The first display, usually the default one, is prepared on this thread.
+                try {
+                    displays.get(0).prepareDisplaySurfaces();
+                } catch (Throwable e) {
+                    synchronized (failure) {
+                        if (failure[0] == null) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+                awaitUninterruptibly(done);
+            } finally {
+                mInParallelPrepare = false;
+            }
+            mParallelPrepareCount++;
+
+            for (int i = 0; i < count; i++) {
+                SurfaceControl.mergeToGlobalTransaction(displays.get(i).getPendingTransaction());
+            }
+            synchronized (mAfterParallelPrepareRunnables) {
+                for (int i = 0; i < mAfterParallelPrepareRunnables.size(); i++) {
+                    mAfterParallelPrepareRunnables.get(i).run();
+                }
+                mAfterParallelPrepareRunnables.clear();
+            }
+            synchronized (failure) {
+                if (failure[0] != null) {
+                    rethrow(failure[0]);
+                }
+            }
+        } finally {
+            Trace.traceEnd(Trace.TRACE_TAG_WINDOW_MANAGER);
+        }
+    }
+
+    private static void rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new RuntimeException(t);
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return whether the displays are preparing their surfaces in parallel right now, in which
+     *         case changes to state that isn't per display have to go through
+     *         {@link #runAfterParallelPrepare}.
+     */
+    boolean isInParallelPrepare() {
+        return mInParallelPrepare;
+    }
+
+    /**
+     * Runs {@code r} right away, unless the displays are preparing their surfaces in parallel, in
+     * which case it runs on the animation thread once they are all done. For changes that
+     * {@link WindowContainer#prepareSurfaces} makes to state that isn't per display. Callers on
+     * the per-window paths check {@link #isInParallelPrepare} first, so that the serial path
+     * doesn't allocate a runnable each frame.
+     */
+    void runAfterParallelPrepare(Runnable r) {
+        if (!mInParallelPrepare) {
+            r.run();
+            return;
+        }
+        synchronized (mAfterParallelPrepareRunnables) {
+            mAfterParallelPrepareRunnables.add(r);
+        }
+    }
+
     void scheduleAnimation() {
+        if (mInParallelPrepare) {
+            runAfterParallelPrepare(mScheduleAnimation);
+            return;
+        }
         if (!mAnimationFrameCallbackScheduled) {
             mAnimationFrameCallbackScheduled = true;
             mChoreographer.postFrameCallback(mAnimationFrameCallback);
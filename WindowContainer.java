@@ -166,8 +166,22 @@ class WindowContainer<E extends WindowContainer> extends ConfigurationContainer<
     }
 
     final protected void setParent(WindowContainer<WindowContainer> parent) {
+        // For the display this container is leaving as well as the one it joins.
+        onWindowOrderChanged();
         mParent = parent;
         onParentChanged();
+        onWindowOrderChanged();
+    }
+
+    /**
+     * Tells the display this container is on that the order in which {@link #forAllWindows}
+     * visits its windows may have changed, see {@link DisplayContent#invalidateWindowOrder}.
+     */
+    void onWindowOrderChanged() {
+        final DisplayContent dc = getDisplayContent();
+        if (dc != null) {
+            dc.invalidateWindowOrder();
+        }
     }
 
     /**
@@ -277,6 +291,7 @@ class WindowContainer<E extends WindowContainer> extends ConfigurationContainer<
             parent = parent.getParent();
         }
         onChildPositionChanged();
+        onWindowOrderChanged();
     }
 
     /**
@@ -303,6 +318,7 @@ class WindowContainer<E extends WindowContainer> extends ConfigurationContainer<
             parent = parent.getParent();
         }
         onChildPositionChanged();
+        onWindowOrderChanged();
     }
 
     /**
@@ -437,6 +453,7 @@ class WindowContainer<E extends WindowContainer> extends ConfigurationContainer<
                     mChildren.remove(child);
                     mChildren.add(child);
                     onChildPositionChanged();
+                    onWindowOrderChanged();
                 }
                 if (includingParents && getParent() != null) {
                     getParent().positionChildAt(POSITION_TOP, this /* child */,
@@ -448,6 +465,7 @@ class WindowContainer<E extends WindowContainer> extends ConfigurationContainer<
                     mChildren.remove(child);
                     mChildren.addFirst(child);
                     onChildPositionChanged();
+                    onWindowOrderChanged();
                 }
                 if (includingParents && getParent() != null) {
                     getParent().positionChildAt(POSITION_BOTTOM, this /* child */,
@@ -462,6 +480,7 @@ class WindowContainer<E extends WindowContainer> extends ConfigurationContainer<
                 mChildren.remove(child);
                 mChildren.add(position, child);
                 onChildPositionChanged();
+                onWindowOrderChanged();
         }
     }
 
@@ -513,7 +532,9 @@ class WindowContainer<E extends WindowContainer> extends ConfigurationContainer<
      * @param dc The display this container is on after changes.
      */
     void onDisplayChanged(DisplayContent dc) {
+        onWindowOrderChanged();
         mDisplayContent = dc;
+        onWindowOrderChanged();
         if (dc != null && dc != this) {
             dc.getPendingTransaction().merge(mPendingTransaction);
         }
@@ -1824,6 +1824,7 @@ public class WindowManagerService extends IWindowManager.Stub
                 final TaskStack stack = atoken.getStack();
                 if (stack != null) {
                     stack.mExitingAppTokens.remove(atoken);
+                    atoken.onWindowOrderChanged();
                 }
             }
         }
@@ -5970,6 +5971,12 @@ public class WindowManagerService extends IWindowManager.Stub
     private void dumpHighRefreshRateBlacklist(PrintWriter pw) {
         pw.println("WINDOW MANAGER HIGH REFRESH RATE BLACKLIST (dumpsys window refresh)");
         mHighRefreshRateBlacklist.dump(pw);
+        synchronized (mGlobalLock) {
+            mRoot.forAllDisplays(dc -> {
+                pw.println("  Display #" + dc.getDisplayId());
+                dc.getDisplayPolicy().getRefreshRatePolicy().dump(pw, "    ");
+            });
+        }
     }
 
     private void dumpTraceStatus(PrintWriter pw) {
@@ -6295,6 +6302,7 @@ public class WindowManagerService extends IWindowManager.Stub
                 pw.println("    t[okens]: token list");
                 pw.println("    w[indows]: window list");
                 pw.println("    trace: print trace status and write Winscope trace to file");
+                pw.println("    placement: surface placement profiler results");
                 pw.println("  cmd may also be a NAME to dump windows.  NAME may");
                 pw.println("    be a partial substring in a window name, a");
                 pw.println("    Window hex object identifier, or");
@@ -6371,6 +6379,12 @@ public class WindowManagerService extends IWindowManager.Stub
             } else if ("trace".equals(cmd)) {
                 dumpTraceStatus(pw);
                 return;
+            } else if ("placement".equals(cmd)) {
+                synchronized (mGlobalLock) {
+                    pw.println("WINDOW MANAGER SURFACE PLACEMENT (dumpsys window placement)");
+                    mWindowPlacerLocked.getProfiler().dump(pw, "  ");
+                }
+                return;
             } else if ("refresh".equals(cmd)) {
                 dumpHighRefreshRateBlacklist(pw);
                 return;
@@ -79,6 +79,8 @@ public class WindowManagerShellCommand extends ShellCommand {
                     return runSetDisplayUserRotation(pw);
                 case "set-fix-to-user-rotation":
                     return runSetFixToUserRotation(pw);
+                case "placement-profile":
+                    return runPlacementProfile(pw);
                 default:
                     return handleDefaultCommands(cmd);
             }
@@ -363,6 +365,33 @@ public class WindowManagerShellCommand extends ShellCommand {
         return 0;
     }
 
+    private int runPlacementProfile(PrintWriter pw) {
+        final String arg = getNextArg();
+        synchronized (mInternal.mGlobalLock) {
+            final SurfacePlacementProfiler profiler = mInternal.mWindowPlacerLocked.getProfiler();
+            if (arg == null) {
+                profiler.dump(pw, "");
+                return 0;
+            }
+            switch (arg) {
+                case "start":
+                    profiler.setEnabled(true);
+                    break;
+                case "stop":
+                    profiler.setEnabled(false);
+                    break;
+                case "reset":
+                    profiler.reset();
+                    break;
+                default:
+                    getErrPrintWriter().println("Error: expecting start, stop or reset, but got "
+                            + arg);
+                    return -1;
+            }
+        }
+        return 0;
+    }
+
     @Override
     public void onHelp() {
         PrintWriter pw = getOutPrintWriter();
@@ -386,6 +415,9 @@ public class WindowManagerShellCommand extends ShellCommand {
         pw.println("    Set user rotation mode and user rotation.");
         pw.println("  set-fix-to-user-rotation [-d DISPLAY_ID] [enabled|disabled]");
         pw.println("    Enable or disable rotating display for app requested orientation.");
+        pw.println("  placement-profile [start|stop|reset]");
+        pw.println("    Start, stop or reset the surface placement profiler, or print its");
+        pw.println("    results.");
         if (!IS_USER) {
             pw.println("  tracing (start | stop)");
             pw.println("    Start or stop window tracing.");
@@ -508,6 +508,15 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
     InputChannel mInputChannel;
     private InputChannel mClientChannel;
 
+    /**
+     * Set when {@link #mInputWindowHandle} changed outside of
+     * {@link InputMonitor#populateInputWindowHandle}, so it must be sent again.
+     */
+    boolean mInputWindowHandleDirty = true;
+    /** The surface and handle that were last sent as this window's input info. */
+    SurfaceControl mAppliedInputSurfaceControl;
+    InputWindowHandle mAppliedInputWindowHandle;
+
     // Used to improve performance of toString()
     private String mStringNameCache;
     private CharSequence mLastTitle;
@@ -1375,6 +1384,7 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
         if (dc != null && mInputWindowHandle.displayId != dc.getDisplayId()) {
             mLayoutSeq = dc.mLayoutSeq - 1;
             mInputWindowHandle.displayId = dc.getDisplayId();
+            mInputWindowHandleDirty = true;
         }
     }
 
@@ -1930,6 +1940,7 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
         mRemoved = true;
 
         mWillReplaceWindow = false;
+        onWindowOrderChanged();
         if (mReplacementWindow != null) {
             mReplacementWindow.mSkipEnterAnimationForSeamlessReplacement = false;
         }
@@ -2184,6 +2195,7 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
         mInputChannel = inputChannels[0];
         mClientChannel = inputChannels[1];
         mInputWindowHandle.token = mClient.asBinder();
+        mInputWindowHandleDirty = true;
         if (outInputChannel != null) {
             mClientChannel.transferTo(outInputChannel);
             mClientChannel.dispose();
@@ -2215,6 +2227,7 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
             mClientChannel = null;
         }
         mInputWindowHandle.token = null;
+        mInputWindowHandleDirty = true;
     }
 
     /** Returns true if the replacement window was removed. */
@@ -2237,6 +2250,7 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
     private void removeReplacedWindow() {
         if (DEBUG_ADD_REMOVE) Slog.d(TAG, "Removing replaced window: " + this);
         mWillReplaceWindow = false;
+        onWindowOrderChanged();
         mAnimateReplacingWindow = false;
         mReplacingRemoveRequested = false;
         mReplacementWindow = null;
@@ -3930,12 +3944,14 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
         }
 
         mWillReplaceWindow = true;
+        onWindowOrderChanged();
         mReplacementWindow = null;
         mAnimateReplacingWindow = animate;
     }
 
     void clearWillReplaceWindow() {
         mWillReplaceWindow = false;
+        onWindowOrderChanged();
         mReplacementWindow = null;
         mAnimateReplacingWindow = false;
 
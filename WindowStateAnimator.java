@@ -397,8 +397,18 @@ class WindowStateAnimator {
     }
 
     void markPreservedSurfaceForDestroy() {
-        if (mDestroyPreservedSurfaceUponRedraw
-                && !mService.mDestroyPreservedSurface.contains(mWin)) {
+        if (!mDestroyPreservedSurfaceUponRedraw) {
+            return;
+        }
+        if (mAnimator.isInParallelPrepare()) {
+            mAnimator.runAfterParallelPrepare(this::addToDestroyPreservedSurface);
+        } else {
+            addToDestroyPreservedSurface();
+        }
+    }
+
+    private void addToDestroyPreservedSurface() {
+        if (!mService.mDestroyPreservedSurface.contains(mWin)) {
             mService.mDestroyPreservedSurface.add(mWin);
         }
     }
@@ -1092,7 +1102,12 @@ class WindowStateAnimator {
             hide("prepareSurfaceLocked");
         } else if (w.isParentWindowHidden() || !w.isOnScreen()) {
             hide("prepareSurfaceLocked");
-            mWallpaperControllerLocked.hideWallpapers(w);
+            if (mAnimator.isInParallelPrepare()) {
+                mAnimator.runAfterParallelPrepare(
+                        () -> mWallpaperControllerLocked.hideWallpapers(w));
+            } else {
+                mWallpaperControllerLocked.hideWallpapers(w);
+            }
 
             // If we are waiting for this window to handle an orientation change. If this window is
             // really hidden (gone for layout), there is no point in still waiting for it.
@@ -1173,8 +1188,11 @@ class WindowStateAnimator {
 
         if (w.getOrientationChanging()) {
             if (!w.isDrawnLw()) {
-                mAnimator.mBulkUpdateParams &= ~SET_ORIENTATION_CHANGE_COMPLETE;
-                mAnimator.mLastWindowFreezeSource = w;
+                if (mAnimator.isInParallelPrepare()) {
+                    mAnimator.runAfterParallelPrepare(() -> waitForOrientationChange(w));
+                } else {
+                    waitForOrientationChange(w);
+                }
                 if (DEBUG_ORIENTATION) Slog.v(TAG,
                         "Orientation continue waiting for draw in " + w);
             } else {
@@ -1188,6 +1206,11 @@ class WindowStateAnimator {
         }
     }
 
+    private void waitForOrientationChange(WindowState w) {
+        mAnimator.mBulkUpdateParams &= ~SET_ORIENTATION_CHANGE_COMPLETE;
+        mAnimator.mLastWindowFreezeSource = w;
+    }
+
     void setTransparentRegionHintLocked(final Region region) {
         if (mSurfaceController == null) {
             Slog.w(TAG, "setTransparentRegionHint: null mSurface after mHasSurface true");
@@ -1455,7 +1478,12 @@ class WindowStateAnimator {
     }
 
     void reclaimSomeSurfaceMemory(String operation, boolean secure) {
-        mService.mRoot.reclaimSomeSurfaceMemory(this, operation, secure);
+        if (mAnimator.isInParallelPrepare()) {
+            mAnimator.runAfterParallelPrepare(
+                    () -> mService.mRoot.reclaimSomeSurfaceMemory(this, operation, secure));
+        } else {
+            mService.mRoot.reclaimSomeSurfaceMemory(this, operation, secure);
+        }
     }
 
     boolean getShown() {
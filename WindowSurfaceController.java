@@ -505,12 +505,22 @@ class WindowSurfaceController {
     void setShown(boolean surfaceShown) {
         mSurfaceShown = surfaceShown;
 
+        // Everything else reaches state shared with other displays, or with the other windows of
+        // the process.
+        if (mService.mAnimator.isInParallelPrepare()) {
+            mService.mAnimator.runAfterParallelPrepare(() -> onShownChanged(surfaceShown));
+        } else {
+            onShownChanged(surfaceShown);
+        }
+    }
+
+    private void onShownChanged(boolean surfaceShown) {
         mService.updateNonSystemOverlayWindowsVisibilityIfNeeded(mAnimator.mWin, surfaceShown);
 
         mAnimator.mWin.onSurfaceShownChanged(surfaceShown);
 
         if (mWindowSession != null) {
-            mWindowSession.onWindowSurfaceVisibilityChanged(this, mSurfaceShown, mWindowType);
+            mWindowSession.onWindowSurfaceVisibilityChanged(this, surfaceShown, mWindowType);
         }
     }
 
@@ -55,6 +55,8 @@ class WindowSurfacePlacer {
 
     private final Runnable mPerformSurfacePlacement;
 
+    private final SurfacePlacementProfiler mProfiler = new SurfacePlacementProfiler();
+
     public WindowSurfacePlacer(WindowManagerService service) {
         mService = service;
         mPerformSurfacePlacement = () -> {
@@ -107,6 +109,7 @@ class WindowSurfacePlacer {
             loopCount--;
         } while (mTraversalScheduled && loopCount > 0);
         mService.mRoot.mWallpaperActionPending = false;
+        mProfiler.endPlacement();
     }
 
     private void performSurfacePlacementLoop() {
@@ -135,6 +138,7 @@ class WindowSurfacePlacer {
 
         Trace.traceBegin(Trace.TRACE_TAG_WINDOW_MANAGER, "wmLayout");
         mInLayout = true;
+        mProfiler.beginTraversal();
 
         boolean recoveringMemory = false;
         if (!mService.mForceRemoves.isEmpty()) {
@@ -161,6 +165,7 @@ class WindowSurfacePlacer {
             mInLayout = false;
 
             if (mService.mRoot.isLayoutNeeded()) {
+                mProfiler.onTraversalRepeat(mService.mRoot);
                 if (++mLayoutRepeatCount < 6) {
                     requestTraversal();
                 } else {
@@ -179,6 +184,7 @@ class WindowSurfacePlacer {
             mInLayout = false;
             Slog.wtf(TAG, "Unhandled exception while laying out windows", e);
         }
+        mProfiler.endTraversal();
 
         Trace.traceEnd(Trace.TRACE_TAG_WINDOW_MANAGER);
     }
@@ -190,6 +196,10 @@ class WindowSurfacePlacer {
         }
     }
 
+    SurfacePlacementProfiler getProfiler() {
+        return mProfiler;
+    }
+
     boolean isInLayout() {
         return mInLayout;
     }
@@ -205,5 +215,6 @@ class WindowSurfacePlacer {
         pw.println(prefix + "mTraversalScheduled=" + mTraversalScheduled);
         pw.println(prefix + "mHoldScreenWindow=" + mService.mRoot.mHoldScreenWindow);
         pw.println(prefix + "mObscuringWindow=" + mService.mRoot.mObscuringWindow);
+        mProfiler.dump(pw, prefix);
     }
 }
@@ -22,43 +22,75 @@ import static com.android.server.wm.WindowManagerTraceFileProto.MAGIC_NUMBER_L;
 
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.util.ArrayDeque;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
-import java.util.Queue;
 
 /**
  * Buffer used for window tracing.
+ * <p>
+ * Entries are serialized once, when added, into a preallocated ring of bytes; once it is full,
+ * the oldest entries are discarded to make room. Positions in the ring are logical byte offsets
+ * that only ever grow, the physical offset being the logical one modulo the capacity.
+ * <p>
+ * Writing the buffer to disk doesn't hold the lock during I/O: it records which part of the ring
+ * is live, writes that part straight out of the ring with a gather write, and then checks that
+ * no entry was added over it meanwhile. Only if one was, which takes a whole buffer's worth of
+ * entries during the write, is the file written again from a copy taken under the lock.
  */
 class WindowTraceBuffer {
     private static final long MAGIC_NUMBER_VALUE = ((long) MAGIC_NUMBER_H << 32) | MAGIC_NUMBER_L;
 
     private final Object mBufferLock = new Object();
 
-    private final Queue<ProtoOutputStream> mBuffer = new ArrayDeque<>();
-    private int mBufferUsedSize;
+    @GuardedBy("mBufferLock")
+    private byte[] mRing;
+    /** Logical offset of the oldest entry. */
+    @GuardedBy("mBufferLock")
+    private long mHead;
+    /** Logical offset at which the next entry is added. */
+    @GuardedBy("mBufferLock")
+    private long mTail;
+    /** Lengths of the entries in the ring, a queue starting at mFirstEntry. */
+    @GuardedBy("mBufferLock")
+    private int[] mEntryLengths = new int[64];
+    @GuardedBy("mBufferLock")
+    private int mFirstEntry;
+    @GuardedBy("mBufferLock")
+    private int mEntryCount;
+    @GuardedBy("mBufferLock")
     private int mBufferCapacity;
 
     WindowTraceBuffer(int bufferCapacity) {
-        mBufferCapacity = bufferCapacity;
-        resetBuffer();
+        setCapacity(bufferCapacity);
     }
 
     int getAvailableSpace() {
-        return mBufferCapacity - mBufferUsedSize;
+        synchronized (mBufferLock) {
+            return mBufferCapacity - (int) (mTail - mHead);
+        }
     }
 
     int size() {
-        return mBuffer.size();
+        synchronized (mBufferLock) {
+            return mEntryCount;
+        }
     }
 
+    /**
+     * Sets the capacity of the buffer, discarding what is in it.
+     */
     void setCapacity(int capacity) {
-        mBufferCapacity = capacity;
+        synchronized (mBufferLock) {
+            mBufferCapacity = capacity;
+            resetBuffer();
+        }
     }
 
     /**
@@ -69,62 +101,155 @@ class WindowTraceBuffer {
      *                               than the buffer size.
      */
     void add(ProtoOutputStream proto) {
-        int protoLength = proto.getRawSize();
-        if (protoLength > mBufferCapacity) {
-            throw new IllegalStateException("Trace object too large for the buffer. Buffer size:"
-                    + mBufferCapacity + " Object size: " + protoLength);
-        }
+        // Serialized outside of the lock.
+        final byte[] bytes = proto.getBytes();
+        final int protoLength = bytes.length;
         synchronized (mBufferLock) {
+            // Checked against the ring itself, which setCapacity may have replaced meanwhile.
+            final int capacity = mRing.length;
+            if (protoLength > capacity) {
+                throw new IllegalStateException("Trace object too large for the buffer. Buffer"
+                        + " size:" + capacity + " Object size: " + protoLength);
+            }
             discardOldest(protoLength);
-            mBuffer.add(proto);
-            mBufferUsedSize += protoLength;
-            mBufferLock.notify();
+            final int offset = (int) (mTail % capacity);
+            final int firstPart = Math.min(protoLength, capacity - offset);
+            System.arraycopy(bytes, 0, mRing, offset, firstPart);
+            System.arraycopy(bytes, firstPart, mRing, 0, protoLength - firstPart);
+            mTail += protoLength;
+            addEntryLength(protoLength);
         }
     }
 
+    @GuardedBy("mBufferLock")
+    private void addEntryLength(int length) {
+        if (mEntryCount == mEntryLengths.length) {
+            final int[] lengths = new int[mEntryLengths.length * 2];
+            for (int i = 0; i < mEntryCount; i++) {
+                lengths[i] = mEntryLengths[(mFirstEntry + i) % mEntryLengths.length];
+            }
+            mEntryLengths = lengths;
+            mFirstEntry = 0;
+        }
+        mEntryLengths[(mFirstEntry + mEntryCount) % mEntryLengths.length] = length;
+        mEntryCount++;
+    }
+
     boolean contains(byte[] other) {
-        return mBuffer.stream()
-                .anyMatch(p -> Arrays.equals(p.getBytes(), other));
+        synchronized (mBufferLock) {
+            long position = mHead;
+            for (int i = 0; i < mEntryCount; i++) {
+                final int length = mEntryLengths[(mFirstEntry + i) % mEntryLengths.length];
+                if (length == other.length
+                        && Arrays.equals(copyLocked(position, position + length), other)) {
+                    return true;
+                }
+                position += length;
+            }
+            return false;
+        }
     }
 
     /**
      * Writes the trace buffer to disk.
      */
     void writeTraceToFile(File traceFile) throws IOException {
+        final byte[] ring;
+        final long head;
+        final long tail;
         synchronized (mBufferLock) {
-            traceFile.delete();
-            try (OutputStream os = new FileOutputStream(traceFile)) {
-                traceFile.setReadable(true /* readable */, false /* ownerOnly */);
-                ProtoOutputStream proto = new ProtoOutputStream();
-                proto.write(MAGIC_NUMBER, MAGIC_NUMBER_VALUE);
-                os.write(proto.getBytes());
-                for (ProtoOutputStream protoOutputStream : mBuffer) {
-                    proto = protoOutputStream;
-                    byte[] protoBytes = proto.getBytes();
-                    os.write(protoBytes);
+            ring = mRing;
+            head = mHead;
+            tail = mTail;
+        }
+        final ProtoOutputStream proto = new ProtoOutputStream();
+        proto.write(MAGIC_NUMBER, MAGIC_NUMBER_VALUE);
+        final byte[] header = proto.getBytes();
+
+        traceFile.delete();
+        try (FileOutputStream os = new FileOutputStream(traceFile)) {
+            traceFile.setReadable(true /* readable */, false /* ownerOnly */);
+            final FileChannel channel = os.getChannel();
+            final int capacity = ring.length;
+            final int offset = (int) (head % capacity);
+            final int length = (int) (tail - head);
+            final int firstPart = Math.min(length, capacity - offset);
+            writeFully(channel, new ByteBuffer[] {
+                    ByteBuffer.wrap(header),
+                    ByteBuffer.wrap(ring, offset, firstPart),
+                    ByteBuffer.wrap(ring, 0, length - firstPart)});
+
+            final byte[] copy;
+            synchronized (mBufferLock) {
+                // Entries are only overwritten after the ones before them are discarded, so the
+                // ring is intact as long as nothing we wrote was discarded.
+                if (ring == mRing && mHead <= head) {
+                    return;
                 }
-                os.flush();
+                copy = copyLocked(head, tail, ring);
+            }
+            if (copy == null) {
+                // The buffer was reset or resized while we wrote it out.
+                channel.truncate(header.length);
+                return;
             }
+            channel.truncate(0);
+            channel.position(0);
+            writeFully(channel, new ByteBuffer[] {ByteBuffer.wrap(header), ByteBuffer.wrap(copy)});
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer[] buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
         }
     }
 
+    @GuardedBy("mBufferLock")
+    private byte[] copyLocked(long start, long end) {
+        return copyLocked(start, end, mRing);
+    }
+
     /**
-     * Checks if the element can be added to the buffer. The element is already certain to be
-     * smaller than the overall buffer size.
+     * @return a copy of the entries between the logical offsets {@code start} and {@code end},
+     *         or {@code null} if they're no longer all in {@code ring}.
+     */
+    @GuardedBy("mBufferLock")
+    private byte[] copyLocked(long start, long end, byte[] ring) {
+        final long copyStart = Math.max(start, mHead);
+        if (ring != mRing || copyStart > end) {
+            return null;
+        }
+        // Skip to the first entry that is still whole.
+        final int length = (int) (end - copyStart);
+        final byte[] copy = new byte[length];
+        final int capacity = ring.length;
+        final int offset = (int) (copyStart % capacity);
+        final int firstPart = Math.min(length, capacity - offset);
+        System.arraycopy(ring, offset, copy, 0, firstPart);
+        System.arraycopy(ring, 0, copy, firstPart, length - firstPart);
+        return copy;
+    }
+
+    /**
+     * Discards the oldest entries until there is room for {@code protoLength} bytes. The element
+     * is already certain to be smaller than the overall buffer size.
      *
      * @param protoLength byte array representation of the Proto object to add
      */
+    @GuardedBy("mBufferLock")
     private void discardOldest(int protoLength) {
-        long availableSpace = getAvailableSpace();
-
-        while (availableSpace < protoLength) {
-
-            ProtoOutputStream item = mBuffer.poll();
-            if (item == null) {
+        while (mRing.length - (mTail - mHead) < protoLength) {
+            if (mEntryCount == 0) {
                 throw new IllegalStateException("No element to discard from buffer");
             }
-            mBufferUsedSize -= item.getRawSize();
-            availableSpace = getAvailableSpace();
+            mHead += mEntryLengths[mFirstEntry];
+            mFirstEntry = (mFirstEntry + 1) % mEntryLengths.length;
+            mEntryCount--;
         }
     }
 
@@ -133,14 +258,21 @@ class WindowTraceBuffer {
      */
     void resetBuffer() {
         synchronized (mBufferLock) {
-            mBuffer.clear();
-            mBufferUsedSize = 0;
+            if (mRing == null || mRing.length != mBufferCapacity) {
+                mRing = new byte[mBufferCapacity];
+            }
+            // Rather than rewinding, so a write in progress sees that its entries are gone.
+            mHead = mTail;
+            mFirstEntry = 0;
+            mEntryCount = 0;
         }
     }
 
     @VisibleForTesting
     int getBufferSize() {
-        return mBufferUsedSize;
+        synchronized (mBufferLock) {
+            return (int) (mTail - mHead);
+        }
     }
 
     String getStatus() {
@@ -150,11 +282,11 @@ class WindowTraceBuffer {
                     + " bytes"
                     + "\n"
                     + "Buffer usage: "
-                    + mBufferUsedSize
+                    + (mTail - mHead)
                     + " bytes"
                     + "\n"
                     + "Elements in the buffer: "
-                    + mBuffer.size();
+                    + mEntryCount;
         }
     }
 }
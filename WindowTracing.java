@@ -34,6 +34,7 @@ import android.view.Choreographer;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Arrays;
 
 /**
  * A class that allows window manager to dump its state continuously to a trace file, such that a
@@ -49,6 +50,12 @@ class WindowTracing {
     private static final int BUFFER_CAPACITY_TRIM = 2048 * 1024;
     private static final int BUFFER_CAPACITY_ALL = 4096 * 1024;
     private static final String TRACE_FILENAME = "/data/misc/wmtrace/wm_trace.pb";
+    /**
+     * In delta mode, the number of entries after which the full state is written even if it
+     * didn't change, so a trace cut short by the ring buffer only loses the entries up to the
+     * first one with a state.
+     */
+    private static final int KEYFRAME_INTERVAL = 20;
     private static final String TAG = "WindowTracing";
 
     private final WindowManagerService mService;
@@ -67,6 +74,18 @@ class WindowTracing {
     private volatile boolean mEnabledLockFree;
     private boolean mScheduled;
 
+    /**
+     * Whether entries only carry the window manager state if it changed since the previous
+     * entry. An entry without one has the same state as the last entry before it that has one.
+     */
+    private boolean mDeltaMode;
+    /**
+     * The last state written, in delta mode. Cleared whenever the buffer is emptied, so that the
+     * next entry is a keyframe.
+     */
+    private volatile byte[] mLastState;
+    private int mEntriesSinceKeyframe;
+
     static WindowTracing createDefaultAndStartLooper(WindowManagerService service,
             Choreographer choreographer) {
         File file = new File(TRACE_FILENAME);
@@ -95,7 +114,7 @@ class WindowTracing {
         }
         synchronized (mEnabledLock) {
             logAndPrintln(pw, "Start tracing to " + mTraceFile + ".");
-            mBuffer.resetBuffer();
+            resetBuffer();
             mEnabled = mEnabledLockFree = true;
         }
         log("trace.enable");
@@ -163,6 +182,27 @@ class WindowTracing {
     private void setBufferCapacity(int capacity, PrintWriter pw) {
         logAndPrintln(pw, "Setting window tracing buffer capacity to " + capacity + "bytes");
         mBuffer.setCapacity(capacity);
+        resetDeltaState();
+    }
+
+    /**
+     * Empties the buffer. The states the entries of a delta trace refer to are gone with it, so
+     * the next entry carries the whole state again.
+     */
+    private void resetBuffer() {
+        mBuffer.resetBuffer();
+        resetDeltaState();
+    }
+
+    private void resetDeltaState() {
+        mLastState = null;
+        mEntriesSinceKeyframe = 0;
+    }
+
+    private void setDeltaMode(boolean deltaMode, PrintWriter pw) {
+        logAndPrintln(pw, "Setting window tracing delta mode to " + deltaMode);
+        mDeltaMode = deltaMode;
+        resetDeltaState();
     }
 
     boolean isEnabled() {
@@ -184,11 +224,11 @@ class WindowTracing {
                 return 0;
             case "frame":
                 setLogFrequency(true /* onFrame */, pw);
-                mBuffer.resetBuffer();
+                resetBuffer();
                 return 0;
             case "transaction":
                 setLogFrequency(false /* onFrame */, pw);
-                mBuffer.resetBuffer();
+                resetBuffer();
                 return 0;
             case "level":
                 String logLevelStr = shell.getNextArgRequired().toLowerCase();
@@ -210,11 +250,15 @@ class WindowTracing {
                         break;
                     }
                 }
-                mBuffer.resetBuffer();
+                resetBuffer();
+                return 0;
+            case "delta":
+                setDeltaMode(!"off".equals(shell.getNextArg()), pw);
+                resetBuffer();
                 return 0;
             case "size":
                 setBufferCapacity(Integer.parseInt(shell.getNextArgRequired()) * 1024, pw);
-                mBuffer.resetBuffer();
+                resetBuffer();
                 return 0;
             default:
                 pw.println("Unknown command: " + cmd);
@@ -223,6 +267,8 @@ class WindowTracing {
                 pw.println("  stop: Stop logging");
                 pw.println("  frame: Log trace once per frame");
                 pw.println("  transaction: Log each transaction");
+                pw.println("  delta [on|off]: Only log the state when it changed since the last"
+                        + " entry");
                 pw.println("  size: Set the maximum log size (in KB)");
                 pw.println("  status: Print trace status");
                 pw.println("  level [lvl]: Set the log level between");
@@ -241,6 +287,9 @@ class WindowTracing {
                 + "Log level: "
                 + mLogLevel
                 + "\n"
+                + "Delta mode: "
+                + mDeltaMode
+                + "\n"
                 + mBuffer.getStatus();
     }
 
@@ -287,16 +336,20 @@ class WindowTracing {
             os.write(ELAPSED_REALTIME_NANOS, SystemClock.elapsedRealtimeNanos());
             os.write(WHERE, where);
 
-            long tokenInner = os.start(WINDOW_MANAGER_SERVICE);
-            synchronized (mGlobalLock) {
-                Trace.traceBegin(Trace.TRACE_TAG_WINDOW_MANAGER, "writeToProtoLocked");
-                try {
-                    mService.writeToProtoLocked(os, mLogLevel);
-                } finally {
-                    Trace.traceEnd(Trace.TRACE_TAG_WINDOW_MANAGER);
+            if (mDeltaMode) {
+                writeStateDelta(os);
+            } else {
+                long tokenInner = os.start(WINDOW_MANAGER_SERVICE);
+                synchronized (mGlobalLock) {
+                    Trace.traceBegin(Trace.TRACE_TAG_WINDOW_MANAGER, "writeToProtoLocked");
+                    try {
+                        mService.writeToProtoLocked(os, mLogLevel);
+                    } finally {
+                        Trace.traceEnd(Trace.TRACE_TAG_WINDOW_MANAGER);
+                    }
                 }
+                os.end(tokenInner);
             }
-            os.end(tokenInner);
             os.end(tokenOuter);
             mBuffer.add(os);
             mScheduled = false;
@@ -307,6 +360,34 @@ class WindowTracing {
         }
     }
 
+    /**
+     * Writes the window manager state to the entry in {@code os}, unless it is the same as in the
+     * last entry with a state. The state is still serialized for every entry to compare it, so
+     * this saves buffer space rather than CPU.
+     */
+    private void writeStateDelta(ProtoOutputStream os) {
+        final byte[] lastState = mLastState;
+        final boolean keyframe = lastState == null
+                || mEntriesSinceKeyframe >= KEYFRAME_INTERVAL;
+        final ProtoOutputStream stateOs = new ProtoOutputStream();
+        synchronized (mGlobalLock) {
+            Trace.traceBegin(Trace.TRACE_TAG_WINDOW_MANAGER, "writeToProtoLocked");
+            try {
+                mService.writeToProtoLocked(stateOs, mLogLevel);
+            } finally {
+                Trace.traceEnd(Trace.TRACE_TAG_WINDOW_MANAGER);
+            }
+        }
+        final byte[] state = stateOs.getBytes();
+        if (!keyframe && Arrays.equals(state, lastState)) {
+            mEntriesSinceKeyframe++;
+            return;
+        }
+        os.write(WINDOW_MANAGER_SERVICE, state);
+        mLastState = state;
+        mEntriesSinceKeyframe = keyframe ? 0 : mEntriesSinceKeyframe + 1;
+    }
+
     /**
      * Writes the trace buffer to new file for the bugreport.
      *